@@ -0,0 +1,154 @@
+package org.example.bcp.bench;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sets of raw card documents for the benchmarks to chew on.
+ * 
+ * 'samples' are the real example cards in the bcards directory. 'noisy' are cards
+ * padded out with the kind of long, digit-heavy garbage lines that OCR produces from
+ * barcodes and serial numbers. 'nomatch' are cards in which none of the extractors
+ * can find anything, so every line gets fully examined by each of them.
+ * 
+ * Corpora are generated from a fixed seed so that runs are comparable.
+ * @author astein
+ *
+ */
+public class CardCorpus {
+	
+	public static final String SAMPLES = "samples";
+	public static final String NOISY = "noisy";
+	public static final String NOMATCH = "nomatch";
+	
+	// where the sample cards live, relative to the directory the benchmarks are run from
+	public static final String CARDS_DIR_PROPERTY = "bench.cards.dir";
+	
+	private static final int GENERATED_CARDS = 64;
+	private static final long SEED = 20101;
+	
+	/**
+	 * @param name one of 'samples', 'noisy' or 'nomatch'
+	 * @return raw card documents
+	 * @throws IOException
+	 */
+	public static String[] load(String name) throws IOException {
+		if (SAMPLES.equals(name)) {
+			return samples();
+		} else if (NOISY.equals(name)) {
+			return noisy();
+		} else if (NOMATCH.equals(name)) {
+			return noMatch();
+		}
+		throw new IllegalArgumentException("unknown corpus '" + name + "'");
+	}
+	
+	/**
+	 * Splits documents into lines the same way the parser does, for benchmarks that
+	 * call extractors directly.
+	 * @param documents
+	 * @return
+	 */
+	public static List<List<String>> toLines(String[] documents) {
+		List<List<String>> records = new ArrayList<List<String>>();
+		for (String doc : documents) {
+			List<String> lines = new ArrayList<String>();
+			for (String line : doc.replaceAll("\r\n", "\n").split("\n")) {
+				line = line.trim();
+				if (line.length() > 0) {
+					lines.add(line);
+				}
+			}
+			records.add(lines);
+		}
+		return records;
+	}
+	
+	private static String[] samples() throws IOException {
+		Path dir = Paths.get(System.getProperty(CARDS_DIR_PROPERTY, "bcards"));
+		List<String> cards = new ArrayList<String>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, Files::isRegularFile)) {
+			for (Path file : files) {
+				cards.add(new String(Files.readAllBytes(file)));
+			}
+		}
+		if (cards.isEmpty()) {
+			throw new IOException("no sample cards found in '" + dir.toAbsolutePath() + "'");
+		}
+		return cards.toArray(new String[cards.size()]);
+	}
+	
+	private static String[] noisy() throws IOException {
+		String[] samples = samples();
+		Random random = new Random(SEED);
+		String[] cards = new String[GENERATED_CARDS];
+		for (int i=0; i<cards.length; i++) {
+			List<String> lines = new ArrayList<String>(Arrays.asList(samples[i % samples.length].split("\n")));
+			// a few long garbage lines, somewhere in the card
+			for (int j=0; j<4; j++) {
+				lines.add(random.nextInt(lines.size() + 1), garbageLine(random, 200 + random.nextInt(400)));
+			}
+			cards[i] = join(lines);
+		}
+		return cards;
+	}
+	
+	private static String[] noMatch() {
+		Random random = new Random(SEED);
+		String[] cards = new String[GENERATED_CARDS];
+		for (int i=0; i<cards.length; i++) {
+			List<String> lines = new ArrayList<String>();
+			int count = 5 + random.nextInt(6);
+			for (int j=0; j<count; j++) {
+				// letters and short digit runs only: no names, no phone numbers, no '@'
+				lines.add(wordLine(random, 3 + random.nextInt(5)));
+			}
+			cards[i] = join(lines);
+		}
+		return cards;
+	}
+	
+	/**
+	 * Digit-heavy text with separators sprinkled through it, like an OCR'd barcode.
+	 */
+	private static String garbageLine(Random random, int length) {
+		String chars = "0123456789012345678901234567890123456789 -./|:ABCDEFXZ";
+		StringBuilder sb = new StringBuilder(length);
+		for (int i=0; i<length; i++) {
+			sb.append(chars.charAt(random.nextInt(chars.length())));
+		}
+		return sb.toString();
+	}
+	
+	private static String wordLine(Random random, int words) {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<words; i++) {
+			if (i > 0) {
+				sb.append(' ');
+			}
+			int length = 2 + random.nextInt(9);
+			for (int j=0; j<length; j++) {
+				sb.append((char) ('a' + random.nextInt(26)));
+			}
+			if (random.nextInt(4) == 0) {
+				sb.append(' ').append(random.nextInt(100));
+			}
+		}
+		return sb.toString();
+	}
+	
+	private static String join(List<String> lines) {
+		StringBuilder sb = new StringBuilder();
+		for (String line : lines) {
+			sb.append(line).append('\n');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,65 @@
+package org.example.bcp.bench;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.example.bcp.FieldExtractor;
+import org.example.bcp.PropertiesLoader;
+import org.example.bcp.RecordProcessingException;
+import org.example.bcp.email.EmailExtractor;
+import org.example.bcp.name.NameExtractor;
+import org.example.bcp.phone.PhoneNumberExtractor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Each FieldExtractor on its own, over cards that have already been split into lines.
+ * @author astein
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ExtractorBenchmark {
+	
+	@Param({ "name", "phone", "email" })
+	public String extractor;
+	
+	@Param({ CardCorpus.SAMPLES, CardCorpus.NOISY, CardCorpus.NOMATCH })
+	public String corpus;
+	
+	FieldExtractor fieldExtractor;
+	List<List<String>> records;
+	
+	@Setup
+	public void setup() throws Exception {
+		if ("name".equals(extractor)) {
+			Properties props = PropertiesLoader.loadProperties("/bcp.properties");
+			fieldExtractor = new NameExtractor(props);
+		} else if ("phone".equals(extractor)) {
+			fieldExtractor = new PhoneNumberExtractor();
+		} else {
+			fieldExtractor = new EmailExtractor();
+		}
+		records = CardCorpus.toLines(CardCorpus.load(corpus));
+	}
+	
+	@Benchmark
+	public void getField(Blackhole bh) {
+		for (List<String> record : records) {
+			try {
+				bh.consume(fieldExtractor.getField(record));
+			} catch (RecordProcessingException e) {
+				bh.consume(e);
+			}
+		}
+	}
+}
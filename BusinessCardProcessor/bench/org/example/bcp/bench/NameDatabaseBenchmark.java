@@ -0,0 +1,86 @@
+package org.example.bcp.bench;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.example.bcp.PropertiesLoader;
+import org.example.bcp.name.NameDatabase;
+import org.example.bcp.name.NameExtractor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Loading the names database from the census CSV, and looking names up in it.
+ * 
+ * Lookups use a mix of terms taken from the sample cards: real surnames in assorted
+ * cases, first names and company words that aren't in the database, and numbers.
+ * @author astein
+ *
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NameDatabaseBenchmark {
+	
+	static final String[] TERMS = {
+		"Wilson", "SMITH", "carter", "Cruz", "Haung", "Arthur", "Lisa", "James",
+		"Technologies", "Engineer", "Suite", "22209", "(410)555-1234", "Klikkit",
+		"Anderson", "JOHNSON", "williams", "Xyzzyq"
+	};
+	
+	String dbFile;
+	NameDatabase database;
+	
+	@Setup
+	public void setup() throws Exception {
+		Properties props = PropertiesLoader.loadProperties("/bcp.properties");
+		Properties nameProps = (Properties) props.get(NameExtractor.PROPERTIES_KEY);
+		dbFile = nameProps.getProperty(NameExtractor.DBFILE_PROPERTY_KEY);
+		database = new NameDatabase(dbFile);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 5)
+	@Measurement(iterations = 10)
+	@Fork(3)
+	public NameDatabase construct() throws Exception {
+		return new NameDatabase(dbFile);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	public void containsName(Blackhole bh) {
+		for (String term : TERMS) {
+			bh.consume(database.containsName(term));
+		}
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	public void rankFor(Blackhole bh) {
+		for (String term : TERMS) {
+			bh.consume(database.rankFor(term));
+		}
+	}
+	
+	/**
+	 * The allocation-free lookup, on terms embedded in a line as NameExtractor sees them.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	public void rankInPlace(Blackhole bh) {
+		for (String term : TERMS) {
+			bh.consume(database.rank(term, 0, term.length()));
+		}
+	}
+}
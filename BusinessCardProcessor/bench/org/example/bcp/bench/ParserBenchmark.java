@@ -0,0 +1,51 @@
+package org.example.bcp.bench;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.example.bcp.BusinessCardParser;
+import org.example.bcp.PropertiesLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Whole-card parsing: BusinessCardParser.parse over each corpus.
+ * @author astein
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParserBenchmark {
+	
+	@Param({ CardCorpus.SAMPLES, CardCorpus.NOISY, CardCorpus.NOMATCH })
+	public String corpus;
+	
+	BusinessCardParser parser;
+	String[] cards;
+	
+	@Setup
+	public void setup() throws Exception {
+		Properties props = PropertiesLoader.loadProperties("/bcp.properties");
+		parser = new BusinessCardParser(props);
+		cards = CardCorpus.load(corpus);
+	}
+	
+	/**
+	 * Parses every card in the corpus once. Cards the parser rejects are part of the
+	 * workload, and come back as results like any other.
+	 */
+	@Benchmark
+	public void parse(Blackhole bh) {
+		for (String card : cards) {
+			bh.consume(parser.parse(card));
+		}
+	}
+}
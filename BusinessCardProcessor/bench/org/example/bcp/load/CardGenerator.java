@@ -0,0 +1,463 @@
+package org.example.bcp.load;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import org.example.bcp.phone.PhoneNumberScanner;
+
+/**
+ * Makes up business cards, for load tests. Names are census surnames (with a made-up
+ * first name), so the name extractor has real work to do; phone numbers, fax numbers
+ * and email addresses come in the various layouts that real cards use; and cards are
+ * padded with titles, companies, addresses, web sites and OCR garbage, in no fixed order.
+ *
+ * Some cards are meant to fail: they have no name, or no phone number (perhaps only a
+ * fax number). A few others have their name garbled, the way OCR does. Cards with no
+ * name are left with only lines that the name extractor can't take a name from, not even
+ * a garbled one (see {@link #cannotHoldName(String)}), so that they really do fail; and
+ * cards with no phone number lose any line (of garbage, say) that holds something the
+ * phone number scanner would take for one.
+ *
+ * Every card's email address ends in a tag (letters only, so as not to look like a phone
+ * number) that says which card it is; see {@link #tag(String, int)}. The same seed makes
+ * the same cards.
+ * @author astein
+ *
+ */
+public class CardGenerator {
+
+	/**
+	 * A made-up card.
+	 */
+	public static final class Card {
+		public final int number;
+		public final String text;
+		public final boolean meantToFail;
+
+		Card(int number, String text, boolean meantToFail) {
+			this.number = number;
+			this.text = text;
+			this.meantToFail = meantToFail;
+		}
+	}
+
+	// letters in a card number's tag; 26^6 is plenty of cards
+	public static final int TAG_LETTERS = 6;
+
+	// only this many of the most common surnames are used
+	private static final int MAX_SURNAMES = 20000;
+	// a term at least this long, of letters (and the odd digit), might be taken for a
+	// garbled name; see NameExtractor.fuzzyDistanceFor
+	private static final int MIN_FUZZY_TERM = 4;
+
+	private static final String[] FIRST_NAMES = {
+		"James", "Mary", "Robert", "Patricia", "John", "Jennifer", "Michael", "Linda", "David",
+		"Elizabeth", "William", "Barbara", "Richard", "Susan", "Joseph", "Jessica", "Thomas", "Sarah",
+		"Charles", "Karen", "Christopher", "Lisa", "Daniel", "Nancy", "Matthew", "Betty", "Anthony",
+		"Sandra", "Mark", "Margaret", "Priya", "Wei", "Ahmed", "Olga", "Carlos", "Yuki", "Fatima"
+	};
+	private static final String[] TITLES = {
+		"Software Engineer", "Senior Account Executive", "Director of Operations", "Vice President, Sales",
+		"Chief Technology Officer", "Marketing Manager", "Principal Consultant", "Office Manager",
+		"Attorney at Law", "Project Lead", "Regional Sales Representative", "Partner"
+	};
+	private static final String[] COMPANY_WORDS = {
+		"Acme", "Summit", "Blue River", "Northwind", "Granite", "Pinnacle", "Redwood", "Harbor",
+		"Keystone", "Silverline", "Lakeside", "Evergreen"
+	};
+	private static final String[] COMPANY_KINDS = {
+		"Technologies", "Consulting", "Widgets", "Holdings", "Partners", "Logistics", "Systems", "Labs"
+	};
+	private static final String[] COMPANY_SUFFIXES = { "Inc.", "LLC", "Corp", "Ltd", "Co.", "LLP" };
+	// the ones in the [company] section of keywords.txt, that make a line a company's
+	private static final String[] COMPANY_KEYWORD_SUFFIXES = { "Inc.", "LLC", "Corp", "Co." };
+	private static final String[] STREETS = {
+		"Main Street", "North 11th Street", "Oak Avenue", "Commerce Drive", "Industrial Parkway",
+		"Market Street", "Park Place", "Route 9"
+	};
+	private static final String[] CITIES = {
+		"Arlington, VA 22209", "Baltimore, MD 21201", "Austin, TX 78701", "Denver, CO 80202",
+		"Portland, OR 97204", "Boston, MA 02110", "Chicago, IL 60601"
+	};
+	private static final String[] PHONE_LABELS = { "", "Tel: ", "Phone: ", "T: ", "Office: ", "Mobile: ", "Direct " };
+	private static final String[] FAX_LABELS = { "Fax: ", "FAX ", "F: ", "Fax " };
+	// the ones with a [fax] keyword in keywords.txt, without which a fax number is taken
+	// for a phone number
+	private static final String[] FAX_KEYWORD_LABELS = { "Fax: ", "FAX ", "Fax " };
+	private static final String[] SLOGANS = {
+		"Quality you can count on", "Since 1987", "Serving the greater metro area",
+		"Ask us about our new services"
+	};
+
+	private final List<String> surnames;
+	// every surname, upper-cased, to keep off cards that are meant to have no name
+	private final Set<String> allSurnames = new HashSet<String>();
+	private final String runTag;
+	private final double failureRatio;
+	private final long seed;
+
+	/**
+	 * @param surnames every name in the names database, most common first; names are
+	 * chosen from the most common of them
+	 * @param runTag letters that start every card's tag, so that runs can be told apart
+	 * @param failureRatio fraction of the cards that are meant to fail
+	 * @param seed
+	 */
+	public CardGenerator(List<String> surnames, String runTag, double failureRatio, long seed) {
+		if (surnames.isEmpty()) {
+			throw new IllegalArgumentException("no surnames to choose from");
+		}
+		this.surnames = surnames.subList(0, Math.min(MAX_SURNAMES, surnames.size()));
+		for (String surname : surnames) {
+			allSurnames.add(surname.toUpperCase(Locale.ROOT));
+		}
+		this.runTag = runTag;
+		this.failureRatio = failureRatio;
+		this.seed = seed;
+	}
+
+	/**
+	 * Reads the surnames from the census CSV, from the classpath.
+	 * @param csvFile e.g. Names_2010Census.csv
+	 * @return surnames, capitalised, most common first
+	 * @throws FileNotFoundException if it isn't on the classpath
+	 * @throws IOException
+	 */
+	public static List<String> loadSurnames(String csvFile) throws FileNotFoundException, IOException {
+		InputStream is = CardGenerator.class.getResourceAsStream("/" + csvFile);
+		if (is == null) {
+			throw new FileNotFoundException("names database '" + csvFile + "' not found on the classpath");
+		}
+		List<String> names = new ArrayList<String>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+			String header = reader.readLine();
+			int column = header == null ? -1 : indexOf(header.split(","), "name");
+			if (column < 0) {
+				throw new IOException("'" + csvFile + "' has no name column");
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(",");
+				if (fields.length > column && fields[column].length() > 1) {
+					String name = fields[column].trim();
+					names.add(name.charAt(0) + name.substring(1).toLowerCase());
+				}
+			}
+		}
+		return names;
+	}
+
+	private static int indexOf(String[] fields, String name) {
+		for (int i=0; i<fields.length; i++) {
+			if (fields[i].trim().equalsIgnoreCase(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param runTag
+	 * @param number
+	 * @return the letters that identify a card, as they appear at the end of its email
+	 * address's local part
+	 */
+	public static String tag(String runTag, int number) {
+		char[] letters = new char[TAG_LETTERS];
+		for (int i=TAG_LETTERS - 1; i>=0; i--) {
+			letters[i] = (char) ('a' + number % 26);
+			number /= 26;
+		}
+		return runTag + new String(letters);
+	}
+
+	/**
+	 * @param letters the TAG_LETTERS letters after the run tag
+	 * @return the card number, or -1 if they aren't a card number
+	 */
+	public static int number(CharSequence letters) {
+		if (letters.length() != TAG_LETTERS) {
+			return -1;
+		}
+		int number = 0;
+		for (int i=0; i<TAG_LETTERS; i++) {
+			char c = letters.charAt(i);
+			if (c < 'a' || c > 'z') {
+				return -1;
+			}
+			number = number * 26 + (c - 'a');
+		}
+		return number;
+	}
+
+	/**
+	 * @param number
+	 * @return the card with that number; the same every time
+	 */
+	public Card card(int number) {
+		// (neighbouring seeds give Random much the same first few numbers, so spread them out)
+		Random random = new Random(seed ^ (number * 0x9E3779B97F4A7C15L));
+		boolean meantToFail = random.nextDouble() < failureRatio;
+		boolean noName = meantToFail && random.nextBoolean();
+		boolean noPhone = meantToFail && !noName;
+
+		String first = pick(random, FIRST_NAMES);
+		String last = surnames.get(skewed(random, surnames.size()));
+		String company = pick(random, COMPANY_WORDS) + " " + pick(random, COMPANY_KINDS);
+		String domain = company.toLowerCase().replace(" ", "") + ".com";
+		if (noName) {
+			// so that it's taken for a company's name, whatever its words are
+			company += " " + pick(random, COMPANY_KEYWORD_SUFFIXES);
+		} else if (random.nextInt(3) == 0) {
+			company += " " + pick(random, COMPANY_SUFFIXES);
+		}
+
+		List<String> lines = new ArrayList<String>();
+		if (random.nextInt(3) > 0) {
+			lines.add(pick(random, TITLES));
+		}
+		lines.add(company);
+		if (random.nextBoolean()) {
+			lines.add((100 + random.nextInt(9900)) + " " + pick(random, STREETS));
+			if (random.nextInt(3) == 0) {
+				lines.add("Suite " + (100 + random.nextInt(900)));
+			}
+			lines.add(pick(random, CITIES));
+		}
+		if (!noPhone) {
+			lines.add(numberLine(random, PHONE_LABELS, noName));
+		}
+		if (noPhone || random.nextBoolean()) {
+			lines.add(numberLine(random, noPhone ? FAX_KEYWORD_LABELS : FAX_LABELS, noName));
+		}
+		lines.add(email(random, first, last, domain, tag(runTag, number)));
+		if (random.nextInt(4) == 0) {
+			lines.add("www." + domain);
+		}
+		if (random.nextInt(5) == 0) {
+			lines.add(pick(random, SLOGANS));
+		}
+		for (int i=random.nextInt(3); i>0; i--) {
+			lines.add(garbageLine(random, 5 + random.nextInt(40)));
+		}
+		if (noName || noPhone) {
+			for (Iterator<String> it = lines.iterator(); it.hasNext(); ) {
+				String line = it.next();
+				if ((noName && !cannotHoldName(line)) || (noPhone && !cannotHoldPhoneNumber(line))) {
+					it.remove();
+				}
+			}
+		}
+		Collections.shuffle(lines, random);
+
+		if (!noName) {
+			String name = random.nextInt(25) == 0 ? garble(random, last) : last;
+			switch (random.nextInt(4)) {
+			case 0:
+				name = first + " " + (char) ('A' + random.nextInt(26)) + ". " + name;
+				break;
+			case 1:
+				name = (first + " " + name).toUpperCase();
+				break;
+			default:
+				name = first + " " + name;
+			}
+			// names usually come first, but not always
+			lines.add(random.nextInt(4) > 0 ? 0 : random.nextInt(lines.size() + 1), name);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (String line : lines) {
+			sb.append(line).append(random.nextInt(10) == 0 ? "\r\n" : "\n");
+		}
+		return new Card(number, sb.toString(), meantToFail);
+	}
+
+	/**
+	 * @param labels what to choose the number's label from
+	 * @param nameless if the line mustn't hold anything that might be taken for a name
+	 * @return a labelled phone or fax number
+	 */
+	private String numberLine(Random random, String[] labels, boolean nameless) {
+		String number = phoneNumber(random);
+		String line = pick(random, labels) + number;
+		// (every number can go without a label)
+		return nameless && !cannotHoldName(line) ? number : line;
+	}
+
+	/**
+	 * Works out whether the name extractor could find a name in a line, the way it goes
+	 * about it: a line that ends with a company keyword can't hold one; otherwise any term
+	 * (delimited by white-space or hyphens) that's a surname could be one, and unless the
+	 * line starts with a digit, so could any term that might be a surname garbled by OCR.
+	 * @param line
+	 * @return true if no name could be found in it
+	 */
+	boolean cannotHoldName(String line) {
+		String upper = line.trim().toUpperCase(Locale.ROOT);
+		for (String suffix : COMPANY_KEYWORD_SUFFIXES) {
+			if (upper.endsWith(" " + suffix.toUpperCase(Locale.ROOT))) {
+				return true;
+			}
+		}
+		boolean leadingDigit = !upper.isEmpty() && upper.charAt(0) >= '0' && upper.charAt(0) <= '9';
+		for (String term : upper.split("[ \\t\\n\\x0B\\f\\r-]+")) {
+			if (allSurnames.contains(term) || (!leadingDigit && mightBeGarbled(term))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param line
+	 * @return true if the phone number scanner finds no number in it, or only a fax number
+	 */
+	static boolean cannotHoldPhoneNumber(String line) {
+		PhoneNumberScanner.Match match = PhoneNumberScanner.scan(line, 0, line.length());
+		return match == null || match.isFax();
+	}
+
+	/**
+	 * @return true if a term is long enough, and made of letters (and few enough digits),
+	 * to be looked up as a garbled name
+	 */
+	private static boolean mightBeGarbled(String term) {
+		if (term.length() < MIN_FUZZY_TERM) {
+			return false;
+		}
+		int digits = 0;
+		for (int i=0; i<term.length(); i++) {
+			char c = term.charAt(i);
+			if (c >= '0' && c <= '9') {
+				digits++;
+			} else if (!Character.isLetter(c) && c != '\'') {
+				return false;
+			}
+		}
+		return digits <= (term.length() < 7 ? 1 : 2);
+	}
+
+	private static String phoneNumber(Random random) {
+		int area = 201 + random.nextInt(780);
+		int exchange = 200 + random.nextInt(800);
+		int line = random.nextInt(10000);
+		switch (random.nextInt(6)) {
+		case 0:
+			return String.format("(%03d) %03d-%04d", area, exchange, line);
+		case 1:
+			return String.format("%03d.%03d.%04d", area, exchange, line);
+		case 2:
+			return String.format("+1 (%03d) %03d-%04d", area, exchange, line);
+		case 3:
+			return String.format("1-%03d-%03d-%04d", area, exchange, line);
+		case 4:
+			return String.format("+1 %03d %03d %04d", area, exchange, line);
+		default:
+			return String.format("%03d-%03d-%04d", area, exchange, line);
+		}
+	}
+
+	private static String email(Random random, String first, String last, String domain, String tag) {
+		String local;
+		switch (random.nextInt(3)) {
+		case 0:
+			local = first.toLowerCase() + "." + last.toLowerCase();
+			break;
+		case 1:
+			local = first.toLowerCase().charAt(0) + last.toLowerCase();
+			break;
+		default:
+			local = first.toLowerCase();
+		}
+		return local + "." + tag + "@" + domain;
+	}
+
+	/**
+	 * Swaps two neighbouring letters, or turns an 'o', 'l' or 'i' into a digit.
+	 */
+	private static String garble(Random random, String name) {
+		char[] chars = name.toCharArray();
+		for (int i=1; i<chars.length; i++) {
+			char c = Character.toLowerCase(chars[i]);
+			if (c == 'o' || c == 'l' || c == 'i') {
+				chars[i] = c == 'o' ? '0' : '1';
+				return new String(chars);
+			}
+		}
+		if (chars.length > 3) {
+			int i = 1 + random.nextInt(chars.length - 2);
+			char t = chars[i];
+			chars[i] = chars[i + 1];
+			chars[i + 1] = t;
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Digits, capitals and punctuation, like OCR makes of a logo or a barcode.
+	 */
+	private static String garbageLine(Random random, int length) {
+		String chars = "0123456789 -./|:;~ABCDEFXZ";
+		StringBuilder sb = new StringBuilder(length);
+		for (int i=0; i<length; i++) {
+			sb.append(chars.charAt(random.nextInt(chars.length())));
+		}
+		return sb.toString().trim();
+	}
+
+	/**
+	 * @return an index below n, favouring small ones (common names)
+	 */
+	private static int skewed(Random random, int n) {
+		double r = random.nextDouble();
+		return Math.min(n - 1, (int) (n * r * r * r));
+	}
+
+	private static String pick(Random random, String[] choices) {
+		return choices[random.nextInt(choices.length)];
+	}
+
+	/**
+	 * Writes a corpus of made-up cards to a directory, one file per card.
+	 * @param args directory, number of cards, [fraction meant to fail, [seed]]
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: CardGenerator <directory> <count> [failure ratio] [seed]");
+			return;
+		}
+		Path dir = Paths.get(args[0]);
+		int count = Integer.parseInt(args[1]);
+		double failureRatio = args.length > 2 ? Double.parseDouble(args[2]) : 0.05;
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : 20101;
+
+		CardGenerator generator = new CardGenerator(loadSurnames("Names_2010Census.csv"), "gen", failureRatio, seed);
+		Files.createDirectories(dir);
+		int failing = 0;
+		for (int i=0; i<count; i++) {
+			Card card = generator.card(i);
+			Files.write(dir.resolve(String.format("card-%06d.txt", i)), card.text.getBytes(StandardCharsets.UTF_8));
+			if (card.meantToFail) {
+				failing++;
+			}
+		}
+		System.out.println("wrote " + count + " cards (" + failing + " meant to fail) to '" + dir + "'");
+	}
+}
@@ -0,0 +1,693 @@
+package org.example.bcp.load;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.JMX;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.example.bcp.metrics.Metrics;
+import org.example.bcp.metrics.MetricsMXBean;
+
+/**
+ * Drives a whole bcp instance (watch, read, parse, append, move) with made-up cards
+ * (see {@link CardGenerator}) and reports what it sustained: throughput, the latency from
+ * a card's file being written to its record turning up in the output file (or the file
+ * turning up in the failed directory), failures, and the instance's GC and heap figures.
+ *
+ * Cards are written to the watched directory under a temporary name and renamed, at a
+ * target rate or as fast as they can be. The output file is tailed for each card's tag
+ * (which is in its email address), and the failed directory is watched for the rest.
+ * Any card that came out other than meant (processed though meant to fail, or the other
+ * way round) is named in the report.
+ *
+ * Given --jar, an instance is started for the run, in the --home directory, with JMX on
+ * a free local port, and stopped at the end. Otherwise the instance that's already
+ * running in --home is driven; without --jmx, there are no counters or GC figures.
+ * <pre>
+ * --home &lt;dir&gt;              the instance's working directory (required)
+ * --jar &lt;bcp.jar&gt;           start an instance from this jar
+ * --jmx &lt;host:port&gt;         JMX address of an instance that's already running
+ * --cards &lt;n&gt;               cards to send, default 10000
+ * --rate &lt;n&gt;                cards per second, default 0 (as fast as possible)
+ * --failures &lt;fraction&gt;     fraction of cards meant to fail, default 0.05
+ * --seed &lt;n&gt;                default 20101
+ * --timeout &lt;seconds&gt;       how long to wait for stragglers, default 60
+ * --jvm &lt;args&gt;              JVM options for a started instance, e.g. "-Xmx512m"
+ * --set &lt;key=value&gt;         overrides a bcp property (may be repeated)
+ * </pre>
+ * @author astein
+ *
+ */
+public class LoadHarness {
+
+	private static final String JMX_URL = "service:jmx:rmi:///jndi/rmi://%s/jmxrmi";
+	private static final long READY_TIMEOUT_MILLIS = 120000;
+	// at most this many cards that came out other than meant are named
+	private static final int MAX_NAMED_MISMATCHES = 20;
+
+	// options
+	Path jar;
+	Path home;
+	String jmxAddress;
+	int cards = 10000;
+	double rate;
+	double failureRatio = 0.05;
+	long seed = 20101;
+	int timeoutSeconds = 60;
+	String jvmArgs = "";
+	Map<String, String> overrides = new HashMap<String, String>();
+
+	// the instance's properties, as far as finding its directories goes
+	Properties props;
+	Path outputFile;
+	Path failedDir;
+	List<Path> inputDirs = new ArrayList<Path>();
+
+	Process instance;
+	JMXConnector connector;
+	MBeanServerConnection jmx;
+
+	// per card: whether it's meant to fail, when its file was written, and when it was
+	// seen done (0 until then)
+	boolean[] meantToFail;
+	long[] sentNanos;
+	AtomicLongArray doneNanos;
+	boolean[] failed;
+	final AtomicInteger doneCount = new AtomicInteger();
+	final AtomicInteger failedCount = new AtomicInteger();
+	volatile boolean stopping;
+
+	/**
+	 * @param args see the class description
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		LoadHarness harness = new LoadHarness();
+		try {
+			harness.parseArgs(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		harness.run();
+	}
+
+	void parseArgs(String[] args) {
+		for (int i=0; i<args.length; i++) {
+			String arg = args[i];
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("missing value for " + arg);
+			}
+			String value = args[++i];
+			if ("--jar".equals(arg)) {
+				jar = Paths.get(value);
+			} else if ("--home".equals(arg)) {
+				home = Paths.get(value);
+			} else if ("--jmx".equals(arg)) {
+				jmxAddress = value;
+			} else if ("--cards".equals(arg)) {
+				cards = Integer.parseInt(value);
+			} else if ("--rate".equals(arg)) {
+				rate = Double.parseDouble(value);
+			} else if ("--failures".equals(arg)) {
+				failureRatio = Double.parseDouble(value);
+			} else if ("--seed".equals(arg)) {
+				seed = Long.parseLong(value);
+			} else if ("--timeout".equals(arg)) {
+				timeoutSeconds = Integer.parseInt(value);
+			} else if ("--jvm".equals(arg)) {
+				jvmArgs = value;
+			} else if ("--set".equals(arg) && value.indexOf('=') > 0) {
+				overrides.put(value.substring(0, value.indexOf('=')).trim(), value.substring(value.indexOf('=') + 1).trim());
+			} else {
+				throw new IllegalArgumentException("unknown option " + arg + " " + value);
+			}
+		}
+		if (home == null) {
+			throw new IllegalArgumentException("--home must be given");
+		}
+	}
+
+	void run() throws Exception {
+		Files.createDirectories(home);
+		loadProperties();
+		try {
+			if (jar != null && jmxAddress == null) {
+				startInstance();
+			}
+			if (jmxAddress != null) {
+				connect();
+				awaitReady();
+			}
+			drive();
+		} finally {
+			stopping = true;
+			if (connector != null) {
+				connector.close();
+			}
+			stopInstance();
+		}
+	}
+
+	/**
+	 * Works out where the instance's input, output and failed cards are, from bcp.properties
+	 * (as on the classpath, with any overrides). A started instance is given the same
+	 * properties, in home/conf/bcp.properties.
+	 */
+	void loadProperties() throws IOException {
+		byte[] original;
+		try (InputStream is = LoadHarness.class.getResourceAsStream("/bcp.properties")) {
+			if (is == null) {
+				throw new IOException("bcp.properties not found on the classpath");
+			}
+			ByteArrayOutputStream all = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = is.read(buf)) >= 0) {
+				all.write(buf, 0, n);
+			}
+			original = all.toByteArray();
+		}
+		StringBuilder text = new StringBuilder(new String(original, StandardCharsets.ISO_8859_1));
+		text.append("\n# set by the load harness\n");
+		for (Map.Entry<String, String> override : overrides.entrySet()) {
+			text.append(override.getKey()).append('=').append(override.getValue()).append('\n');
+		}
+		props = new Properties();
+		props.load(new StringReader(text.toString()));
+		if (jar != null && jmxAddress == null) {
+			Path conf = home.resolve("conf");
+			Files.createDirectories(conf);
+			Files.write(conf.resolve("bcp.properties"), text.toString().getBytes(StandardCharsets.ISO_8859_1));
+		}
+
+		outputFile = home.resolve(props.getProperty("bcp.output.file", "contact-data.txt").trim());
+		failedDir = home.resolve(props.getProperty("bcp.failed.dir", "failed_bcards").trim());
+		String shardCount = props.getProperty("bcp.rawdata.shards", "").trim();
+		int shards = shardCount.isEmpty() ? 0 : Integer.parseInt(shardCount);
+		for (String dir : props.getProperty("bcp.rawdata.dir", "new_bcards").split(",")) {
+			Path base = home.resolve(dir.trim());
+			if (shards <= 0) {
+				inputDirs.add(base);
+			}
+			for (int s=0; s<shards; s++) {
+				inputDirs.add(base.resolve("shard-" + s));
+			}
+		}
+	}
+
+	void startInstance() throws IOException {
+		int port;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		jmxAddress = "127.0.0.1:" + port;
+
+		List<String> command = new ArrayList<String>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		for (String arg : jvmArgs.trim().split("\\s+")) {
+			if (!arg.isEmpty()) {
+				command.add(arg);
+			}
+		}
+		command.addAll(Arrays.asList(
+			"-Dcom.sun.management.jmxremote.port=" + port,
+			"-Dcom.sun.management.jmxremote.rmi.port=" + port,
+			"-Dcom.sun.management.jmxremote.host=127.0.0.1",
+			"-Djava.rmi.server.hostname=127.0.0.1",
+			"-Dcom.sun.management.jmxremote.authenticate=false",
+			"-Dcom.sun.management.jmxremote.ssl=false",
+			"-cp", "conf" + File.pathSeparator + jar.toAbsolutePath(),
+			"org.example.bcp.BusinessCardProcessor"));
+		Path log = home.resolve("bcp.log");
+		instance = new ProcessBuilder(command).directory(home.toFile())
+			.redirectErrorStream(true).redirectOutput(log.toFile()).start();
+		System.out.println("started bcp in '" + home + "' (output in " + log + "), JMX on " + jmxAddress);
+	}
+
+	void stopInstance() throws InterruptedException {
+		if (instance == null) {
+			return;
+		}
+		// (a plain kill, so that bcp's shutdown hook writes everything out)
+		instance.destroy();
+		if (!instance.waitFor(30, TimeUnit.SECONDS)) {
+			System.err.println("bcp didn't stop, killing it");
+			instance.destroyForcibly();
+		}
+	}
+
+	void connect() throws Exception {
+		JMXServiceURL url = new JMXServiceURL(String.format(JMX_URL, jmxAddress));
+		long deadline = System.currentTimeMillis() + READY_TIMEOUT_MILLIS;
+		while (true) {
+			try {
+				connector = JMXConnectorFactory.connect(url);
+				jmx = connector.getMBeanServerConnection();
+				return;
+			} catch (IOException e) {
+				checkInstance();
+				if (System.currentTimeMillis() > deadline) {
+					throw new IOException("unable to connect to JMX at " + jmxAddress + ": " + e.getMessage());
+				}
+				Thread.sleep(200);
+			}
+		}
+	}
+
+	void awaitReady() throws Exception {
+		long deadline = System.currentTimeMillis() + READY_TIMEOUT_MILLIS;
+		while (true) {
+			Map<String, Long> gauges = metrics("Gauges");
+			if (gauges.containsKey("startup.ready") && gauges.get("startup.ready") == 1) {
+				System.out.println("bcp is ready, " + gauges.get("startup.readyMillis") + " ms after its JVM started");
+				return;
+			}
+			checkInstance();
+			if (System.currentTimeMillis() > deadline) {
+				throw new IOException("bcp wasn't ready after " + READY_TIMEOUT_MILLIS / 1000 + " s");
+			}
+			Thread.sleep(100);
+		}
+	}
+
+	private void checkInstance() throws IOException {
+		if (instance != null && !instance.isAlive()) {
+			throw new IOException("bcp exited with status " + instance.exitValue() + ", see " + home.resolve("bcp.log"));
+		}
+	}
+
+	/**
+	 * @param attribute 'Counters' or 'Gauges' (see {@link MetricsMXBean})
+	 * @return the instance's counters or gauges, by name
+	 */
+	private Map<String, Long> metrics(String attribute) throws Exception {
+		// (read as open data, since a proxy would need every attribute's type to be rebuildable)
+		TabularData table = (TabularData) jmx.getAttribute(new ObjectName(Metrics.OBJECT_NAME), attribute);
+		Map<String, Long> values = new HashMap<String, Long>();
+		for (Object row : table.values()) {
+			CompositeData entry = (CompositeData) row;
+			values.put((String) entry.get("key"), (Long) entry.get("value"));
+		}
+		return values;
+	}
+
+	/**
+	 * Sends the cards, waits for them to be done, and reports.
+	 */
+	void drive() throws Exception {
+		String runTag = "zq" + randomLetters(3);
+		CardGenerator generator = new CardGenerator(
+			CardGenerator.loadSurnames(namesFile()), runTag, failureRatio, seed);
+		for (Path dir : inputDirs) {
+			Files.createDirectories(dir);
+		}
+		Files.createDirectories(failedDir);
+		meantToFail = new boolean[cards];
+		sentNanos = new long[cards];
+		doneNanos = new AtomicLongArray(cards);
+		failed = new boolean[cards];
+
+		Map<String, Long> countersBefore = jmx == null ? null : metrics("Counters");
+		GcStats gcBefore = jmx == null ? null : new GcStats(jmx, true);
+
+		Thread tail = new Thread(new OutputTail(runTag), "load-tail");
+		Thread failures = new Thread(new FailureWatch(runTag), "load-failures");
+		tail.setDaemon(true);
+		failures.setDaemon(true);
+		tail.start();
+		failures.start();
+
+		System.out.println("sending " + cards + " cards "
+			+ (rate > 0 ? "at " + rate + " per second" : "as fast as possible") + "...");
+		long maxLagNanos = 0;
+		long start = System.nanoTime();
+		for (int i=0; i<cards; i++) {
+			CardGenerator.Card card = generator.card(i);
+			meantToFail[i] = card.meantToFail;
+			if (rate > 0) {
+				long due = start + (long) (i * 1e9 / rate);
+				long now = System.nanoTime();
+				if (now < due) {
+					LockSupport.parkNanos(due - now);
+				} else {
+					maxLagNanos = Math.max(maxLagNanos, now - due);
+				}
+			}
+			Path dir = inputDirs.get(i % inputDirs.size());
+			String name = fileName(runTag, i);
+			Path temp = dir.resolve(name + props.getProperty("bcp.watch.temp.suffix", ".tmp").trim());
+			Files.write(temp, card.text.getBytes(StandardCharsets.UTF_8));
+			sentNanos[i] = System.nanoTime();
+			Files.move(temp, dir.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+		}
+		long sentEnd = System.nanoTime();
+
+		// wait for the last card, or for progress to stop
+		long lastProgress = System.nanoTime();
+		int lastDone = -1;
+		while (doneCount.get() + failedCount.get() < cards) {
+			int done = doneCount.get() + failedCount.get();
+			if (done != lastDone) {
+				lastDone = done;
+				lastProgress = System.nanoTime();
+			} else if (System.nanoTime() - lastProgress > TimeUnit.SECONDS.toNanos(timeoutSeconds)) {
+				break;
+			}
+			if (instance != null && !instance.isAlive()) {
+				System.err.println("bcp exited during the run");
+				break;
+			}
+			Thread.sleep(50);
+		}
+		stopping = true;
+		tail.join();
+		failures.join();
+
+		report(runTag, start, sentEnd, maxLagNanos, countersBefore, gcBefore);
+	}
+
+	private static String fileName(String runTag, int number) {
+		return "load-" + CardGenerator.tag(runTag, number) + ".txt";
+	}
+
+	private String namesFile() throws IOException {
+		String file = "nameextractor.properties";
+		String nested = props.getProperty("extractor.props.name");
+		if (nested != null) {
+			file = nested.trim();
+		}
+		Properties nameProps = new Properties();
+		try (InputStream is = LoadHarness.class.getResourceAsStream("/" + file)) {
+			if (is != null) {
+				nameProps.load(is);
+			}
+		}
+		return nameProps.getProperty("names.db.file", "Names_2010Census.csv").trim();
+	}
+
+	void report(String runTag, long start, long sentEnd, long maxLagNanos,
+			Map<String, Long> countersBefore, GcStats gcBefore) throws Exception {
+		List<Long> ok = new ArrayList<Long>();
+		List<Long> bad = new ArrayList<Long>();
+		// cards that came out other than meant, by number
+		List<Integer> mismatches = new ArrayList<Integer>();
+		int meantCount = 0;
+		long lastDone = start;
+		for (int i=0; i<cards; i++) {
+			if (meantToFail[i]) {
+				meantCount++;
+			}
+			long done = doneNanos.get(i);
+			if (done == 0) {
+				continue;
+			}
+			lastDone = Math.max(lastDone, done);
+			(failed[i] ? bad : ok).add(done - sentNanos[i]);
+			if (failed[i] != meantToFail[i]) {
+				mismatches.add(i);
+			}
+		}
+		int missing = cards - ok.size() - bad.size();
+		double sendSeconds = (sentEnd - start) / 1e9;
+		double runSeconds = (lastDone - start) / 1e9;
+
+		System.out.println();
+		System.out.println(String.format("sent       %d cards (%d meant to fail) in %.1f s, %.1f cards/s offered",
+			cards, meantCount, sendSeconds, cards / sendSeconds));
+		if (maxLagNanos > TimeUnit.MILLISECONDS.toNanos(10)) {
+			System.out.println(String.format("           (sending fell up to %.0f ms behind the target rate)", maxLagNanos / 1e6));
+		}
+		System.out.println(String.format("done       %d in %s, %d in %s, %d missing",
+			ok.size(), outputFile.getFileName(), bad.size(), failedDir.getFileName(), missing));
+		System.out.println(String.format("outcomes   %d meant to fail, %d failed (%+d); %d came out other than meant",
+			meantCount, bad.size(), bad.size() - meantCount, mismatches.size()));
+		for (int i=0; i<mismatches.size() && i<MAX_NAMED_MISMATCHES; i++) {
+			int number = mismatches.get(i);
+			System.out.println("           " + fileName(runTag, number) + ": "
+				+ (meantToFail[number] ? "meant to fail, but was processed" : "meant to be processed, but failed"));
+		}
+		if (mismatches.size() > MAX_NAMED_MISMATCHES) {
+			System.out.println("           ... and " + (mismatches.size() - MAX_NAMED_MISMATCHES) + " more");
+		}
+		System.out.println(String.format("throughput %.1f cards/s (first card sent to last card done, %.1f s)",
+			(ok.size() + bad.size()) / runSeconds, runSeconds));
+		System.out.println("latency    file written -> record in " + outputFile.getFileName() + ": " + percentiles(ok));
+		System.out.println("latency    file written -> file in " + failedDir.getFileName() + ": " + percentiles(bad));
+
+		if (jmx == null) {
+			System.out.println("(no JMX address, so no counters or GC figures)");
+			return;
+		}
+		Map<String, Long> counters = metrics("Counters");
+		System.out.println(String.format("bcp        processed +%d, failed +%d",
+			delta(counters, countersBefore, Metrics.PROCESSED), delta(counters, countersBefore, Metrics.FAILED)));
+		new GcStats(jmx, false).print(gcBefore);
+	}
+
+	private static long delta(Map<String, Long> after, Map<String, Long> before, String name) {
+		Long a = after.get(name);
+		Long b = before.get(name);
+		return (a == null ? 0 : a) - (b == null ? 0 : b);
+	}
+
+	/**
+	 * @return p50, p90, p99, p99.9 and max, in milliseconds
+	 */
+	static String percentiles(List<Long> nanos) {
+		if (nanos.isEmpty()) {
+			return "-";
+		}
+		long[] sorted = new long[nanos.size()];
+		for (int i=0; i<sorted.length; i++) {
+			sorted[i] = nanos.get(i);
+		}
+		Arrays.sort(sorted);
+		return String.format("p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f ms (%d cards)",
+			at(sorted, 0.5), at(sorted, 0.9), at(sorted, 0.99), at(sorted, 0.999),
+			sorted[sorted.length - 1] / 1e6, sorted.length);
+	}
+
+	private static double at(long[] sorted, double fraction) {
+		int i = (int) Math.ceil(fraction * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+	}
+
+	private static String randomLetters(int n) {
+		Random random = new Random();
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<n; i++) {
+			sb.append((char) ('a' + random.nextInt(26)));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Marks a card done, once.
+	 */
+	void done(int number, boolean failure) {
+		if (number < 0 || number >= cards) {
+			return;
+		}
+		if (doneNanos.compareAndSet(number, 0, System.nanoTime())) {
+			failed[number] = failure;
+			(failure ? failedCount : doneCount).incrementAndGet();
+		}
+	}
+
+	/**
+	 * Follows the output file as it grows, looking for cards' tags.
+	 */
+	private final class OutputTail implements Runnable {
+		private final String runTag;
+
+		OutputTail(String runTag) {
+			this.runTag = runTag;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!stopping && !Files.exists(outputFile)) {
+					Thread.sleep(10);
+				}
+				try (FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.READ)) {
+					// only what's written from now on
+					long position = channel.size();
+					ByteBuffer buf = ByteBuffer.allocate(256 * 1024);
+					StringBuilder pending = new StringBuilder();
+					while (!stopping) {
+						buf.clear();
+						int n = channel.read(buf, position);
+						if (n <= 0) {
+							Thread.sleep(2);
+							continue;
+						}
+						position += n;
+						pending.append(new String(buf.array(), 0, n, StandardCharsets.ISO_8859_1));
+						int consumed = scan(pending);
+						pending.delete(0, consumed);
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("unable to follow '" + outputFile + "': " + e.getMessage());
+			} catch (InterruptedException e) {
+				// stop
+			}
+		}
+
+		/**
+		 * @return how much of the text can be forgotten (all but a tag's length at the end)
+		 */
+		private int scan(CharSequence text) {
+			int tagLength = runTag.length() + CardGenerator.TAG_LETTERS;
+			int from = 0;
+			int at;
+			String s = text.toString();
+			while ((at = s.indexOf(runTag, from)) >= 0 && at + tagLength <= s.length()) {
+				done(CardGenerator.number(s.subSequence(at + runTag.length(), at + tagLength)), false);
+				from = at + tagLength;
+			}
+			return Math.max(from, s.length() - tagLength);
+		}
+	}
+
+	/**
+	 * Watches the failed directory for cards that didn't make it.
+	 */
+	private final class FailureWatch implements Runnable {
+		private final String prefix;
+
+		FailureWatch(String runTag) {
+			this.prefix = "load-" + runTag;
+		}
+
+		@Override
+		public void run() {
+			try (WatchService watch = failedDir.getFileSystem().newWatchService()) {
+				failedDir.register(watch, StandardWatchEventKinds.ENTRY_CREATE);
+				while (!stopping) {
+					WatchKey key = watch.poll(100, TimeUnit.MILLISECONDS);
+					if (key == null) {
+						continue;
+					}
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							rescan();
+						} else {
+							seen(((Path) event.context()).getFileName().toString());
+						}
+					}
+					key.reset();
+				}
+			} catch (IOException | ClosedWatchServiceException e) {
+				System.err.println("unable to watch '" + failedDir + "': " + e.getMessage());
+			} catch (InterruptedException e) {
+				// stop
+			}
+		}
+
+		private void rescan() throws IOException {
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(failedDir, prefix + "*")) {
+				for (Path file : files) {
+					seen(file.getFileName().toString());
+				}
+			}
+		}
+
+		private void seen(String name) {
+			int end = prefix.length() + CardGenerator.TAG_LETTERS;
+			if (name.startsWith(prefix) && name.length() >= end) {
+				done(CardGenerator.number(name.substring(prefix.length(), end)), true);
+			}
+		}
+	}
+
+	/**
+	 * Collection counts and times of each of the instance's collectors, and its heap use.
+	 */
+	private static final class GcStats {
+		final Map<String, long[]> collectors = new HashMap<String, long[]>();
+		final MemoryUsage heap;
+		long peakHeap;
+
+		/**
+		 * @param resetPeaks start measuring peak heap use from now
+		 */
+		GcStats(MBeanServerConnection jmx, boolean resetPeaks) throws Exception {
+			for (ObjectName name : jmx.queryNames(new ObjectName(ManagementFactory.GARBAGE_COLLECTOR_MXBEAN_DOMAIN_TYPE + ",*"), null)) {
+				GarbageCollectorMXBean gc = JMX.newMXBeanProxy(jmx, name, GarbageCollectorMXBean.class);
+				collectors.put(gc.getName(), new long[] { gc.getCollectionCount(), gc.getCollectionTime() });
+			}
+			heap = JMX.newMXBeanProxy(jmx, new ObjectName(ManagementFactory.MEMORY_MXBEAN_NAME), MemoryMXBean.class)
+				.getHeapMemoryUsage();
+			for (ObjectName name : jmx.queryNames(new ObjectName(ManagementFactory.MEMORY_POOL_MXBEAN_DOMAIN_TYPE + ",*"), null)) {
+				MemoryPoolMXBean pool = JMX.newMXBeanProxy(jmx, name, MemoryPoolMXBean.class);
+				if (pool.getType() == MemoryType.HEAP) {
+					if (resetPeaks) {
+						pool.resetPeakUsage();
+					} else if (pool.getPeakUsage() != null) {
+						peakHeap += pool.getPeakUsage().getUsed();
+					}
+				}
+			}
+		}
+
+		void print(GcStats before) {
+			for (Map.Entry<String, long[]> gc : collectors.entrySet()) {
+				long[] then = before.collectors.get(gc.getKey());
+				long count = gc.getValue()[0] - (then == null ? 0 : then[0]);
+				long millis = gc.getValue()[1] - (then == null ? 0 : then[1]);
+				System.out.println(String.format("gc         %s: %d collections, %d ms", gc.getKey(), count, millis));
+			}
+			System.out.println(String.format("heap       %.0f MB used, %.0f MB committed, %.0f MB max; peak %.0f MB during the run",
+				mb(heap.getUsed()), mb(heap.getCommitted()), mb(heap.getMax()), mb(peakHeap)));
+		}
+
+		private static double mb(long bytes) {
+			return bytes / (1024.0 * 1024.0);
+		}
+	}
+}
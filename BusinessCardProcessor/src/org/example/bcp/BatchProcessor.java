@@ -0,0 +1,215 @@
+package org.example.bcp;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.example.bcp.metrics.Metrics;
+import org.example.bcp.util.ArchiveReader;
+import org.example.bcp.util.CardReader;
+
+/**
+ * Offline alternative to the directory watcher, for backfills. Streams every card in a
+ * directory tree or archive through the parser on all workers and appends the results
+ * to the usual output file, in a single pass. Input files are left where they are.
+ * 
+ * Cards that can't be processed are listed, with the reason, in a failures file (property
+ * 'bcp.batch.failures.file', defaults to 'batch-failures.txt'). Throughput and failure
+ * totals are printed at the end.
+ * @author astein
+ *
+ */
+class BatchProcessor {
+	
+	static final String FAILURES_FILE_KEY = "bcp.batch.failures.file";
+	static final String DEFAULT_FAILURES_FILE = "batch-failures.txt";
+	
+	/**
+	 * A card waiting to be parsed: either an archive entry that's already been read, or
+	 * a file for the worker to read.
+	 */
+	private static class Item {
+		final String name;
+		final byte[] data;
+		final Path file;
+		
+		Item(String name, byte[] data, Path file) {
+			this.name = name;
+			this.data = data;
+			this.file = file;
+		}
+	}
+	
+	// tells a worker that there's nothing more coming
+	private static final Item POISON = new Item(null, null, null);
+	
+	private final BusinessCardProcessor processor;
+	private final BlockingQueue<Item> queue;
+	private final Thread[] workers;
+	private final PrintWriter failures;
+	
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final LongAdder processedCount = Metrics.get().counter(Metrics.PROCESSED);
+	private final LongAdder failedCount = Metrics.get().counter(Metrics.FAILED);
+	// how many failures there were for each reason
+	private final Map<String, Long> failureReasons = new TreeMap<String, Long>();
+	
+	/**
+	 * @param processor supplies the parser and output writer, configured as usual
+	 * @param props
+	 * @throws IOException
+	 * @throws RecordProcessingException if properties are malformed
+	 */
+	BatchProcessor(BusinessCardProcessor processor, Properties props) throws IOException, RecordProcessingException {
+		this.processor = processor;
+		
+		int workerCount = PropertiesLoader.getIntProperty(props, ProcessingEngine.WORKERS_KEY, Runtime.getRuntime().availableProcessors());
+		int capacity = PropertiesLoader.getIntProperty(props, ProcessingEngine.QUEUE_CAPACITY_KEY, ProcessingEngine.DEFAULT_QUEUE_CAPACITY);
+		queue = new ArrayBlockingQueue<Item>(capacity);
+		
+		ThreadFactory factory = ProcessingEngine.createThreadFactory(
+			props.getProperty(ProcessingEngine.EXECUTOR_KEY, ProcessingEngine.PLATFORM_EXECUTOR));
+		workers = new Thread[workerCount];
+		for (int i=0; i<workerCount; i++) {
+			workers[i] = factory.newThread(new Worker());
+		}
+		
+		Path failuresFile = Paths.get(props.getProperty(FAILURES_FILE_KEY, DEFAULT_FAILURES_FILE));
+		failures = new PrintWriter(Files.newBufferedWriter(failuresFile, StandardCharsets.UTF_8,
+			StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+	}
+	
+	/**
+	 * Processes everything in the input, then prints totals.
+	 * @param input directory, zip or tar(.gz) file
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	void run(Path input) throws IOException, InterruptedException {
+		System.out.println("batch processing '" + input + "' on " + workers.length + " worker(s)...");
+		long startNanos = System.nanoTime();
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		
+		try {
+			ArchiveReader.read(input, processor.cardReader.getMaxBytes(), new ArchiveReader.EntryHandler() {
+				@Override
+				public void file(String name, Path file) throws InterruptedException {
+					queue.put(new Item(name, null, file));
+				}
+				
+				@Override
+				public void entry(String name, byte[] data) throws InterruptedException {
+					queue.put(new Item(name, data, null));
+				}
+				
+				@Override
+				public void tooLarge(String name, long size) {
+					fail(new Item(name, null, null), "unable to read: " + processor.cardReader.tooLarge(name, size).getMessage());
+				}
+			});
+		} finally {
+			for (int i=0; i<workers.length; i++) {
+				queue.put(POISON);
+			}
+			for (Thread worker : workers) {
+				worker.join();
+			}
+			processor.output.flush();
+			failures.close();
+		}
+		
+		printTotals(System.nanoTime() - startNanos);
+	}
+	
+	private void printTotals(long elapsedNanos) {
+		long ok = processed.get();
+		long bad = failed.get();
+		double seconds = elapsedNanos / 1e9;
+		System.out.println();
+		System.out.println("batch complete: " + (ok + bad) + " card(s) in " + String.format("%.1f", seconds) + "s, "
+			+ String.format("%.0f", (ok + bad) / Math.max(seconds, 1e-9)) + " cards/s");
+		System.out.println("  processed: " + ok);
+		System.out.println("  failed:    " + bad);
+		if (processor.cache != null) {
+			Map<String, Long> counters = Metrics.get().getCounters();
+			long hits = counters.get("cache.hits");
+			long misses = counters.get("cache.misses");
+			System.out.println("  result cache: " + hits + " hit(s), " + misses + " miss(es), "
+				+ String.format("%.1f", 100.0 * hits / Math.max(1, hits + misses)) + "% hit rate");
+		}
+		synchronized (failureReasons) {
+			for (Map.Entry<String, Long> reason : failureReasons.entrySet()) {
+				System.out.println("    " + reason.getValue() + " x " + reason.getKey());
+			}
+		}
+	}
+	
+	private void fail(Item item, String reason) {
+		failed.incrementAndGet();
+		failedCount.increment();
+		synchronized (failureReasons) {
+			Long count = failureReasons.get(reason);
+			failureReasons.put(reason, count == null ? 1 : count + 1);
+		}
+		synchronized (failures) {
+			failures.println(item.name + "\t" + reason);
+		}
+	}
+	
+	private class Worker implements Runnable {
+		@Override
+		public void run() {
+			while (true) {
+				Item item;
+				try {
+					item = queue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (item == POISON) {
+					return;
+				}
+				
+				CardReader.Card rawData;
+				try {
+					rawData = item.data != null
+						? processor.cardReader.decode(item.data, item.name)
+						: processor.cardReader.read(item.file);
+				} catch (IOException e) {
+					fail(item, "unable to read: " + e.getMessage());
+					continue;
+				}
+				
+				try (CardReader.Card card = rawData) {
+					ParseResult result = processor.parse(card);
+					if (result.isFailure()) {
+						fail(item, result.getReason());
+						continue;
+					}
+					processor.handleContactInfo(card, result.getContactInfo());
+					processed.incrementAndGet();
+					processedCount.increment();
+				} catch (IOException e) {
+					fail(item, "unable to write output: " + e.getMessage());
+				} catch (RuntimeException e) {
+					fail(item, "unexpected error: " + e);
+				}
+			}
+		}
+	}
+}
@@ -2,27 +2,46 @@ package org.example.bcp;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.zip.CRC32;
 
 import org.example.bcp.email.EmailExtractor;
+import org.example.bcp.metrics.LatencyHistogram;
+import org.example.bcp.metrics.Metrics;
 import org.example.bcp.name.NameExtractor;
 import org.example.bcp.phone.PhoneNumberExtractor;
 
 /**
  * Converts the raw text from machine-read business cards into structured data.
+ *
+ * Each card is scanned once: the features of each line (see {@link LineFeatures}) are
+ * worked out, and the line is offered only to the extractors that could find their field
+ * in it, and that haven't already settled on one. Extractors are found with
+ * {@link ServiceLoader}; see {@link LineFeatureExtractor}.
  * @author astein
  *
  */
 public class BusinessCardParser {
-	
+
 	Properties props;
-	
-	EmailExtractor emailEx = new EmailExtractor();
-	PhoneNumberExtractor phoneEx = new PhoneNumberExtractor();
-	NameExtractor nameEx;
-	
+
+	// the name, phone and email extractors come first, in that order, so that a card
+	// missing more than one of them is reported the way it always has been. any extra
+	// extractors follow, in the order they were found.
+	LineFeatureExtractor[] extractors;
+	LatencyHistogram[] extractorTimes;
+	// what the extractors look things up in
+	ResourceReloader resources;
+	private static final int REQUIRED_EXTRACTORS = 3;
+
+	// how long each step of parsing takes
+	LatencyHistogram splitLinesTime = Metrics.get().histogram("parse.splitLines");
+
 	/**
 	 * @param props should contain any sub-properties for whatever extractors may need them
 	 * @throws FileNotFoundException
@@ -31,47 +50,222 @@ public class BusinessCardParser {
 	 */
 	public BusinessCardParser(Properties props) throws FileNotFoundException, IOException, RecordProcessingException {
 		this.props = props;
-		nameEx = new NameExtractor(props);
+		extractors = loadExtractors();
+		extractorTimes = new LatencyHistogram[extractors.length];
+		for (int i=0; i<extractors.length; i++) {
+			extractors[i].init(props);
+			extractorTimes[i] = Metrics.get().histogram("extract." + extractors[i].getFieldName());
+		}
+		resources = ResourceReloader.of(props);
+	}
+	
+	/**
+	 * Stops checking the extractors' resource files for changes. Cards can still be
+	 * parsed afterwards, with what's been loaded.
+	 */
+	public void close() {
+		resources.close();
+	}
+
+	/**
+	 * Finds all the extractors on the class path, and puts them in order.
+	 * @return
+	 * @throws RecordProcessingException if one can't be loaded, or a required one is missing
+	 */
+	private static LineFeatureExtractor[] loadExtractors() throws RecordProcessingException {
+		String[] required = { NameExtractor.FIELD_NAME, PhoneNumberExtractor.FIELD_NAME, EmailExtractor.FIELD_NAME };
+		LineFeatureExtractor[] first = new LineFeatureExtractor[REQUIRED_EXTRACTORS];
+		List<LineFeatureExtractor> extras = new ArrayList<LineFeatureExtractor>();
+		List<String> fieldNames = new ArrayList<String>();
+
+		try {
+			for (LineFeatureExtractor extractor : ServiceLoader.load(LineFeatureExtractor.class)) {
+				String fieldName = extractor.getFieldName();
+				if (fieldName == null || fieldName.isEmpty() || fieldNames.contains(fieldName)) {
+					throw new RecordProcessingException(
+						"extractor " + extractor.getClass().getName() + " has a missing or duplicate field name '" + fieldName + "'");
+				}
+				fieldNames.add(fieldName);
+
+				int slot = -1;
+				for (int i=0; i<required.length; i++) {
+					if (required[i].equals(fieldName)) {
+						slot = i;
+					}
+				}
+				if (slot >= 0) {
+					first[slot] = extractor;
+				} else {
+					extras.add(extractor);
+				}
+			}
+		} catch (ServiceConfigurationError e) {
+			throw new RecordProcessingException("unable to load field extractors, due to error: '" + e.getMessage() + "'");
+		}
+
+		for (int i=0; i<REQUIRED_EXTRACTORS; i++) {
+			if (first[i] == null) {
+				throw new RecordProcessingException("no extractor found for the '" + required[i] + "' field");
+			}
+		}
+
+		List<LineFeatureExtractor> all = new ArrayList<LineFeatureExtractor>();
+		for (LineFeatureExtractor extractor : first) {
+			all.add(extractor);
+		}
+		all.addAll(extras);
+		return all.toArray(new LineFeatureExtractor[all.size()]);
 	}
 
 	/**
 	 * Main entry point to access this class's functionality.
 	 * @param document The raw text of a business card. The only formatting requirement
 	 * for this parameter is that each element of information (e.g. name, email...) be
-	 * on a separate line (i.e separated by carriage return or CRLF)
+	 * on a separate line (i.e separated by carriage return or CRLF). Lines are looked at
+	 * in place, as views of the document, rather than copied out of it.
+	 * @return the parsed, normalized data, or which required field couldn't be found
+	 */
+	public ParseResult parse(CharSequence document) {
+		long start = System.nanoTime();
+		List<CharSequence> lines = splitLines(document);
+		splitLinesTime.recordSince(start);
+
+		int count = extractors.length;
+		FieldMatcher[] matchers = new FieldMatcher[count];
+		boolean[] settled = new boolean[count];
+		long[] nanos = new long[count];
+		for (int i=0; i<count; i++) {
+			matchers[i] = extractors[i].newMatcher();
+		}
+
+		LineFeatures features = new LineFeatures();
+		int unsettled = count;
+		for (int l=0; l<lines.size() && unsettled > 0; l++) {
+			CharSequence line = lines.get(l);
+			features.compute(line);
+			for (int i=0; i<count; i++) {
+				if (settled[i]) {
+					continue;
+				}
+				start = System.nanoTime();
+				try {
+					if (extractors[i].accepts(features) && matchers[i].offer(line, features)) {
+						settled[i] = true;
+						unsettled--;
+					}
+				} catch (RecordProcessingException e) {
+					if (i < REQUIRED_EXTRACTORS) {
+						return ParseResult.missing(extractors[i].getFieldName(), e.getMessage());
+					}
+					settled[i] = true;
+					unsettled--;
+				} finally {
+					nanos[i] += System.nanoTime() - start;
+				}
+			}
+		}
+
+		String[] fields = new String[count];
+		for (int i=0; i<count; i++) {
+			start = System.nanoTime();
+			String reason = null;
+			try {
+				fields[i] = matchers[i].getField();
+			} catch (RecordProcessingException e) {
+				// from an extractor that still reports a missing field by throwing
+				reason = e.getMessage();
+			} finally {
+				extractorTimes[i].record(nanos[i] + System.nanoTime() - start);
+			}
+			// extra fields are optional
+			if (fields[i] == null && i < REQUIRED_EXTRACTORS) {
+				if (reason == null) {
+					reason = matchers[i].getMissingReason();
+				}
+				String field = extractors[i].getFieldName();
+				return ParseResult.missing(field, reason != null ? reason : "no " + field + " found in OCR record");
+			}
+		}
+
+		ContactInfo info = new ContactInfo(fields[0], fields[1], fields[2]);
+		for (int i=REQUIRED_EXTRACTORS; i<count; i++) {
+			if (fields[i] != null) {
+				info.setExtraField(extractors[i].getFieldName(), fields[i]);
+			}
+		}
+		return ParseResult.of(info);
+	}
+
+	/**
+	 * Like {@link #parse(CharSequence)}, but a card that can't be parsed is an exception.
+	 * @param document
 	 * @return a ContactInfo instance containing the parsed, normalized data.
-	 * @throws RecordProcessingException
+	 * @throws RecordProcessingException if a required field couldn't be found
 	 */
-	public ContactInfo getContactInfo(String document) throws RecordProcessingException {
-		List<String> lines = splitLines(document);
-		
-		String name = nameEx.getField(lines);
-		String phone = phoneEx.getField(lines);
-		String email = emailEx.getField(lines);
-		// extractors can be added here
-		
-		return new ContactInfo(name, phone, email);
+	public ContactInfo getContactInfo(CharSequence document) throws RecordProcessingException {
+		ParseResult result = parse(document);
+		if (result.isFailure()) {
+			throw new RecordProcessingException(result.getReason());
+		}
+		return result.getContactInfo();
 	}
-	
+
+	/**
+	 * @return a number that changes whenever an extractor's dictionaries are reloaded, so
+	 * that the same card might now be parsed differently
+	 */
+	public long generation() {
+		long generation = 0;
+		for (LineFeatureExtractor extractor : extractors) {
+			generation += extractor.generation();
+		}
+		return generation;
+	}
+
+	/**
+	 * @return a number that identifies the extractors in use (which ones, in which order)
+	 * and what they look things up in; cards parsed with a different fingerprint might be
+	 * parsed differently now
+	 */
+	public long fingerprint() {
+		CRC32 crc = new CRC32();
+		for (LineFeatureExtractor extractor : extractors) {
+			crc.update((extractor.getClass().getName() + ':' + extractor.fingerprint() + ';').getBytes(StandardCharsets.UTF_8));
+		}
+		return crc.getValue();
+	}
+
 	/**
 	 * Converts a document into a list of lines of text. Removes empty lines.
-	 * Trims leading and trailing white-space from the lines.
+	 * Trims leading and trailing white-space from the lines (which takes care of
+	 * the '\r' of a CRLF), the way String.trim() does.
 	 * @param document
-	 * @return
+	 * @return views of the lines (copies, if the document is a String)
 	 */
-	private List<String> splitLines(String document) {
-		document = document.replaceAll("\r\n", "\n");
-		String [] lines = document.split("\n");
-		
-		List<String> cleanLines = new ArrayList<String>();
-		
-		for (int i=0; i<lines.length; i++) {
-			String line = lines[i].trim();
-			if (line.length() > 0) {
-				cleanLines.add(line);
+	private List<CharSequence> splitLines(CharSequence document) {
+		List<CharSequence> cleanLines = new ArrayList<CharSequence>();
+
+		int start = 0;
+		int length = document.length();
+		while (start <= length) {
+			int end = start;
+			while (end < length && document.charAt(end) != '\n') {
+				end++;
 			}
+			int lineStart = start;
+			int lineEnd = end;
+			while (lineStart < lineEnd && document.charAt(lineStart) <= ' ') {
+				lineStart++;
+			}
+			while (lineEnd > lineStart && document.charAt(lineEnd - 1) <= ' ') {
+				lineEnd--;
+			}
+			if (lineStart < lineEnd) {
+				cleanLines.add(document.subSequence(lineStart, lineEnd));
+			}
+			start = end + 1;
 		}
-		
+
 		return cleanLines;
 	}
 }
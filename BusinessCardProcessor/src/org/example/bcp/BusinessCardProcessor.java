@@ -1,20 +1,50 @@
 package org.example.bcp;
 
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
-import java.nio.file.FileSystems;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.nio.file.StandardOpenOption;
-import java.nio.file.StandardWatchEventKinds;
-import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+
+import org.example.bcp.archive.InputArchive;
+import org.example.bcp.cache.ContentKey;
+import org.example.bcp.cache.ResultCache;
+import org.example.bcp.journal.ProcessingJournal;
+import org.example.bcp.metrics.LatencyHistogram;
+import org.example.bcp.metrics.Metrics;
+import org.example.bcp.output.GroupCommitWriter;
+import org.example.bcp.store.ContactStore;
+import org.example.bcp.util.CardReader;
+import org.example.bcp.util.ContainerReader;
 
 /**
  * Main method lives here. This class manages overall inputs, b-card
@@ -26,6 +56,22 @@ import java.util.Properties;
  * 
  * When running, a properties file must be provided on the command line. That file must
  * contain the properties 'bcp.rawdata.dir', 'bcp.processed.dir' and 'bcp.failed.dir'.
+ * 
+ * Startup is staged so that a restart with a big backlog gets going quickly: the
+ * directories are watched (and their backlogs listed and queued) straight away, while
+ * the names database, the contacts store, the result cache and the rest are loaded in
+ * parallel in the background. The workers start once all of that is ready. Readiness is
+ * reported as the startup.ready gauge (and, optionally, a file), and how long it took to
+ * get there and to get the first card done as startup.readyMillis and
+ * startup.firstCardMillis, both counted from JVM start.
+ * 
+ * A card file is only moved out of the watched directory once its output has been
+ * written (and forced to disk, unless bcp.output.fsync is 'none'), see {@link Committer},
+ * so a crash can't lose the output of a card whose file is gone. If a journal is
+ * configured (bcp.journal.file), each card file's progress is also recorded in it.
+ * After a crash, a file whose output was written is just moved on, and output written
+ * for a file that wasn't is cut out of the output file, so no card is written twice
+ * either.
  * @author astein
  *
  */
@@ -35,8 +81,16 @@ public class BusinessCardProcessor {
 	
 	static final String DEFAULT_PROPS_FILE = "bcp.properties";
 	
-	static Path watchDir;
+	static final long SHUTDOWN_TIMEOUT_MILLIS = 10000;
+	
+	static final String BATCH_ARG = "--batch";
+	
+	// one or more directories (comma-separated), each a shard with its own watcher, queue
+	// and workers; with bcp.rawdata.shards > 0, each is split into that many sub-directories
+	static List<Path> watchDirs;
 	static final String RAW_DIR_KEY = "bcp.rawdata.dir";
+	static final String RAW_SHARDS_KEY = "bcp.rawdata.shards";
+	static final String SHARD_DIR_PREFIX = "shard-";
 	
 	static Path processedDir;
 	static final String PROCESSED_DIR_KEY = "bcp.processed.dir";
@@ -44,150 +98,882 @@ public class BusinessCardProcessor {
 	static Path failedDir;
 	static final String FAILED_DIR_KEY = "bcp.failed.dir";
 	
+	// why cards failed, one JSON line each; by default next to the failed directory
+	static final String QUARANTINE_FILE_KEY = "bcp.quarantine.file";
+	static final String QUARANTINE_MAX_PER_SECOND_KEY = "bcp.quarantine.max.per.second";
+	
 	static Path outputFile;
 	static final String OUTPUT_FILE_KEY = "bcp.output.file";
 	
+	static final String OUTPUT_BUFFER_BYTES_KEY = "bcp.output.buffer.bytes";
+	static final String OUTPUT_BUFFERS_KEY = "bcp.output.buffers";
+	static final String OUTPUT_FLUSH_MILLIS_KEY = "bcp.output.flush.millis";
+	static final String OUTPUT_FSYNC_KEY = "bcp.output.fsync";
+	
+	// what card files are written in (unless they start with a byte order mark), and
+	// how big one may be
+	static final String INPUT_CHARSET_KEY = "bcp.input.charset";
+	static final String INPUT_MAX_BYTES_KEY = "bcp.input.max.bytes";
+	
+	// container files hold many cards each, see processContainer
+	static final String CONTAINER_SUFFIX_KEY = "bcp.container.suffix";
+	static final String CONTAINER_DELIMITER_KEY = "bcp.container.delimiter";
+	static final String JSONL_SUFFIX_KEY = "bcp.container.jsonl.suffix";
+	static final String JSON_FIELD_KEY = "bcp.container.json.field";
+	
+	// where parsed contacts are stored, and how
+	static final String STORE_DIR_KEY = "bcp.store.dir";
+	static final String STORE_SEGMENT_BYTES_KEY = "bcp.store.segment.bytes";
+	static final String STORE_COMPACT_SECONDS_KEY = "bcp.store.compact.seconds";
+	static final String STORE_COMPACT_GARBAGE_KEY = "bcp.store.compact.garbage.percent";
+	
+	// remembering the results of cards that have already been parsed
+	static final String CACHE_ENTRIES_KEY = "bcp.cache.entries";
+	static final String CACHE_MAX_MB_KEY = "bcp.cache.max.mb";
+	static final String CACHE_FILE_KEY = "bcp.cache.file";
+	
+	// 'move' processed and failed input files into their directories one by one, or
+	// 'archive' them into rolling archive segments there
+	static final String ARCHIVE_MODE_KEY = "bcp.archive.mode";
+	static final String ARCHIVE_SEGMENT_MB_KEY = "bcp.archive.segment.mb";
+	static final String ARCHIVE_ROLL_MINUTES_KEY = "bcp.archive.roll.minutes";
+	
+	// where the progress of each card is journaled, so that a restart after a crash
+	// neither loses nor repeats output; empty for no journal. it's rewritten with just
+	// the cards in flight once it has grown by bcp.journal.rewrite.bytes
+	static final String JOURNAL_FILE_KEY = "bcp.journal.file";
+	static final String JOURNAL_REWRITE_BYTES_KEY = "bcp.journal.rewrite.bytes";
+	
+	// created once the workers have started, and deleted at shutdown; empty for none
+	static final String READY_FILE_KEY = "bcp.ready.file";
+	
+	// how often to print metrics to stdout, 0 for never
+	static final String METRICS_DUMP_SECONDS_KEY = "bcp.metrics.dump.seconds";
+	
 	Properties props;
+	
+	ProcessingEngine engine;
+	
+	CardReader cardReader;
+	
+	GroupCommitWriter output;
+	
+	// null unless there's a journal
+	ProcessingJournal journal;
+	// in --batch mode, the lock on the journal (if any), held while the output is written
+	private Closeable journalLock;
+	// null unless files are being watched
+	private Committer committer;
+	
+	ContactStore store;
+	
+	// null if caching is turned off
+	ResultCache cache;
+	Path cacheFile;
+	// the parser generation that the cached results came from
+	private volatile long cacheGeneration;
+	
+	// null in batch mode
+	QuarantineLog quarantine;
+	
+	// null unless input files are being archived
+	InputArchive processedArchive;
+	InputArchive failedArchive;
+	
+	LongAdder processedCount = Metrics.get().counter(Metrics.PROCESSED);
+	LongAdder failedCount = Metrics.get().counter(Metrics.FAILED);
+	LongAdder recoveredCount = Metrics.get().counter("journal.recovered");
+	LatencyHistogram readTime = Metrics.get().histogram("io.read");
+	LatencyHistogram cleanUpTime = Metrics.get().histogram("io.cleanUp");
+	static final LatencyHistogram writeTime = Metrics.get().histogram("io.outputWrite");
+	
+	// milliseconds since JVM start at which the workers started, and the first card was
+	// done; -1 until then
+	private final AtomicLong readyMillis = new AtomicLong(-1);
+	private final AtomicLong firstCardMillis = new AtomicLong(-1);
+	private Path readyFile;
+	
+	// null unless cards are also taken over HTTP
+	private IngestServer server;
 
-	public BusinessCardProcessor(Properties props) throws FileNotFoundException, IOException, RecordProcessingException {
+	/**
+	 * Only sets up what's quick to set up; nothing can be processed until {@link #load()}
+	 * has been called.
+	 * @param props
+	 * @throws RecordProcessingException if properties are malformed
+	 */
+	public BusinessCardProcessor(Properties props) throws RecordProcessingException {
 		this.props = props;
-		this.cardParser = new BusinessCardParser(this.props);
+		this.engine = new ProcessingEngine(this, this.props, watchDirs == null ? 1 : watchDirs.size());
+		this.cardReader = openCardReader(this.props);
+		
+		Metrics.get().gauge("startup.ready", () -> readyMillis.get() < 0 ? 0 : 1);
+		Metrics.get().gauge("startup.readyMillis", () -> readyMillis.get());
+		Metrics.get().gauge("startup.firstCardMillis", () -> firstCardMillis.get());
 	}
-
+	
 	/**
-	 * Main processing loop. Watches a directory for files that contain newly-OCR'd, raw
-	 * business card text files and processes each one in turn.
+	 * Loads everything that processing cards needs: the parser (and its names database),
+	 * the contacts store and the result cache are loaded in parallel, and the journal, the
+	 * output file and archives are opened meanwhile. Blocks until it's all done.
+	 * @throws FileNotFoundException
 	 * @throws IOException
+	 * @throws RecordProcessingException if properties are malformed
 	 */
-	private void doProcessing() throws IOException {
-		// process any files that are already waiting in the watched dir
-		catchUp();
-		
-		// *************************
-		// race condition lives here
-		// *************************
-		
-		// WatchService management code cribbed (but then heavily
-		// modified) from an example at
-		// http://www.codejava.net/java-se/file-io/file-change-notification-example-with-watch-service-api
-		WatchService watch = FileSystems.getDefault().newWatchService();
-		watchDir.register(watch, StandardWatchEventKinds.ENTRY_CREATE);
-		
-		System.out.println("watching directory '" + watchDir + "' for new business cards to process...\n");
-		
-		while (true) {
-			WatchKey watchKey;
-			try {
-				// block on directory events
-				watchKey = watch.take();
-			} catch (InterruptedException ex) {
-				System.out.println("got interrupt, stopping work...");
-				return;
+	void load() throws FileNotFoundException, IOException, RecordProcessingException {
+		long start = System.nanoTime();
+		ExecutorService loaders = Executors.newFixedThreadPool(3, new ThreadFactory() {
+			int count;
+			
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "bcp-loader-" + count++);
+				thread.setDaemon(true);
+				return thread;
 			}
-
-			for (WatchEvent<?> event : watchKey.pollEvents()) {
-				// get event type
-				WatchEvent.Kind<?> kind = event.kind();
-
-				// get file name
-				@SuppressWarnings("unchecked")
-				WatchEvent<Path> ev = (WatchEvent<Path>) event;
-				Path fileName = watchDir.resolve(ev.context());
-
-				if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
-					System.out.println("processing file: " + fileName);
-					if (!Files.isDirectory(fileName, LinkOption.NOFOLLOW_LINKS) &&
-						!Files.isSymbolicLink(fileName)) {
-						processFile(fileName);
-					} else {
-						System.out.println("file '" + fileName + "' is not a processable file");
-						continue;
-					}
-
-				} else {
-					System.err.println("got an unexpected watch event");
+		});
+		try {
+			Future<BusinessCardParser> parser = loaders.submit(new Callable<BusinessCardParser>() {
+				@Override
+				public BusinessCardParser call() throws IOException, RecordProcessingException {
+					return new BusinessCardParser(props);
+				}
+			});
+			Future<ContactStore> contactStore = loaders.submit(new Callable<ContactStore>() {
+				@Override
+				public ContactStore call() throws IOException, RecordProcessingException {
+					return openStore(props);
+				}
+			});
+			Future<Void> resultCache = loaders.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws RecordProcessingException {
+					openCache(props);
+					return null;
 				}
+			});
+			
+			// the journal first, since replaying it may cut unaccounted output off. a batch
+			// run doesn't journal its cards, but keeps anything else off the output meanwhile
+			if (processedDir != null) {
+				this.journal = openJournal(this.props);
+			} else {
+				this.journalLock = lockJournal(this.props);
 			}
-
-			boolean valid = watchKey.reset();
-			if (!valid) {
-				break;
+			this.output = openOutput(this.props);
+			openArchives(this.props);
+			openQuarantine(this.props);
+			if (processedDir != null) {
+				committer = new Committer();
+			}
+			this.store = await(contactStore);
+			await(resultCache);
+			this.cardParser = await(parser);
+			this.cacheGeneration = cardParser.generation();
+			if (cache != null) {
+				cache.checkFingerprint(cardParser.fingerprint());
+			}
+		} finally {
+			loaders.shutdownNow();
+		}
+		System.out.println("loaded in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+	
+	/**
+	 * @return what a loader came up with, or whatever it threw
+	 */
+	private static <T> T await(Future<T> future) throws IOException, RecordProcessingException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while loading");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RecordProcessingException) {
+				throw (RecordProcessingException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+	
+	/**
+	 * Notes that the workers have started, and says so (in the ready file too, if there is one).
+	 */
+	private void markReady() {
+		readyMillis.set(ManagementFactory.getRuntimeMXBean().getUptime());
+		System.out.println("ready, " + readyMillis.get() + " ms after JVM start");
+		String file = props.getProperty(READY_FILE_KEY, "").trim();
+		if (!file.isEmpty()) {
+			readyFile = Paths.get(file);
+			try {
+				Files.write(readyFile, ("ready " + readyMillis.get() + "\n").getBytes(StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				System.err.println("unable to write ready file '" + readyFile + "', due to error: '" + e.getMessage() + "'");
 			}
 		}
 	}
 	
 	/**
-	 * Processes all of the (regular) files in the watched directory
+	 * @return whether cards can be processed yet
+	 */
+	boolean isReady() {
+		return readyMillis.get() >= 0;
+	}
+	
+	/**
+	 * Called by the workers each time they're done with a card, to time the first one.
+	 */
+	void cardDone() {
+		if (firstCardMillis.get() < 0
+				&& firstCardMillis.compareAndSet(-1, ManagementFactory.getRuntimeMXBean().getUptime())) {
+			System.out.println("first card done, " + firstCardMillis.get() + " ms after JVM start");
+		}
+	}
+	
+	/**
+	 * In archive mode, opens the archives that processed and failed input files go into.
+	 * Not used in batch mode, where input files are left where they are.
+	 * @param props
+	 * @throws IOException
+	 * @throws RecordProcessingException if the archive properties are malformed
+	 */
+	private void openArchives(Properties props) throws IOException, RecordProcessingException {
+		String mode = props.getProperty(ARCHIVE_MODE_KEY, "move").trim();
+		if ("move".equals(mode) || processedDir == null) {
+			return;
+		}
+		if (!"archive".equals(mode)) {
+			throw new RecordProcessingException("value of " + ARCHIVE_MODE_KEY + " must be 'move' or 'archive'");
+		}
+		long segmentBytes = PropertiesLoader.getIntProperty(props, ARCHIVE_SEGMENT_MB_KEY, 256) * 1024L * 1024L;
+		long rollMillis = PropertiesLoader.getIntProperty(props, ARCHIVE_ROLL_MINUTES_KEY, 1440, 0) * 60L * 1000L;
+		processedArchive = new InputArchive(processedDir, segmentBytes, rollMillis);
+		failedArchive = new InputArchive(failedDir, segmentBytes, rollMillis);
+	}
+	
+	/**
+	 * Opens the log of why cards failed. Not used in batch mode, where there's no failed
+	 * directory.
+	 * @param props
+	 * @throws IOException
+	 * @throws RecordProcessingException if the quarantine properties are malformed
+	 */
+	private void openQuarantine(Properties props) throws IOException, RecordProcessingException {
+		if (failedDir == null) {
+			return;
+		}
+		String file = props.getProperty(QUARANTINE_FILE_KEY, "").trim();
+		quarantine = new QuarantineLog(
+			file.isEmpty() ? failedDir.toAbsolutePath().resolveSibling("quarantine.log") : Paths.get(file),
+			PropertiesLoader.getIntProperty(props, QUARANTINE_MAX_PER_SECOND_KEY, 100, 0));
+	}
+	
+	/**
+	 * Sets up the result cache, loading it from its file if it's persisted.
+	 * @param props
+	 * @throws RecordProcessingException if the cache properties are malformed
+	 */
+	private void openCache(Properties props) throws RecordProcessingException {
+		int entries = PropertiesLoader.getIntProperty(props, CACHE_ENTRIES_KEY, 100000, 0);
+		if (entries == 0) {
+			return;
+		}
+		cache = new ResultCache(entries, PropertiesLoader.getIntProperty(props, CACHE_MAX_MB_KEY, 64) * 1024L * 1024L);
+		String file = props.getProperty(CACHE_FILE_KEY, "").trim();
+		if (!file.isEmpty()) {
+			cacheFile = Paths.get(file);
+			cache.load(cacheFile);
+		}
+	}
+	
+	/**
+	 * Opens the contacts store and starts its background compaction.
+	 * @param props
+	 * @return
 	 * @throws IOException
+	 * @throws RecordProcessingException if the store properties are malformed
 	 */
-	private void catchUp() throws IOException {
-		try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(watchDir, Files::isRegularFile)) {
-			for (Path file : dirStream) {
-				System.out.println("processing file: " + file + "\n");
-				processFile(file);
+	private static ContactStore openStore(Properties props) throws IOException, RecordProcessingException {
+		ContactStore store = new ContactStore(
+			Paths.get(props.getProperty(STORE_DIR_KEY, "contacts-db")),
+			PropertiesLoader.getIntProperty(props, STORE_SEGMENT_BYTES_KEY, 64 * 1024 * 1024));
+		int compactSeconds = PropertiesLoader.getIntProperty(props, STORE_COMPACT_SECONDS_KEY, 300, 0);
+		if (compactSeconds > 0) {
+			store.startCompacting(compactSeconds, PropertiesLoader.getIntProperty(props, STORE_COMPACT_GARBAGE_KEY, 50));
+		}
+		return store;
+	}
+	
+	/**
+	 * Sets up the pooled buffers that card files are read through.
+	 * @param props
+	 * @return
+	 * @throws RecordProcessingException if the input properties are malformed
+	 */
+	private static CardReader openCardReader(Properties props) throws RecordProcessingException {
+		String charsetName = props.getProperty(INPUT_CHARSET_KEY, "UTF-8").trim();
+		Charset charset;
+		try {
+			charset = Charset.forName(charsetName);
+		} catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+			throw new RecordProcessingException("value of " + INPUT_CHARSET_KEY + " must be a supported charset, not '" + charsetName + "'");
+		}
+		return new CardReader(charset, PropertiesLoader.getIntProperty(props, INPUT_MAX_BYTES_KEY, 1024 * 1024));
+	}
+	
+	/**
+	 * Opens (and replays) the journal, if there is one.
+	 * @param props
+	 * @return the journal, or null if there isn't meant to be one
+	 * @throws IOException
+	 * @throws RecordProcessingException if the journal properties are malformed
+	 */
+	private static ProcessingJournal openJournal(Properties props) throws IOException, RecordProcessingException {
+		String file = props.getProperty(JOURNAL_FILE_KEY, "").trim();
+		if (file.isEmpty()) {
+			return null;
+		}
+		return ProcessingJournal.open(Paths.get(file), outputFile,
+			PropertiesLoader.getIntProperty(props, JOURNAL_REWRITE_BYTES_KEY, 1024 * 1024));
+	}
+	
+	/**
+	 * Locks the journal, if there is one, for a run that writes the output without it.
+	 * @param props
+	 * @return the lock, or null if there isn't meant to be a journal
+	 * @throws IOException if the journal is in use by another process
+	 * @see ProcessingJournal#lockForBatch(Path, Path)
+	 */
+	private static Closeable lockJournal(Properties props) throws IOException {
+		String file = props.getProperty(JOURNAL_FILE_KEY, "").trim();
+		if (file.isEmpty()) {
+			return null;
+		}
+		return ProcessingJournal.lockForBatch(Paths.get(file), outputFile);
+	}
+	
+	/**
+	 * Opens the long-lived writer that all contact info output goes through.
+	 * @param props
+	 * @return
+	 * @throws IOException
+	 * @throws RecordProcessingException if the output properties are malformed
+	 */
+	private static GroupCommitWriter openOutput(Properties props) throws IOException, RecordProcessingException {
+		GroupCommitWriter.SyncPolicy syncPolicy;
+		try {
+			syncPolicy = GroupCommitWriter.SyncPolicy.fromString(props.getProperty(OUTPUT_FSYNC_KEY, "batch"));
+		} catch (IllegalArgumentException e) {
+			throw new RecordProcessingException("value of " + OUTPUT_FSYNC_KEY + " must be 'none', 'batch' or 'every'");
+		}
+		return new GroupCommitWriter(
+			outputFile,
+			Charset.defaultCharset(),
+			PropertiesLoader.getIntProperty(props, OUTPUT_BUFFER_BYTES_KEY, 64 * 1024),
+			Math.max(2, PropertiesLoader.getIntProperty(props, OUTPUT_BUFFERS_KEY, 8)),
+			PropertiesLoader.getIntProperty(props, OUTPUT_FLUSH_MILLIS_KEY, 200),
+			syncPolicy);
+	}
+	
+	/**
+	 * Stops taking cards over HTTP, lets the workers finish what they're doing, then
+	 * writes out any buffered output.
+	 */
+	void shutdown() {
+		if (server != null) {
+			server.stop();
+		}
+		engine.shutdown(SHUTDOWN_TIMEOUT_MILLIS);
+		if (cardParser != null) {
+			cardParser.close();
+		}
+		closeOutputs();
+	}
+	
+	/**
+	 * Writes out any buffered output, journal and quarantine log, closes the contacts store, saves the
+	 * result cache and finishes archiving input files. Whatever hasn't been loaded yet is
+	 * skipped.
+	 */
+	void closeOutputs() {
+		if (committer != null) {
+			committer.stop();
+		}
+		if (readyFile != null) {
+			try {
+				Files.deleteIfExists(readyFile);
+			} catch (IOException e) {
+				System.err.println("unable to delete ready file '" + readyFile + "', due to error: '" + e.getMessage() + "'");
+			}
+		}
+		if (processedArchive != null) {
+			processedArchive.close();
+		}
+		if (failedArchive != null) {
+			failedArchive.close();
+		}
+		if (quarantine != null) {
+			try {
+				quarantine.close();
+			} catch (IOException e) {
+				System.err.println("unable to finish writing quarantine log, due to error: '" + e.getMessage() + "'");
+			}
+		}
+		if (cacheFile != null && cardParser != null) {
+			try {
+				if (cardParser.generation() != cacheGeneration) {
+					// results from before a reload that no card has cleared out yet
+					cache.clear();
+				}
+				cache.save(cacheFile, cardParser.fingerprint());
+			} catch (IOException e) {
+				System.err.println("unable to save result cache to '" + cacheFile + "', due to error: '" + e.getMessage() + "'");
+			}
+		}
+		try {
+			if (output != null) {
+				output.close();
 			}
+		} catch (IOException e) {
+			System.err.println("unable to finish writing output file '" + outputFile + "', due to error: '" + e.getMessage() + "'");
+			e.printStackTrace();
+		}
+		try {
+			if (journal != null) {
+				journal.close();
+			}
+			if (journalLock != null) {
+				journalLock.close();
+			}
+		} catch (IOException e) {
+			System.err.println("unable to finish writing journal, due to error: '" + e.getMessage() + "'");
+			e.printStackTrace();
+		}
+		try {
+			if (store != null) {
+				store.close();
+			}
+		} catch (IOException e) {
+			System.err.println("unable to close contacts store, due to error: '" + e.getMessage() + "'");
+			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Main processing loop. Watches the input directories for files that contain newly-OCR'd,
+	 * raw business card text files and hands each one off to the processing engine's workers.
+	 * Each directory is watched on its own thread. If any of them stops being watchable, the
+	 * others are stopped too.
+	 * 
+	 * The watchers start before anything else is loaded, so that backlogs are being listed
+	 * and queued while it is; the workers start once it has been. So does the HTTP server,
+	 * if there is one, though it only takes cards once the workers have started.
+	 * @throws IOException
+	 * @throws RecordProcessingException if properties are malformed
+	 */
+	private void doProcessing() throws IOException, RecordProcessingException {
+		ExecutorService watchers = Executors.newFixedThreadPool(watchDirs.size(), new ThreadFactory() {
+			int count;
+			
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				return new Thread(r, "bcp-watcher-" + count++);
+			}
+		});
+		CompletionService<Void> completion = new ExecutorCompletionService<Void>(watchers);
+		for (int i=0; i<watchDirs.size(); i++) {
+			final DirectoryWatcher watcher = new DirectoryWatcher(watchDirs.get(i), i, engine, props);
+			completion.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException, InterruptedException {
+					watcher.run();
+					return null;
+				}
+			});
+		}
+		
+		try {
+			server = IngestServer.start(this, props);
+			load();
+			engine.start();
+			markReady();
+			
+			// the first watcher to stop, for whatever reason, stops the rest
+			completion.take().get();
+		} catch (InterruptedException ex) {
+			System.out.println("got interrupt, stopping work...");
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException) {
+				throw (IOException) ex.getCause();
+			}
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw new IllegalStateException(ex.getCause());
+		} finally {
+			watchers.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Which shard sub-directory a producer should put a file in, when the input directories
+	 * are split into shards (see {@value #RAW_SHARDS_KEY}): "shard-" followed by the result.
+	 * Any other way of spreading files out works just as well; this one just keeps each
+	 * file name in the same shard.
+	 * @param fileName
+	 * @param shards
+	 * @return
+	 */
+	public static int shardFor(String fileName, int shards) {
+		return Math.floorMod(fileName.hashCode(), shards);
+	}
+
 	/**
 	 * Processes a single raw data file to produce some structured contact info.
 	 * *** NOTE *** This method intentionally swallows exceptions raised due to file I/O problems and data
 	 * processing problems! We don't want such exceptions to bring down the application, so they're stopped
 	 * at this level. Errors will be reported to STDERR and processing will be allowed to resume.
+	 * 
+	 * Called concurrently by the processing engine's workers, never twice at once for the same file.
 	 * @param file the file to be processed
 	 */
-	private void processFile(Path file) {
-		String rawData;
+	void processFile(Path file) {
+		if (journal != null && journal.isWritten(file)) {
+			// its output was written before a restart, it just wasn't moved on
+			System.out.println("already written: " + file);
+			recoveredCount.increment();
+			cleanUp(file, false);
+			return;
+		}
+		String fileName = file.getFileName().toString();
+		if (fileName.endsWith(props.getProperty(CONTAINER_SUFFIX_KEY, ".cards"))) {
+			processContainer(file, false);
+			return;
+		}
+		if (fileName.endsWith(props.getProperty(JSONL_SUFFIX_KEY, ".jsonl"))) {
+			processContainer(file, true);
+			return;
+		}
+		
+		System.out.println("processing file: " + file);
+		CardReader.Card rawData;
+		long start = System.nanoTime();
 		try {
-			rawData = new String(Files.readAllBytes(file));
+			rawData = cardReader.read(file);
+		} catch (NoSuchFileException e) {
+			// already moved on; it was queued again from a listing of the directory taken before that
+			return;
 		} catch (IOException e) {
-			System.err.println("unable to read input file '" + file + "', due to error: '" + e.getMessage() + "'");
-			e.printStackTrace();
+			quarantine(file, -1, 0, null, "unable to read input file: " + e.getMessage());
+			failedCount.increment();
 			cleanUp(file, true);
 			return;
 		}
+		readTime.recordSince(start);
 
-		try {
+		try (CardReader.Card card = rawData) {
+			if (journal != null) {
+				journal.claim(file);
+			}
 			// process the data
-			ContactInfo info = cardParser.getContactInfo(rawData);
-			handleContactInfo(rawData, info);
-		} catch (RecordProcessingException e) {
-			System.err.println("unable to process input file '" + file + "', due to error: '" + e.getMessage() + "'");
-			e.printStackTrace();
+			ParseResult result = parse(card);
+			if (result.isFailure()) {
+				quarantine(file, -1, 0, result.getField(), result.getReason());
+				failedCount.increment();
+				cleanUp(file, true);
+				return;
+			}
+			handleContactInfo(file, -1, card, result.getContactInfo());
+		} catch (IOException e) {
+			System.err.println("unable to write output for input file '" + file + "', due to error: '" + e.getMessage() + "'");
+			quarantine(file, -1, 0, null, "unable to write output: " + e.getMessage());
+			failedCount.increment();
 			cleanUp(file, true);
 			return;
+		}
+		
+		processedCount.increment();
+		cleanUp(file, false);
+	}
+	
+	/**
+	 * Processes a container file that holds many cards: either plain text cards separated
+	 * by delimiter lines, or JSON Lines with one card per line. The container is memory-mapped
+	 * and each card in it is processed on its own. A card that fails doesn't fail the
+	 * container; instead its byte offset, length and the reason are listed in a report
+	 * named after the container, with a ".failures" suffix, in the failed directory. The
+	 * container itself only goes to the failed directory if it can't be read, or if every
+	 * card in it failed.
+	 * @param file
+	 * @param jsonLines
+	 */
+	private void processContainer(Path file, boolean jsonLines) {
+		System.out.println("processing container: " + file);
+		ByteBuffer data;
+		long start = System.nanoTime();
+		try {
+			data = ContainerReader.map(file);
+		} catch (NoSuchFileException e) {
+			// already moved on, as above
+			return;
 		} catch (IOException e) {
-			System.err.println("unable to write to output file '" + outputFile + "', due to error: '" + e.getMessage() + "'");
-			e.printStackTrace();
+			quarantine(file, -1, 0, null, "unable to read container file: " + e.getMessage());
 			cleanUp(file, true);
 			return;
 		}
 		
-		cleanUp(file, false);
+		readTime.recordSince(start);
+		
+		if (journal != null) {
+			try {
+				journal.claim(file);
+			} catch (IOException e) {
+				System.err.println("unable to write to journal, due to error: '" + e.getMessage() + "'");
+				cleanUp(file, true);
+				return;
+			}
+		}
+		ContainerCards cards = new ContainerCards(file);
+		if (jsonLines) {
+			ContainerReader.readJsonLines(data, props.getProperty(JSON_FIELD_KEY, "text"), cards);
+		} else {
+			ContainerReader.readDelimited(data, props.getProperty(CONTAINER_DELIMITER_KEY, "%%"), cardReader.getCharset(), cards);
+		}
+		
+		System.out.println("container '" + file + "': " + cards.processed + " card(s) processed, " + cards.failed + " failed");
+		boolean allFailed = cards.failed > 0 && cards.processed == 0;
+		if (cards.failed > 0) {
+			Path report = failedDir.resolve(file.getFileName() + ".failures");
+			try {
+				Files.write(report, cards.failures.toString().getBytes(StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				System.err.println("unable to write failure report '" + report + "', due to error: '" + e.getMessage() + "'");
+			}
+		}
+		cleanUp(file, allFailed);
 	}
 	
 	/**
-	 * Does whatever ought to be done with some new contact info and the originating data.
-	 * Currently, this is just printing the data to the console.
+	 * Processes the cards of one container as they're found, keeping track of failures.
+	 * Cards that the journal says were written before a restart are skipped.
+	 */
+	private class ContainerCards implements ContainerReader.CardHandler {
+		final Path file;
+		int processed;
+		int failed;
+		StringBuilder failures = new StringBuilder("offset\tlength\treason\n");
+		
+		ContainerCards(Path file) {
+			this.file = file;
+		}
+		
+		@Override
+		public void card(long offset, int length, String text) {
+			if (journal != null && journal.isWritten(file, offset)) {
+				processed++;
+				recoveredCount.increment();
+				return;
+			}
+			ParseResult result = parse(text);
+			if (result.isFailure()) {
+				failed(offset, length, result.getField(), result.getReason());
+				return;
+			}
+			try {
+				handleContactInfo(file, offset, text, result.getContactInfo());
+				processed++;
+				processedCount.increment();
+			} catch (IOException e) {
+				badCard(offset, length, "unable to write output: " + e.getMessage());
+			}
+		}
+		
+		@Override
+		public void badCard(long offset, int length, String reason) {
+			failed(offset, length, null, reason);
+		}
+		
+		private void failed(long offset, int length, String field, String reason) {
+			failed++;
+			failedCount.increment();
+			failures.append(offset).append('\t').append(length).append('\t').append(reason).append('\n');
+			quarantine(file, offset, length, field, reason);
+		}
+	}
+	
+	/**
+	 * Parses a card, or if exactly the same text has been parsed before, reuses what came
+	 * of that (including failures). Earlier results are forgotten once the parser's
+	 * dictionaries have been reloaded.
+	 * @param rawData
+	 * @return the contact info, or which field was missing
+	 */
+	ParseResult parse(CharSequence rawData) {
+		if (cache == null) {
+			return cardParser.parse(rawData);
+		}
+		long generation = cardParser.generation();
+		if (generation != cacheGeneration) {
+			synchronized (cache) {
+				if (generation != cacheGeneration) {
+					cache.clear();
+					cacheGeneration = generation;
+				}
+			}
+		}
+		ContentKey key = ContentKey.of(rawData);
+		ResultCache.Result cached = cache.get(key);
+		if (cached != null) {
+			if (cached.isFailure()) {
+				return ParseResult.missing(cached.getFailedField(), cached.getFailure());
+			}
+			return ParseResult.of(cached.getContactInfo());
+		}
+		
+		// (a result that a reload overtook isn't kept)
+		ParseResult result = cardParser.parse(rawData);
+		if (cardParser.generation() == generation) {
+			cache.put(key, result.isFailure()
+				? ResultCache.Result.failure(result.getField(), result.getReason())
+				: ResultCache.Result.success(result.getContactInfo()));
+		}
+		return result;
+	}
+	
+	/**
+	 * Logs why a card failed, if failures are being logged.
+	 * @param file
+	 * @param offset the card's byte offset in a container file, or -1
+	 * @param length
+	 * @param field the field that couldn't be found, or null
+	 * @param reason
+	 */
+	private void quarantine(Path file, long offset, int length, String field, String reason) {
+		if (quarantine != null) {
+			quarantine.failed(file, offset, length, field, reason);
+		}
+	}
+	
+	/**
+	 * Does whatever ought to be done with some new contact info and the originating data,
+	 * for a card that didn't come from a watched file; see below.
 	 * @param rawData original text data
 	 * @param info structured extracted contact info
 	 * @throws IOException 
 	 */
-	private void handleContactInfo(String rawData, ContactInfo info) throws IOException {
+	void handleContactInfo(CharSequence rawData, ContactInfo info) throws IOException {
+		handleContactInfo(null, -1, rawData, info);
+	}
+	
+	/**
+	 * Does whatever ought to be done with some new contact info and the originating data:
+	 * stores it in the contacts store, appends it to the output file, and then journals
+	 * where the output went. The store comes first, so that a card that fails because the
+	 * store can't be written to has no output record either. Journaling comes last, so that
+	 * a card the journal says was written (and that therefore isn't parsed again after a
+	 * crash) is in the store too; a card that's processed again just leaves a superseded
+	 * record there. All of it happens before the originating file is moved out of the
+	 * watched directory.
+	 * @param file the file the card came from, or null
+	 * @param card the card's byte offset in a container file, or -1
+	 * @param rawData original text data
+	 * @param info structured extracted contact info
+	 * @throws IOException if the contact couldn't be stored, or its output written
+	 */
+	void handleContactInfo(Path file, long card, CharSequence rawData, ContactInfo info) throws IOException {
+		try {
+			store.append(info, rawData.toString());
+		} catch (IOException e) {
+			throw new IOException("unable to store contact: " + e.getMessage(), e);
+		}
+		GroupCommitWriter.Extent extent = appendRecord(output, rawData, info);
+		if (journal != null) {
+			journal.written(file, card, extent);
+		}
+	}
+	
+	/**
+	 * Blocks until the output written so far, the contacts stored with it, and the journal
+	 * (if any) saying so, are on disk (just written, if bcp.output.fsync is 'none'). Done
+	 * before files are moved on, so that a crash can't lose their output. Concurrent callers
+	 * share the same output and journal forces.
+	 * @throws IOException
+	 */
+	void syncOutput() throws IOException {
+		output.flush();
+		if (output.getSyncPolicy() != GroupCommitWriter.SyncPolicy.NONE) {
+			// before the journal, which then says the cards needn't be parsed again
+			store.sync();
+		}
+		if (journal != null) {
+			journal.sync();
+		}
+	}
+	
+	/**
+	 * Formats a card and its contact info as one output record.
+	 * @param output
+	 * @param rawData original text data
+	 * @param info structured extracted contact info
+	 * @return where the record went
+	 * @throws IOException
+	 */
+	static GroupCommitWriter.Extent appendRecord(GroupCommitWriter output, CharSequence rawData, ContactInfo info) throws IOException {
 		String separator = "====================================";
-		String output = separator + "\n\n" + rawData + "\n\n==>\n\n" + info.prettyPrint() + "\n\n";
-		Files.write(outputFile, output.getBytes(), StandardOpenOption.APPEND, StandardOpenOption.CREATE);
-		// TODO combine raw data and structured info into a data record and store in contacts DB
+		long start = System.nanoTime();
+		GroupCommitWriter.Extent extent = output.append(separator, "\n\n", rawData, "\n\n==>\n\n", info.prettyPrint(), "\n\n");
+		writeTime.recordSince(start);
+		return extent;
 	}
 	
 	/**
-	 * Moves a file out of the input directory and into an archival location
+	 * Moves a file out of the input directory and into an archival location, see
+	 * {@link #move(Path, boolean)}. A file that was processed is handed to the committer
+	 * instead, which moves it once its output is on disk.
 	 * @param file
 	 * @param failed indicated whether or not the file was successfully processed, results in a different archival place
 	 */
 	private void cleanUp(Path file, boolean failed) {
+		if (committer != null && !failed) {
+			committer.add(file);
+		} else {
+			move(file, failed);
+		}
+	}
+	
+	/**
+	 * @param file
+	 * @return true if the file has been processed, and is waiting to be moved on once its
+	 * output is on disk
+	 */
+	boolean isCommitting(Path file) {
+		Committer committer = this.committer;
+		return committer != null && committer.holds(file);
+	}
+	
+	/**
+	 * Moves a file out of the input directory and into an archival location. In archive
+	 * mode, it's handed to the archive, which appends it to an archive segment in the
+	 * background. Either way, the journal (if any) is then told that the file is done.
+	 * @param file
+	 * @param failed
+	 */
+	private void move(Path file, boolean failed) {
+		long start = System.nanoTime();
 		try {
-			if (failed) {
+			if (processedArchive != null) {
+				(failed ? failedArchive : processedArchive).submit(file);
+			} else if (failed) {
 				Files.move(file, failedDir.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
 			} else {
 				Files.move(file, processedDir.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
@@ -195,10 +981,114 @@ public class BusinessCardProcessor {
 		} catch (IOException e) {
 			System.err.println("unable to clean up file '" + file + "'");
 			e.printStackTrace();
+			cleanUpTime.recordSince(start);
+			return;
+		}
+		if (journal != null) {
+			try {
+				journal.done(file);
+			} catch (IOException e) {
+				System.err.println("unable to write to journal, due to error: '" + e.getMessage() + "'");
+			}
+		}
+		cleanUpTime.recordSince(start);
+	}
+	
+	/**
+	 * Moves processed files on once their output is on disk. Rather than each worker
+	 * waiting for the output and journal to be forced before moving its file, workers
+	 * hand files over and get on with the next card; each sync here then covers every
+	 * file handed over meanwhile, however many workers there are.
+	 */
+	private class Committer implements Runnable {
+		// in the order they were handed over; a file handed over twice is moved once
+		private final Set<Path> waiting = new LinkedHashSet<Path>();
+		// everything handed over and not yet moved on (or left where it was), so that it
+		// isn't queued again meanwhile
+		private final Set<Path> held = ConcurrentHashMap.newKeySet();
+		private boolean stopping;
+		private final Thread thread;
+		
+		Committer() {
+			thread = new Thread(this, "bcp-committer");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		
+		synchronized void add(Path file) {
+			held.add(file);
+			waiting.add(file);
+			notifyAll();
+		}
+		
+		boolean holds(Path file) {
+			return held.contains(file);
+		}
+		
+		/**
+		 * Moves on whatever has been handed over, then stops.
+		 */
+		void stop() {
+			synchronized (this) {
+				stopping = true;
+				notifyAll();
+			}
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		@Override
+		public void run() {
+			List<Path> batch = new ArrayList<Path>();
+			while (true) {
+				synchronized (this) {
+					try {
+						while (waiting.isEmpty() && !stopping) {
+							wait();
+						}
+					} catch (InterruptedException e) {
+						return;
+					}
+					if (waiting.isEmpty()) {
+						return;
+					}
+					batch.addAll(waiting);
+					waiting.clear();
+				}
+				try {
+					syncOutput();
+					for (Path file : batch) {
+						move(file, false);
+					}
+				} catch (IOException e) {
+					// they stay where they are, to be processed again (or, with a journal, moved
+					// on if their output turns out to have been written)
+					System.err.println("unable to write to output file '" + outputFile + "', due to error: '" + e.getMessage()
+						+ "'; leaving " + batch.size() + " file(s) where they are");
+				} finally {
+					held.removeAll(batch);
+				}
+				batch.clear();
+			}
 		}
 	}
 	
 	public static void main(String[] args) throws FileNotFoundException, IOException, RecordProcessingException {
+		// '--batch <dir|zip|tar>' processes the given cards once and exits, instead of
+		// watching a directory
+		Path batchInput = null;
+		if (args.length > 0 && BATCH_ARG.equals(args[0])) {
+			if (args.length < 2) {
+				System.err.println("Usage: " + BATCH_ARG + " <directory|zip|tar> [properties file]");
+				return;
+			}
+			batchInput = Paths.get(args[1]);
+			args = Arrays.copyOfRange(args, 2, args.length);
+		}
+		
 		if (args.length > 1) {
 			System.err.println("Too many arguments. Please provide a properties file.");
 			return;
@@ -212,22 +1102,70 @@ public class BusinessCardProcessor {
 		}
 		
 		Properties props = PropertiesLoader.loadProperties("/" + propsFile);
-		doInit(props);
+		doInit(props, batchInput == null);
+		
+		final BusinessCardProcessor bcp = new BusinessCardProcessor(props);
+		// before loading, so that startup can be followed over JMX
+		startMetrics(props);
+		
+		// on Ctrl-C, let the workers finish the cards they're in the middle of and
+		// write out anything still buffered
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				bcp.shutdown();
+			}
+		}));
 		
-		BusinessCardProcessor bcp = new BusinessCardProcessor(props);
+		if (batchInput != null) {
+			try {
+				bcp.load();
+				new BatchProcessor(bcp, props).run(batchInput);
+			} catch (InterruptedException e) {
+				System.out.println("got interrupt, stopping work...");
+			} finally {
+				bcp.closeOutputs();
+			}
+			return;
+		}
 		
-		// kick off the main loop
-		bcp.doProcessing();
+		// kick off the main loop, loading everything else meanwhile; if loading fails,
+		// the HTTP server still has to be stopped, or it keeps the JVM running
+		try {
+			bcp.doProcessing();
+		} finally {
+			bcp.shutdown();
+		}
+	}
+	
+	/**
+	 * Exposes the metrics over JMX and, if asked to, starts printing them periodically.
+	 * Failing to register with JMX isn't fatal.
+	 * @param props
+	 * @throws RecordProcessingException if properties are malformed
+	 */
+	private static void startMetrics(Properties props) throws RecordProcessingException {
+		try {
+			Metrics.get().register();
+		} catch (JMException e) {
+			System.err.println("unable to register metrics with JMX, due to error: '" + e.getMessage() + "'");
+		}
+		int dumpSeconds = PropertiesLoader.getIntProperty(props, METRICS_DUMP_SECONDS_KEY, 0, 0);
+		if (dumpSeconds > 0) {
+			Metrics.get().startDumping(dumpSeconds);
+		}
 	}
 	
 	/**
 	 * Any startup tasks. Mostly directory checking. Missing properties get checked for as
 	 * a side effect.
 	 * @param props
+	 * @param watching false in batch mode, where the watched, processed and failed
+	 * directories aren't used and so aren't created
 	 * @throws IOException 
 	 * @throws RecordProcessingException 
 	 */
-	private static void doInit(Properties props) throws IOException, RecordProcessingException {
+	private static void doInit(Properties props, boolean watching) throws IOException, RecordProcessingException {
 		// are properties present?
 		if (props.get(RAW_DIR_KEY) == null) {
 			throw new RecordProcessingException("properties file missing the '" + RAW_DIR_KEY + "' property");
@@ -242,13 +1180,36 @@ public class BusinessCardProcessor {
 			throw new RecordProcessingException("properties file missing the '" + OUTPUT_FILE_KEY + "' property");
 		}
 		
+		outputFile = Paths.get((String)props.get(OUTPUT_FILE_KEY));
+		if (!watching) {
+			return;
+		}
+		
 		// create/check perms on any directories needed
-		watchDir = Paths.get((String)props.get(RAW_DIR_KEY));
-		if (!Files.exists(watchDir, LinkOption.NOFOLLOW_LINKS)) {
-			Files.createDirectory(watchDir);
+		int shards = PropertiesLoader.getIntProperty(props, RAW_SHARDS_KEY, 0, 0);
+		watchDirs = new ArrayList<Path>();
+		for (String dir : ((String)props.get(RAW_DIR_KEY)).split(",")) {
+			if (dir.trim().isEmpty()) {
+				continue;
+			}
+			Path rawDir = Paths.get(dir.trim());
+			if (shards == 0) {
+				watchDirs.add(rawDir);
+			}
+			for (int i=0; i<shards; i++) {
+				watchDirs.add(rawDir.resolve(SHARD_DIR_PREFIX + i));
+			}
 		}
-		if (!Files.isReadable(watchDir)) {
-			throw new RecordProcessingException("unable to read from raw data directory '" + watchDir + "'");
+		if (watchDirs.isEmpty()) {
+			throw new RecordProcessingException("value of " + RAW_DIR_KEY + " must name at least one directory");
+		}
+		for (Path watchDir : watchDirs) {
+			if (!Files.exists(watchDir, LinkOption.NOFOLLOW_LINKS)) {
+				Files.createDirectories(watchDir);
+			}
+			if (!Files.isReadable(watchDir)) {
+				throw new RecordProcessingException("unable to read from raw data directory '" + watchDir + "'");
+			}
 		}
 		
 		processedDir = Paths.get((String)props.get(PROCESSED_DIR_KEY));
@@ -266,7 +1227,5 @@ public class BusinessCardProcessor {
 		if (!Files.isWritable(failedDir)) {
 			throw new RecordProcessingException("unable to write to raw data directory '" + failedDir + "'");
 		}
-		
-		outputFile = Paths.get((String)props.get(OUTPUT_FILE_KEY));
 	}
 }
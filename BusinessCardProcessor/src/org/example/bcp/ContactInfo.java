@@ -1,6 +1,9 @@
 package org.example.bcp;
 
 import java.text.MessageFormat;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Storage object for a person's b-card data.
@@ -15,6 +18,9 @@ public class ContactInfo {
 	
 	private String emailAddress;
 	
+	// fields found by any extractors beyond the name, phone and email ones, in the order they were found
+	private Map<String, String> extraFields;
+	
 	public ContactInfo(String name, String phoneNumber, String emailAddress) {
 		this.name = name;
 		this.phoneNumber = phoneNumber;
@@ -57,8 +63,112 @@ public class ContactInfo {
 		this.emailAddress = emailAddress;
 	}
 	
+	/**
+	 * returns a field found by an extra extractor, or null if there isn't one
+	 * @param fieldName
+	 * @return
+	 */
+	public String getExtraField(String fieldName) {
+		return extraFields == null ? null : extraFields.get(fieldName);
+	}
+	
+	public void setExtraField(String fieldName, String value) {
+		if (extraFields == null) {
+			extraFields = new LinkedHashMap<String, String>();
+		}
+		extraFields.put(fieldName, value);
+	}
+	
+	/**
+	 * returns all the fields found by extra extractors, keyed by field name
+	 * @return
+	 */
+	public Map<String, String> getExtraFields() {
+		return extraFields == null ? Collections.<String, String>emptyMap() : Collections.unmodifiableMap(extraFields);
+	}
+	
 	public String prettyPrint() {
 		String format = "Name: {0}\n\nPhone: {1}\n\nEmail: {2}";
-		return MessageFormat.format(format, name, phoneNumber, emailAddress);
+		String printed = MessageFormat.format(format, name, phoneNumber, emailAddress);
+		if (extraFields == null) {
+			return printed;
+		}
+		StringBuilder sb = new StringBuilder(printed);
+		for (Map.Entry<String, String> field : extraFields.entrySet()) {
+			String fieldName = field.getKey();
+			sb.append("\n\n").append(Character.toUpperCase(fieldName.charAt(0))).append(fieldName, 1, fieldName.length())
+				.append(": ").append(field.getValue());
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * @return the contact info as a JSON object, with 'name', 'phone' and 'email' members
+	 * followed by any extra fields (by field name)
+	 */
+	public String toJson() {
+		return appendJson(new StringBuilder()).toString();
+	}
+	
+	/**
+	 * Appends the contact info as a JSON object, see {@link #toJson()}.
+	 * @param sb
+	 * @return sb
+	 */
+	public StringBuilder appendJson(StringBuilder sb) {
+		sb.append('{');
+		appendJsonMember(sb, "name", name).append(',');
+		appendJsonMember(sb, "phone", phoneNumber).append(',');
+		appendJsonMember(sb, "email", emailAddress);
+		if (extraFields != null) {
+			for (Map.Entry<String, String> field : extraFields.entrySet()) {
+				appendJsonMember(sb.append(','), field.getKey(), field.getValue());
+			}
+		}
+		return sb.append('}');
+	}
+	
+	private static StringBuilder appendJsonMember(StringBuilder sb, String key, String value) {
+		return appendJsonString(appendJsonString(sb, key).append(':'), value);
+	}
+	
+	/**
+	 * Appends a string as a quoted JSON string.
+	 * @param sb
+	 * @param s null is appended as null
+	 * @return sb
+	 */
+	public static StringBuilder appendJsonString(StringBuilder sb, String s) {
+		if (s == null) {
+			return sb.append("null");
+		}
+		sb.append('"');
+		for (int i=0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb.append('"');
 	}
 }
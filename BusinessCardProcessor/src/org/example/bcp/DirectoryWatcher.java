@@ -0,0 +1,264 @@
+package org.example.bcp;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.example.bcp.metrics.Metrics;
+
+/**
+ * Watches a raw data directory and hands each new file to the processing engine once
+ * it's safe to process. Each watched directory (shard) has a watcher of its own, running
+ * on its own thread.
+ *
+ * The watch is registered before the directory is first scanned, so a file created while
+ * the scan is running can't slip through the gap; it may be reported twice instead, which
+ * is harmless since files are only ever tracked (and queued) once. If the OS drops events
+ * (OVERFLOW, e.g. during a burst of many thousands of files), the directory is rescanned.
+ * Every so often the directory is also swept, in case anything was missed all the same.
+ * Scans just list the directory and skip files that are already known about.
+ *
+ * A file isn't handed on until its size and modification time have stayed the same for
+ * a little while, so files that are still being written aren't picked up half-finished.
+ * Files with the temporary suffix are ignored altogether: a writer that writes to
+ * 'card.txt.tmp' and then renames it to 'card.txt' doesn't have to rely on the settling
+ * time at all.
+ *
+ * Configured by the following (optional) properties:
+ * 'bcp.watch.settle.millis' - how long a file must stay unchanged, defaults to 500 (0 hands
+ * files on as soon as they're seen)
+ * 'bcp.watch.temp.suffix' - suffix of files that are still being written, defaults to '.tmp'
+ * 'bcp.watch.reconcile.seconds' - time between sweeps of the directory, defaults to 60
+ * (0 for no sweeps)
+ * @author astein
+ *
+ */
+class DirectoryWatcher {
+
+	static final String SETTLE_MILLIS_KEY = "bcp.watch.settle.millis";
+	static final String TEMP_SUFFIX_KEY = "bcp.watch.temp.suffix";
+	static final String RECONCILE_SECONDS_KEY = "bcp.watch.reconcile.seconds";
+
+	// longest the watcher ever sleeps, whatever else is going on
+	private static final long MAX_POLL_MILLIS = 1000;
+
+	/**
+	 * A file that has been seen but not yet handed on.
+	 */
+	private static class Candidate {
+		// as of the last look at the file, -1 if it hasn't been looked at yet
+		long size = -1;
+		long modified = -1;
+		long changedNanos;
+	}
+
+	private final Path dir;
+	private final int shard;
+	private final ProcessingEngine engine;
+	private final long settleNanos;
+	private final String tempSuffix;
+	private final long reconcileNanos;
+
+	// in the order in which they last changed, oldest first
+	private final LinkedHashMap<Path, Candidate> candidates = new LinkedHashMap<Path, Candidate>();
+
+	private final LongAdder overflows = Metrics.get().counter("watch.overflows");
+	private final LongAdder reconciled = Metrics.get().counter("watch.reconciled");
+
+	/**
+	 * @param dir the directory to watch
+	 * @param shard which of the engine's shards the directory's files go to
+	 * @param engine where to send files that are ready
+	 * @param props main properties
+	 * @throws RecordProcessingException if properties are malformed
+	 */
+	DirectoryWatcher(Path dir, int shard, ProcessingEngine engine, Properties props) throws RecordProcessingException {
+		this.dir = dir;
+		this.shard = shard;
+		this.engine = engine;
+		this.settleNanos = TimeUnit.MILLISECONDS.toNanos(PropertiesLoader.getIntProperty(props, SETTLE_MILLIS_KEY, 500, 0));
+		this.tempSuffix = props.getProperty(TEMP_SUFFIX_KEY, ".tmp");
+		this.reconcileNanos = TimeUnit.SECONDS.toNanos(PropertiesLoader.getIntProperty(props, RECONCILE_SECONDS_KEY, 60, 0));
+	}
+
+	/**
+	 * Watches the directory until interrupted, or until the directory goes away.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	void run() throws IOException, InterruptedException {
+		try (WatchService watch = dir.getFileSystem().newWatchService()) {
+			// OVERFLOW is always delivered, it doesn't need registering
+			dir.register(watch, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+			// anything that was already waiting in the watched dir
+			scan(false);
+			submitSettled();
+
+			System.out.println("watching directory '" + dir + "' for new business cards to process...\n");
+
+			long nextReconcile = System.nanoTime() + reconcileNanos;
+			while (true) {
+				WatchKey watchKey = watch.poll(pollMillis(nextReconcile), TimeUnit.MILLISECONDS);
+				if (watchKey != null) {
+					for (WatchEvent<?> event : watchKey.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							overflows.increment();
+							System.out.println("missed some directory events, rescanning '" + dir + "'");
+							scan(false);
+						} else {
+							changed(dir.resolve((Path) event.context()));
+						}
+					}
+					if (!watchKey.reset()) {
+						System.err.println("watched directory '" + dir + "' is no longer accessible");
+						return;
+					}
+				}
+
+				long now = System.nanoTime();
+				if (reconcileNanos > 0 && now - nextReconcile >= 0) {
+					scan(true);
+					nextReconcile = now + reconcileNanos;
+				}
+				submitSettled();
+			}
+		}
+	}
+
+	/**
+	 * Adds every regular file in the directory that isn't already known about to the
+	 * candidates. Anything else (sub-directories, links) is left alone, and isn't counted
+	 * as missed by every sweep.
+	 * @param sweep whether this is a periodic sweep, in which case anything found is
+	 * something the watcher missed
+	 * @throws IOException
+	 */
+	private void scan(boolean sweep) throws IOException {
+		// no need to wait before the first look: a file that has already been written won't
+		// have been modified for the settling time, see submitSettled
+		long seen = System.nanoTime() - settleNanos;
+		int found = 0;
+		try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(dir)) {
+			for (Path file : dirStream) {
+				if (isTemporary(file) || candidates.containsKey(file) || engine.isPending(file)
+						|| !Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+					continue;
+				}
+				Candidate candidate = new Candidate();
+				candidate.changedNanos = seen;
+				candidates.put(file, candidate);
+				found++;
+			}
+		}
+		if (sweep && found > 0) {
+			reconciled.add(found);
+			System.out.println("sweep of '" + dir + "' found " + found + " file(s) that had been missed");
+		}
+	}
+
+	/**
+	 * Notes that a file has been created or changed, restarting its settling time.
+	 * @param file
+	 */
+	private void changed(Path file) {
+		if (isTemporary(file) || engine.isPending(file)) {
+			return;
+		}
+		Candidate candidate = candidates.remove(file);
+		if (candidate == null) {
+			candidate = new Candidate();
+		}
+		candidate.changedNanos = System.nanoTime();
+		candidates.put(file, candidate);
+	}
+
+	/**
+	 * Hands on every candidate that has settled. Blocks while the shard's queue is full.
+	 * @throws InterruptedException
+	 */
+	private void submitSettled() throws InterruptedException {
+		long now = System.nanoTime();
+		Iterator<Map.Entry<Path, Candidate>> it = candidates.entrySet().iterator();
+		// candidates whose settling time starts over go to the back of the line
+		Map<Path, Candidate> restarted = new LinkedHashMap<Path, Candidate>();
+		while (it.hasNext()) {
+			Map.Entry<Path, Candidate> entry = it.next();
+			Path file = entry.getKey();
+			Candidate candidate = entry.getValue();
+			if (now - candidate.changedNanos < settleNanos) {
+				// nor has anything after it
+				break;
+			}
+			it.remove();
+
+			BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			} catch (NoSuchFileException e) {
+				// moved or deleted since it was seen
+				continue;
+			} catch (IOException e) {
+				System.err.println("unable to check file '" + file + "', due to error: '" + e.getMessage() + "'");
+				continue;
+			}
+			if (!attrs.isRegularFile()) {
+				System.out.println("file '" + file + "' is not a processable file");
+				continue;
+			}
+			if (settleNanos == 0) {
+				engine.submit(shard, file);
+				continue;
+			}
+
+			// unchanged since the last look, or at least not written to for the whole
+			// settling time (which saves a second look at files that are already complete)
+			long modified = attrs.lastModifiedTime().toMillis();
+			boolean unchanged = attrs.size() == candidate.size && modified == candidate.modified;
+			if (unchanged || System.currentTimeMillis() - modified >= TimeUnit.NANOSECONDS.toMillis(settleNanos)) {
+				engine.submit(shard, file);
+			} else {
+				candidate.size = attrs.size();
+				candidate.modified = modified;
+				candidate.changedNanos = now;
+				restarted.put(file, candidate);
+			}
+		}
+		candidates.putAll(restarted);
+	}
+
+	private boolean isTemporary(Path file) {
+		return !tempSuffix.isEmpty() && file.getFileName().toString().endsWith(tempSuffix);
+	}
+
+	/**
+	 * @return how long to wait for events before it's time to check on the candidates or
+	 * sweep the directory
+	 */
+	private long pollMillis(long nextReconcile) {
+		long now = System.nanoTime();
+		long waitNanos = TimeUnit.MILLISECONDS.toNanos(MAX_POLL_MILLIS);
+		if (!candidates.isEmpty()) {
+			Candidate oldest = candidates.values().iterator().next();
+			waitNanos = Math.min(waitNanos, oldest.changedNanos + settleNanos - now);
+		}
+		if (reconcileNanos > 0) {
+			waitNanos = Math.min(waitNanos, nextReconcile - now);
+		}
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+	}
+}
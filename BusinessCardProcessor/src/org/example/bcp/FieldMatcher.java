@@ -0,0 +1,37 @@
+package org.example.bcp;
+
+/**
+ * Looks for one field in one card, a line at a time. A matcher is made for each card, so
+ * it can keep whatever it likes about the lines it has seen so far.
+ * @author astein
+ *
+ */
+public interface FieldMatcher {
+
+	/**
+	 * Looks at the next line of the card. Only lines the extractor said it
+	 * {@link LineFeatureExtractor#accepts(LineFeatures) accepts} are offered.
+	 * @param line the line, already trimmed. It may be a view of the card's buffers, good
+	 * until {@link #getField()} returns, so anything kept longer must be copied with toString()
+	 * @param features the line's features
+	 * @return true if the matcher has settled on its field and needn't see any more lines
+	 * @throws RecordProcessingException
+	 */
+	public boolean offer(CharSequence line, LineFeatures features) throws RecordProcessingException;
+
+	/**
+	 * Called once every line has been offered, or the matcher has settled.
+	 * @return the text of the field, or null if it wasn't found (see {@link #getMissingReason()})
+	 * @throws RecordProcessingException if the field wasn't found; returning null is
+	 * preferred, since plenty of cards are missing something
+	 */
+	public String getField() throws RecordProcessingException;
+
+	/**
+	 * @return why the field wasn't found, once {@link #getField()} has returned null; null
+	 * for a generic reason
+	 */
+	public default String getMissingReason() {
+		return null;
+	}
+}
@@ -0,0 +1,360 @@
+package org.example.bcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.example.bcp.metrics.LatencyHistogram;
+import org.example.bcp.metrics.Metrics;
+import org.example.bcp.util.CardReader;
+import org.example.bcp.util.ContainerReader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Optional HTTP front door, for producers that would rather hand cards over directly
+ * than write them to the watched directory and wait for them to be noticed. Cards sent
+ * here are parsed straight away, written to the output file and contacts store like any
+ * other, and the contact info is sent back as JSON.
+ * <pre>
+ * POST /cards         the text of one card; returns the contact info as a JSON object,
+ *                     or status 422 and {"error": "...", "field": "..."} if it can't be
+ *                     parsed ("field" being the one that's missing, if that's why)
+ * POST /cards/batch   many cards, separated as in a .cards container (lines of just the
+ *                     delimiter), or as JSON Lines if the content type is
+ *                     application/x-ndjson; returns a JSON array with one object per
+ *                     card, in order, each either contact info or {"error": ...} as above
+ * GET  /ready         status 200 once cards can be processed, 503 before that
+ * </pre>
+ * The response waits until the cards' output is on disk (see bcp.output.fsync).
+ *
+ * Card text is read like a card file (see bcp.input.charset). Each request is handled on
+ * a thread of its own, virtual if the JVM has them. At most a set number of requests are
+ * read and parsed at once; any more wait a little for their turn, and are then turned
+ * away with status 503. A body is only read once its request has its turn, so no more
+ * than that many bodies are held in memory; one that's too big gets status 413, without
+ * being read at all if its Content-Length says so.
+ *
+ * Configured by the following (optional) properties:
+ * 'bcp.server.port' - port to listen on, defaults to -1 (no server); 0 picks a free one
+ * 'bcp.server.host' - address to listen on, defaults to 127.0.0.1 (this machine only)
+ * 'bcp.server.max.concurrent' - most requests read and parsed at once, defaults to 64
+ * 'bcp.server.wait.millis' - how long a request waits for its turn, defaults to 1000
+ * 'bcp.server.max.body.bytes' - largest request body (e.g. a batch), defaults to 16MB
+ * 'bcp.server.executor' - 'virtual' or 'platform' threads, defaults to 'virtual'
+ * @author astein
+ *
+ */
+class IngestServer {
+
+	static final String PORT_KEY = "bcp.server.port";
+	static final String HOST_KEY = "bcp.server.host";
+	static final String MAX_CONCURRENT_KEY = "bcp.server.max.concurrent";
+	static final String WAIT_MILLIS_KEY = "bcp.server.wait.millis";
+	static final String MAX_BODY_BYTES_KEY = "bcp.server.max.body.bytes";
+	static final String EXECUTOR_KEY = "bcp.server.executor";
+
+	static final String JSON_LINES_TYPE = "application/x-ndjson";
+
+	// how long stopping waits for requests in progress
+	private static final int STOP_DELAY_SECONDS = 2;
+
+	private final BusinessCardProcessor processor;
+	private final HttpServer server;
+	private final Semaphore permits;
+	private final long waitMillis;
+	private final int maxBodyBytes;
+	private final String delimiter;
+	private final String jsonField;
+
+	private final LongAdder requests = Metrics.get().counter("server.requests");
+	private final LongAdder rejected = Metrics.get().counter("server.rejected");
+	private final LongAdder processedCount = Metrics.get().counter(Metrics.PROCESSED);
+	private final LongAdder failedCount = Metrics.get().counter(Metrics.FAILED);
+	private final LatencyHistogram requestTime = Metrics.get().histogram("server.request");
+
+	/**
+	 * Starts a server, if one is configured.
+	 * @param processor does the parsing and writing
+	 * @param props main properties
+	 * @return the server, or null if there isn't meant to be one
+	 * @throws IOException if it can't listen on the port
+	 * @throws RecordProcessingException if properties are malformed
+	 */
+	static IngestServer start(BusinessCardProcessor processor, Properties props) throws IOException, RecordProcessingException {
+		int port = PropertiesLoader.getIntProperty(props, PORT_KEY, -1, -1);
+		if (port < 0) {
+			return null;
+		}
+		IngestServer server = new IngestServer(processor, props, port);
+		server.server.start();
+		System.out.println("accepting cards over HTTP at " + server.server.getAddress());
+		return server;
+	}
+
+	private IngestServer(BusinessCardProcessor processor, Properties props, int port) throws IOException, RecordProcessingException {
+		this.processor = processor;
+		this.permits = new Semaphore(PropertiesLoader.getIntProperty(props, MAX_CONCURRENT_KEY, 64));
+		this.waitMillis = PropertiesLoader.getIntProperty(props, WAIT_MILLIS_KEY, 1000, 0);
+		this.maxBodyBytes = PropertiesLoader.getIntProperty(props, MAX_BODY_BYTES_KEY, 16 * 1024 * 1024);
+		this.delimiter = props.getProperty(BusinessCardProcessor.CONTAINER_DELIMITER_KEY, "%%");
+		this.jsonField = props.getProperty(BusinessCardProcessor.JSON_FIELD_KEY, "text");
+
+		final ThreadFactory factory = ProcessingEngine.createThreadFactory(
+			props.getProperty(EXECUTOR_KEY, ProcessingEngine.VIRTUAL_EXECUTOR), EXECUTOR_KEY, "bcp-server-");
+		server = HttpServer.create(new InetSocketAddress(props.getProperty(HOST_KEY, "127.0.0.1").trim(), port), 0);
+		server.setExecutor(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				factory.newThread(command).start();
+			}
+		});
+		server.createContext("/cards", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleCards(exchange);
+			}
+		});
+		server.createContext("/ready", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					if (processor.isReady()) {
+						respond(exchange, 200, "{\"ready\":true}");
+					} else {
+						respond(exchange, 503, "{\"ready\":false}");
+					}
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the port the server is listening on
+	 */
+	int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Stops taking requests, and gives those in progress a moment to finish.
+	 */
+	void stop() {
+		server.stop(STOP_DELAY_SECONDS);
+	}
+
+	private void handleCards(HttpExchange exchange) throws IOException {
+		long start = System.nanoTime();
+		requests.increment();
+		try {
+			String path = exchange.getRequestURI().getPath();
+			boolean batch = "/cards/batch".equals(path);
+			if (!batch && !"/cards".equals(path)) {
+				respondError(exchange, 404, "no such resource: " + path);
+				return;
+			}
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				exchange.getResponseHeaders().set("Allow", "POST");
+				respondError(exchange, 405, "cards must be POSTed");
+				return;
+			}
+			if (!processor.isReady()) {
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				respondError(exchange, 503, "not ready yet");
+				return;
+			}
+
+			long contentLength = contentLength(exchange);
+			if (contentLength > maxBodyBytes) {
+				respondError(exchange, 413, "request body is bigger than " + maxBodyBytes + " bytes");
+				return;
+			}
+
+			if (!permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+				rejected.increment();
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				respondError(exchange, 503, "too busy, try again");
+				return;
+			}
+			try {
+				byte[] body = readBody(exchange.getRequestBody(), contentLength);
+				if (body == null) {
+					respondError(exchange, 413, "request body is bigger than " + maxBodyBytes + " bytes");
+					return;
+				}
+				if (batch) {
+					handleBatch(exchange, body);
+				} else {
+					handleCard(exchange, body);
+				}
+			} finally {
+				permits.release();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			respondError(exchange, 503, "shutting down");
+		} finally {
+			exchange.close();
+			requestTime.recordSince(start);
+		}
+	}
+
+	private void handleCard(HttpExchange exchange, byte[] body) throws IOException {
+		CardReader.Card card;
+		try {
+			card = processor.cardReader.decode(body, "request");
+		} catch (IOException e) {
+			respondError(exchange, 413, e.getMessage());
+			return;
+		}
+		try (CardReader.Card text = card) {
+			ParseResult result = processor.parse(text);
+			if (result.isFailure()) {
+				failedCount.increment();
+				respond(exchange, 422, appendError(new StringBuilder(), result.getReason(), result.getField()).toString());
+				return;
+			}
+			ContactInfo info = result.getContactInfo();
+			processor.handleContactInfo(text, info);
+			processor.syncOutput();
+			processedCount.increment();
+			respond(exchange, 200, info.toJson());
+		} catch (IOException e) {
+			failedCount.increment();
+			respondError(exchange, 500, "unable to write output: " + e.getMessage());
+		} finally {
+			processor.cardDone();
+		}
+	}
+
+	private void handleBatch(HttpExchange exchange, byte[] body) throws IOException {
+		final StringBuilder results = new StringBuilder("[");
+		ContainerReader.CardHandler handler = new ContainerReader.CardHandler() {
+			@Override
+			public void card(long offset, int length, String text) {
+				separate();
+				try {
+					ParseResult result = processor.parse(text);
+					if (result.isFailure()) {
+						badCard(result.getReason(), result.getField());
+						return;
+					}
+					ContactInfo info = result.getContactInfo();
+					processor.handleContactInfo(text, info);
+					processedCount.increment();
+					info.appendJson(results);
+				} catch (IOException e) {
+					badCard("unable to write output: " + e.getMessage(), null);
+				} finally {
+					processor.cardDone();
+				}
+			}
+
+			@Override
+			public void badCard(long offset, int length, String reason) {
+				separate();
+				badCard(reason, null);
+			}
+
+			private void badCard(String reason, String field) {
+				failedCount.increment();
+				appendError(results, reason, field);
+			}
+
+			private void separate() {
+				if (results.length() > 1) {
+					results.append(',');
+				}
+			}
+		};
+
+		String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+		if (contentType != null && contentType.trim().startsWith(JSON_LINES_TYPE)) {
+			ContainerReader.readJsonLines(ByteBuffer.wrap(body), jsonField, handler);
+		} else {
+			ContainerReader.readDelimited(ByteBuffer.wrap(body), delimiter, processor.cardReader.getCharset(), handler);
+		}
+		try {
+			processor.syncOutput();
+		} catch (IOException e) {
+			respondError(exchange, 500, "unable to write output: " + e.getMessage());
+			return;
+		}
+		respond(exchange, 200, results.append(']').toString());
+	}
+
+	/**
+	 * @return the request's Content-Length, or -1 if it doesn't have one (or it's garbled)
+	 */
+	private static long contentLength(HttpExchange exchange) {
+		String value = exchange.getRequestHeaders().getFirst("Content-Length");
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @param contentLength how long the body should be, or -1 if it isn't known
+	 * @return the whole body, or null if it's too big
+	 */
+	private byte[] readBody(InputStream in, long contentLength) throws IOException {
+		// never more than one byte past the limit, which is enough to tell that a body is too big
+		long limit = maxBodyBytes + 1L;
+		byte[] buf = new byte[(int) Math.min(limit, contentLength >= 0 ? contentLength + 1 : 8192)];
+		int length = 0;
+		int n;
+		while ((n = in.read(buf, length, buf.length - length)) >= 0) {
+			length += n;
+			if (length == buf.length) {
+				if (length == limit) {
+					return null;
+				}
+				buf = Arrays.copyOf(buf, (int) Math.min(limit, buf.length * 2L));
+			}
+		}
+		return Arrays.copyOf(buf, length);
+	}
+
+	private static void respondError(HttpExchange exchange, int status, String message) throws IOException {
+		respond(exchange, status, appendError(new StringBuilder(), message, null).toString());
+	}
+
+	/**
+	 * @param field the field that was missing, if that's what the error is
+	 */
+	private static StringBuilder appendError(StringBuilder sb, String message, String field) {
+		ContactInfo.appendJsonString(sb.append("{\"error\":"), message);
+		if (field != null) {
+			ContactInfo.appendJsonString(sb.append(",\"field\":"), field);
+		}
+		return sb.append('}');
+	}
+
+	private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package org.example.bcp;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A field extractor that works a line at a time, off features of each line that are
+ * worked out once and shared by all extractors. This lets the parser scan a card just
+ * once, offering each line only to the extractors that say it could hold their field.
+ *
+ * Extractors are found with {@link java.util.ServiceLoader}: list the class in
+ * META-INF/services/org.example.bcp.LineFeatureExtractor. They need a public no-argument
+ * constructor, and are set up with {@link #init(Properties)}. The name, phone and email
+ * extractors are required; any others add extra fields to the contact info.
+ * @author astein
+ *
+ */
+public interface LineFeatureExtractor extends FieldExtractor {
+
+	/**
+	 * @return the name of the field this extractor finds (e.g. 'name', 'phone', 'email')
+	 */
+	public String getFieldName();
+
+	/**
+	 * Sets the extractor up, once, before it's used.
+	 * @param props the main properties
+	 * @throws IOException
+	 * @throws RecordProcessingException if properties are malformed
+	 */
+	public void init(Properties props) throws IOException, RecordProcessingException;
+
+	/**
+	 * @param features
+	 * @return false if a line with these features can't possibly hold the field
+	 */
+	public boolean accepts(LineFeatures features);
+
+	/**
+	 * @return a new matcher, for one card
+	 */
+	public FieldMatcher newMatcher();
+
+	/**
+	 * @return a number that changes whenever what the extractor finds in a card might
+	 * change (e.g. because its dictionaries have been reloaded); 0 if it never does
+	 */
+	public default long generation() {
+		return 0;
+	}
+
+	/**
+	 * @return a number that identifies what the extractor is looking things up in and how
+	 * (e.g. a checksum of its dictionaries), so that results saved from an earlier run can
+	 * be told apart if it has changed since; 0 if nothing about it can change
+	 */
+	public default long fingerprint() {
+		return 0;
+	}
+
+	/**
+	 * Runs a matcher over a whole record.
+	 */
+	@Override
+	public default String getField(List<String> ocrRecord) throws RecordProcessingException {
+		FieldMatcher matcher = newMatcher();
+		LineFeatures features = new LineFeatures();
+		for (String line : ocrRecord) {
+			String trimmed = line.trim();
+			if (accepts(features.compute(trimmed)) && matcher.offer(trimmed, features)) {
+				break;
+			}
+		}
+		String field = matcher.getField();
+		if (field == null) {
+			String reason = matcher.getMissingReason();
+			throw new RecordProcessingException(reason != null ? reason : "no " + getFieldName() + " found in OCR record");
+		}
+		return field;
+	}
+}
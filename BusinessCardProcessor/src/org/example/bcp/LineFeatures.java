@@ -0,0 +1,152 @@
+package org.example.bcp;
+
+import java.util.Arrays;
+
+/**
+ * Cheap facts about one line of a card, worked out in a single pass over its characters,
+ * so that each extractor can tell at a glance whether the line could possibly hold its
+ * field. One instance is reused for every line of a card.
+ *
+ * White-space here means what \s means in a regex: space, tab, line feed, vertical tab,
+ * form feed and carriage return.
+ * @author astein
+ *
+ */
+public final class LineFeatures {
+
+	private int length;
+	private int digitCount;
+	private int letterCount;
+	private int atCount;
+	private boolean leadingDigit;
+	// start and end of each white-space delimited token
+	private int[] tokenBounds = new int[16];
+	private int tokenCount;
+
+	/**
+	 * Works out the features of a line, replacing whatever was there before.
+	 * @param line
+	 * @return this
+	 */
+	public LineFeatures compute(CharSequence line) {
+		length = line.length();
+		digitCount = 0;
+		letterCount = 0;
+		atCount = 0;
+		tokenCount = 0;
+		leadingDigit = length > 0 && isDigit(line.charAt(0));
+
+		int tokenStart = -1;
+		for (int i=0; i<length; i++) {
+			char c = line.charAt(i);
+			if (isWhitespace(c)) {
+				if (tokenStart >= 0) {
+					addToken(tokenStart, i);
+					tokenStart = -1;
+				}
+				continue;
+			}
+			if (tokenStart < 0) {
+				tokenStart = i;
+			}
+			if (isDigit(c)) {
+				digitCount++;
+			} else if (c == '@') {
+				atCount++;
+			} else if (Character.isLetter(c)) {
+				letterCount++;
+			}
+		}
+		if (tokenStart >= 0) {
+			addToken(tokenStart, length);
+		}
+		return this;
+	}
+
+	private void addToken(int start, int end) {
+		if (2 * tokenCount + 2 > tokenBounds.length) {
+			tokenBounds = Arrays.copyOf(tokenBounds, tokenBounds.length * 2);
+		}
+		tokenBounds[2 * tokenCount] = start;
+		tokenBounds[2 * tokenCount + 1] = end;
+		tokenCount++;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * @return number of ASCII digits in the line
+	 */
+	public int digitCount() {
+		return digitCount;
+	}
+
+	/**
+	 * @return number of letters (of any alphabet) in the line
+	 */
+	public int letterCount() {
+		return letterCount;
+	}
+
+	public boolean hasAt() {
+		return atCount > 0;
+	}
+
+	/**
+	 * @return true if the line starts with an ASCII digit
+	 */
+	public boolean leadingDigit() {
+		return leadingDigit;
+	}
+
+	/**
+	 * @return true if the line is nothing but ASCII digits (and isn't empty)
+	 */
+	public boolean allDigits() {
+		return length > 0 && digitCount == length;
+	}
+
+	/**
+	 * @return number of white-space delimited tokens in the line
+	 */
+	public int tokenCount() {
+		return tokenCount;
+	}
+
+	/**
+	 * @param i
+	 * @return index of the first character of token i
+	 */
+	public int tokenStart(int i) {
+		checkToken(i);
+		return tokenBounds[2 * i];
+	}
+
+	/**
+	 * @param i
+	 * @return index after the last character of token i
+	 */
+	public int tokenEnd(int i) {
+		checkToken(i);
+		return tokenBounds[2 * i + 1];
+	}
+
+	private void checkToken(int i) {
+		if (i < 0 || i >= tokenCount) {
+			throw new IndexOutOfBoundsException("token " + i + " of " + tokenCount);
+		}
+	}
+
+	static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	/**
+	 * @return true for the characters that \s matches
+	 */
+	public static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+}
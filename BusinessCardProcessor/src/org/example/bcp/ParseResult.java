@@ -0,0 +1,64 @@
+package org.example.bcp;
+
+/**
+ * What parsing a card came up with: either its contact info, or which required field
+ * couldn't be found in it and why. Cards that fail are an everyday occurrence with OCR'd
+ * input, so a failure is just a result like any other, not an exception.
+ * @author astein
+ *
+ */
+public final class ParseResult {
+
+	private final ContactInfo contactInfo;
+	private final String field;
+	private final String reason;
+
+	private ParseResult(ContactInfo contactInfo, String field, String reason) {
+		this.contactInfo = contactInfo;
+		this.field = field;
+		this.reason = reason;
+	}
+
+	/**
+	 * @param contactInfo
+	 * @return a result for a card that was parsed
+	 */
+	public static ParseResult of(ContactInfo contactInfo) {
+		return new ParseResult(contactInfo, null, null);
+	}
+
+	/**
+	 * @param field name of the field that couldn't be found, e.g. 'name', or null if the
+	 * card failed for some other reason
+	 * @param reason
+	 * @return a result for a card that couldn't be parsed
+	 */
+	public static ParseResult missing(String field, String reason) {
+		return new ParseResult(null, field, reason == null ? "" : reason);
+	}
+
+	public boolean isFailure() {
+		return contactInfo == null;
+	}
+
+	/**
+	 * @return the contact info, or null if parsing failed
+	 */
+	public ContactInfo getContactInfo() {
+		return contactInfo;
+	}
+
+	/**
+	 * @return name of the field that couldn't be found, or null
+	 */
+	public String getField() {
+		return field;
+	}
+
+	/**
+	 * @return why parsing failed, or null if it didn't
+	 */
+	public String getReason() {
+		return reason;
+	}
+}
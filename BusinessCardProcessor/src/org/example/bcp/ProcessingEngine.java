@@ -0,0 +1,275 @@
+package org.example.bcp;
+
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.example.bcp.metrics.Metrics;
+
+/**
+ * Pools of worker threads that process raw card files handed off by the directory
+ * watchers. The watchers (and their catch-up scans) only ever enqueue file paths onto
+ * bounded queues; the workers take them off and run them through
+ * {@link BusinessCardProcessor#processFile(Path)}.
+ *
+ * Input can be split into shards (one per watched directory), each with its own queue
+ * and its own workers, so that one busy producer can't hold up the others. A worker
+ * whose own shard has nothing queued steals from the other shards' queues, so that idle
+ * workers help out with a shard that's falling behind rather than sitting around.
+ *
+ * The queues being bounded means that a flood of new files applies back-pressure to
+ * that shard's watcher rather than growing the heap without limit. A path that is already
+ * queued or being worked on is not enqueued a second time, so the catch-up scan and
+ * the watcher may both report the same file without it being processed twice.
+ *
+ * Each shard's queue depth is reported as a gauge (queue.depth.&lt;shard&gt;), and files
+ * taken from another shard's queue are counted (queue.stolen).
+ *
+ * Configured by the following (optional) properties:
+ * 'bcp.workers' - number of worker threads in all, shared out evenly between the shards
+ * (at least one each), defaults to the number of processors
+ * 'bcp.executor' - either 'platform' or 'virtual', defaults to 'platform'
+ * 'bcp.queue.capacity' - size of each shard's hand-off queue, defaults to 1024
+ * @author astein
+ *
+ */
+class ProcessingEngine {
+
+	static final String WORKERS_KEY = "bcp.workers";
+	static final String EXECUTOR_KEY = "bcp.executor";
+	static final String QUEUE_CAPACITY_KEY = "bcp.queue.capacity";
+
+	static final String PLATFORM_EXECUTOR = "platform";
+	static final String VIRTUAL_EXECUTOR = "virtual";
+
+	static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+	// how long an idle worker waits on its own queue before looking at the others again
+	private static final long STEAL_POLL_MILLIS = 50;
+
+	private final BusinessCardProcessor processor;
+	private final BlockingQueue<Path>[] queues;
+	private final Set<Path> pending = ConcurrentHashMap.newKeySet();
+	private final Thread[] workers;
+
+	private final LongAdder stolen = Metrics.get().counter("queue.stolen");
+
+	private volatile boolean accepting = true;
+
+	/**
+	 * @param processor the processor whose processFile method the workers will call
+	 * @param props main properties
+	 * @param shards the number of shards, at least 1
+	 * @throws RecordProcessingException if the engine properties are malformed
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	ProcessingEngine(BusinessCardProcessor processor, Properties props, int shards) throws RecordProcessingException {
+		this.processor = processor;
+
+		int workerCount = PropertiesLoader.getIntProperty(props, WORKERS_KEY, Runtime.getRuntime().availableProcessors());
+		int capacity = PropertiesLoader.getIntProperty(props, QUEUE_CAPACITY_KEY, DEFAULT_QUEUE_CAPACITY);
+		queues = new BlockingQueue[shards];
+		for (int i=0; i<shards; i++) {
+			final BlockingQueue<Path> queue = new ArrayBlockingQueue<Path>(capacity);
+			queues[i] = queue;
+			Metrics.get().gauge("queue.depth." + i, () -> queue.size());
+		}
+
+		ThreadFactory factory = createThreadFactory(props.getProperty(EXECUTOR_KEY, PLATFORM_EXECUTOR));
+		workers = new Thread[Math.max(workerCount, shards)];
+		for (int i=0; i<workers.length; i++) {
+			workers[i] = factory.newThread(new Worker(i % shards));
+		}
+	}
+
+	/**
+	 * Starts the worker threads.
+	 */
+	void start() {
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		System.out.println("started " + workers.length + " worker(s) for " + queues.length + " shard(s)");
+	}
+
+	/**
+	 * @return the number of shards
+	 */
+	int shards() {
+		return queues.length;
+	}
+
+	/**
+	 * Queues a file for processing. Blocks while the shard's queue is full.
+	 * @param shard
+	 * @param file
+	 * @return false if the file was already pending or the engine is shutting down
+	 * @throws InterruptedException
+	 */
+	boolean submit(int shard, Path file) throws InterruptedException {
+		if (!accepting || processor.isCommitting(file) || !pending.add(file)) {
+			return false;
+		}
+		try {
+			queues[shard].put(file);
+		} catch (InterruptedException e) {
+			pending.remove(file);
+			throw e;
+		}
+		return true;
+	}
+
+	/**
+	 * @param file
+	 * @return true if the file is queued, being worked on, or processed but not yet moved on
+	 */
+	boolean isPending(Path file) {
+		return pending.contains(file) || processor.isCommitting(file);
+	}
+
+	/**
+	 * @param shard
+	 * @return number of files in a shard waiting to be picked up by a worker
+	 */
+	int queueDepth(int shard) {
+		return queues[shard].size();
+	}
+
+	/**
+	 * Stops accepting new files and lets the workers finish the card that each of them
+	 * is working on. Anything still queued is left where it is in the watched directories,
+	 * to be picked up by the catch-up scans of the next run.
+	 * @param timeoutMillis how long to wait for the workers to finish
+	 */
+	void shutdown(long timeoutMillis) {
+		accepting = false;
+		for (BlockingQueue<Path> queue : queues) {
+			queue.clear();
+		}
+		pending.clear();
+		// a submitter that was already blocked may have slipped a file in after the
+		// clear; workers stop taking files once they see that the engine's shutting down
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		for (Thread worker : workers) {
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remaining <= 0) {
+				break;
+			}
+			try {
+				worker.join(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private class Worker implements Runnable {
+		private final int shard;
+
+		Worker(int shard) {
+			this.shard = shard;
+		}
+
+		@Override
+		public void run() {
+			while (accepting) {
+				Path file;
+				try {
+					file = next();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (file == null) {
+					continue;
+				}
+
+				try {
+					processor.processFile(file);
+				} catch (RuntimeException e) {
+					// processFile is meant to swallow its own problems; if something gets
+					// through anyway, don't let it take the worker down with it
+					System.err.println("unexpected error processing file '" + file + "': '" + e.getMessage() + "'");
+					e.printStackTrace();
+				} finally {
+					pending.remove(file);
+					processor.cardDone();
+				}
+			}
+		}
+
+		/**
+		 * @return the next file from this worker's own shard or, if there's nothing there,
+		 * from one of the others; null if there's nothing anywhere for now
+		 * @throws InterruptedException
+		 */
+		private Path next() throws InterruptedException {
+			Path file = queues[shard].poll();
+			if (file != null) {
+				return file;
+			}
+			for (int i=1; i<queues.length; i++) {
+				file = queues[(shard + i) % queues.length].poll();
+				if (file != null) {
+					stolen.increment();
+					return file;
+				}
+			}
+			return queues[shard].poll(STEAL_POLL_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Platform threads are plain daemon-less threads. Virtual threads need a JDK that
+	 * has them (21+); they're looked up reflectively so that the program still builds
+	 * and runs on older JDKs, which fall back to platform threads.
+	 * @param kind
+	 * @return
+	 * @throws RecordProcessingException
+	 */
+	static ThreadFactory createThreadFactory(String kind) throws RecordProcessingException {
+		return createThreadFactory(kind, EXECUTOR_KEY, "bcp-worker-");
+	}
+
+	/**
+	 * @param kind
+	 * @param key property the kind came from, for the error message
+	 * @param namePrefix threads are named this followed by a number
+	 * @return
+	 * @throws RecordProcessingException
+	 */
+	static ThreadFactory createThreadFactory(String kind, String key, final String namePrefix) throws RecordProcessingException {
+		if (VIRTUAL_EXECUTOR.equals(kind)) {
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+				Method factory = builderClass.getMethod("factory");
+				return (ThreadFactory) factory.invoke(builder);
+			} catch (ReflectiveOperationException e) {
+				System.err.println("virtual threads are not available in this JVM, using platform threads");
+			}
+		} else if (!PLATFORM_EXECUTOR.equals(kind)) {
+			throw new RecordProcessingException(
+				"value of " + key + " must be '" + PLATFORM_EXECUTOR + "' or '" + VIRTUAL_EXECUTOR + "'"
+			);
+		}
+
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, namePrefix + count.getAndIncrement());
+			}
+		};
+	}
+}
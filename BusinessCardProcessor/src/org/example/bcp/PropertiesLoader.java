@@ -1,7 +1,11 @@
 package org.example.bcp;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -15,6 +19,17 @@ public class PropertiesLoader {
 	
 	private static String extractorPrefix = "extractor.props.";
 	
+	/**
+	 * Directory whose copies of resource files (names database, extractor properties,
+	 * keyword dictionary...) are used instead of the ones on the classpath.
+	 */
+	public static final String RESOURCES_DIR_KEY = "bcp.resources.dir";
+	
+	/**
+	 * Suffix of the key under which the name of each extractor properties file is kept.
+	 */
+	public static final String FILE_SUFFIX = ".file";
+	
 	/**
 	 * Produces a properties object with entries that have string values as well as
 	 * values that are themselves Properties instances. The latter are loaded for any
@@ -22,7 +37,9 @@ public class PropertiesLoader {
 	 * 
 	 * Any property in propertiesFile that begins with "extractor.props." will be treated
 	 * as a file name from which to load an additional Properties instance. The value for
-	 * this property will be replaced with the Properties instance.
+	 * this property will be replaced with the Properties instance, and the file name kept
+	 * under the same key followed by {@link #FILE_SUFFIX}. Those files are looked for in
+	 * the resources directory first, if there is one (see {@link #openResource(Path, String)}).
 	 * 
 	 * @param propertiesFile
 	 * @return
@@ -36,22 +53,111 @@ public class PropertiesLoader {
 		is.close();
 		
 		// if any extractor properties, load those props into a temp map
+		Path dir = getResourcesDir(props);
 		Map<String, Properties> tmp = new HashMap<String, Properties>();
 		for (Object key : props.keySet()) {
 			if (((String)key).startsWith(extractorPrefix)) {
-				Properties exProps = new Properties();
-				InputStream exis = PropertiesLoader.class.getResourceAsStream("/"+(String)props.get(key));
-				exProps.load(exis);
-				tmp.put((String)key, exProps);
+				tmp.put((String)key, loadResourceProperties(dir, (String)props.get(key)));
 			}
 		}
 		
 		// swap extractor properties instances in for strings that were
 		// there originally
 		for (String key : tmp.keySet()) {
+			props.put(key + FILE_SUFFIX, props.get(key));
 			props.put(key, tmp.get(key));
 		}
 		
 		return props;
 	}
+	
+	/**
+	 * Loads a properties file from the resources directory, or the classpath.
+	 * @param dir resources directory, may be null
+	 * @param file
+	 * @return
+	 * @throws FileNotFoundException if it's in neither
+	 * @throws IOException
+	 */
+	public static Properties loadResourceProperties(Path dir, String file) throws FileNotFoundException, IOException {
+		InputStream is = openResource(dir, file);
+		if (is == null) {
+			throw new FileNotFoundException("properties file '" + file + "' not found");
+		}
+		Properties props = new Properties();
+		try {
+			props.load(is);
+		} finally {
+			is.close();
+		}
+		return props;
+	}
+	
+	/**
+	 * @param props the main properties
+	 * @return the resources directory, or null if there isn't one
+	 */
+	public static Path getResourcesDir(Properties props) {
+		String dir = props.getProperty(RESOURCES_DIR_KEY, "").trim();
+		return dir.isEmpty() ? null : Paths.get(dir);
+	}
+	
+	/**
+	 * Opens a resource file: the copy in the resources directory if there is one,
+	 * otherwise the one on the classpath.
+	 * @param dir resources directory, may be null
+	 * @param name file name, relative to the directory and the root of the classpath
+	 * @return the file's contents, or null if it's in neither place
+	 * @throws IOException
+	 */
+	public static InputStream openResource(Path dir, String name) throws IOException {
+		if (dir != null) {
+			Path file = dir.resolve(name);
+			if (Files.isRegularFile(file)) {
+				return Files.newInputStream(file);
+			}
+		}
+		return PropertiesLoader.class.getResourceAsStream("/" + name);
+	}
+	
+	/**
+	 * Reads a positive integer property, or returns the default if it isn't set.
+	 * @param props
+	 * @param key
+	 * @param defaultValue
+	 * @return
+	 * @throws RecordProcessingException if the value is not a positive integer
+	 */
+	public static int getIntProperty(Properties props, String key, int defaultValue) throws RecordProcessingException {
+		return getIntProperty(props, key, defaultValue, 1);
+	}
+	
+	/**
+	 * Reads an integer property that must be at least some minimum, or returns the default
+	 * if it isn't set.
+	 * @param props
+	 * @param key
+	 * @param defaultValue
+	 * @param minValue
+	 * @return
+	 * @throws RecordProcessingException if the value is not an integer, or is too small
+	 */
+	public static int getIntProperty(Properties props, String key, int defaultValue, int minValue) throws RecordProcessingException {
+		String val = props.getProperty(key);
+		if (val == null || val.trim().isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			int i = Integer.parseInt(val.trim());
+			if (i >= minValue) {
+				return i;
+			}
+		} catch (NumberFormatException e) {
+			// fall through
+		}
+		if (minValue == 1) {
+			throw new RecordProcessingException("value of " + key + " must be a positive integer");
+		}
+		throw new RecordProcessingException("value of " + key + " must be an integer of at least " + minValue);
+	}
 }
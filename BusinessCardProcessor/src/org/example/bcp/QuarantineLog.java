@@ -0,0 +1,114 @@
+package org.example.bcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.example.bcp.metrics.Metrics;
+import org.example.bcp.output.GroupCommitWriter;
+
+/**
+ * Records why cards failed, one JSON object per line, e.g.
+ *
+ * {"time":1700000000000,"file":"raw/card-17.txt","field":"email","reason":"no email found in OCR record"}
+ *
+ * Cards from container files also have "offset" and "length". "field" is null when the
+ * card failed for some reason other than a missing field (e.g. it couldn't be read).
+ *
+ * So that a flood of bad input can't cost more than the input itself, no more than a
+ * set number of failures a second are logged; the rest are only counted, and a line
+ * saying how many were left out, {"time":...,"suppressed":N}, is written once logging
+ * resumes. Every failure is counted in the metrics either way, as failed.&lt;field&gt;.
+ * Lines are buffered and written in the background, and aren't forced to disk.
+ * @author astein
+ *
+ */
+class QuarantineLog implements Closeable {
+
+	private final GroupCommitWriter writer;
+	private final int maxPerSecond;
+
+	// the second being counted, how many were logged in it, and how many have been left
+	// out since the last line that said so
+	private long second;
+	private int logged;
+	private long suppressed;
+
+	private final LongAdder suppressedCount = Metrics.get().counter("quarantine.suppressed");
+
+	/**
+	 * @param file appended to if it exists
+	 * @param maxPerSecond the most failures logged in any second; 0 to only count them
+	 * @throws IOException
+	 */
+	QuarantineLog(Path file, int maxPerSecond) throws IOException {
+		this.writer = new GroupCommitWriter(file, StandardCharsets.UTF_8, 16 * 1024, 2, 1000, GroupCommitWriter.SyncPolicy.NONE);
+		this.maxPerSecond = maxPerSecond;
+	}
+
+	/**
+	 * @param file the card's file
+	 * @param offset the card's byte offset in a container file, or -1
+	 * @param length the card's length in a container file
+	 * @param field the field that couldn't be found, or null
+	 * @param reason
+	 */
+	void failed(Path file, long offset, int length, String field, String reason) {
+		Metrics.get().counter("failed." + (field == null ? "other" : field)).increment();
+
+		long now = System.currentTimeMillis();
+		long earlier;
+		synchronized (this) {
+			if (now / 1000 != second) {
+				second = now / 1000;
+				logged = 0;
+			}
+			if (logged >= maxPerSecond) {
+				suppressed++;
+				suppressedCount.increment();
+				return;
+			}
+			logged++;
+			earlier = suppressed;
+			suppressed = 0;
+		}
+
+		StringBuilder sb = new StringBuilder(160);
+		if (earlier > 0) {
+			sb.append("{\"time\":").append(now).append(",\"suppressed\":").append(earlier).append("}\n");
+		}
+		sb.append("{\"time\":").append(now).append(",\"file\":");
+		ContactInfo.appendJsonString(sb, file == null ? null : file.toString());
+		if (offset >= 0) {
+			sb.append(",\"offset\":").append(offset).append(",\"length\":").append(length);
+		}
+		sb.append(",\"field\":");
+		ContactInfo.appendJsonString(sb, field);
+		sb.append(",\"reason\":");
+		ContactInfo.appendJsonString(sb, reason);
+		sb.append("}\n");
+		try {
+			writer.append(sb);
+		} catch (IOException e) {
+			System.err.println("unable to write to quarantine log, due to error: '" + e.getMessage() + "'");
+		}
+	}
+
+	/**
+	 * Writes out whatever is buffered, including how many failures were left out at the end.
+	 */
+	@Override
+	public void close() throws IOException {
+		long earlier;
+		synchronized (this) {
+			earlier = suppressed;
+			suppressed = 0;
+		}
+		if (earlier > 0) {
+			writer.append("{\"time\":" + System.currentTimeMillis() + ",\"suppressed\":" + earlier + "}\n");
+		}
+		writer.close();
+	}
+}
@@ -0,0 +1,288 @@
+package org.example.bcp;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.example.bcp.metrics.Metrics;
+import org.example.bcp.util.KeywordMatcher;
+
+/**
+ * Holds what the extractors look things up in, loaded together as one {@link Generation}:
+ * the keyword dictionary (see {@link KeywordMatcher}), which they share, plus whatever
+ * each extractor {@link #register(Part) registers} (e.g. the names database). All the
+ * extractors set up with the same main properties share one reloader, see
+ * {@link #of(Properties)}.
+ *
+ * If there's a resources directory (see {@link PropertiesLoader#RESOURCES_DIR_KEY}), the
+ * copies of those files in it are checked for changes every {@link #CHECK_SECONDS_KEY}
+ * seconds, and once a change has settled, a new generation is built in the background
+ * and swapped in whole. Each card is parsed with whichever generation was current when it
+ * started, so parsing never waits for a reload, or sees a half-built one, and every
+ * extractor sees the same keywords. If a reload fails, the old generation stays.
+ * @author astein
+ *
+ */
+public final class ResourceReloader implements Closeable {
+
+	// main property: how often to check the resources directory for changes (0 for never)
+	public static final String CHECK_SECONDS_KEY = "bcp.resources.check.seconds";
+
+	// where the shared reloader is kept in the main properties
+	private static final String INSTANCE_KEY = "bcp.resources.reloader";
+
+	/**
+	 * Something an extractor loads from resource files. A part should be a constant, so
+	 * that extractors of the same kind share it.
+	 * @param <T> what's loaded, which must never be changed once it has been
+	 */
+	public interface Part<T> {
+		/**
+		 * Loads the part afresh.
+		 * @param mainProps the main properties
+		 * @param keywords the keyword dictionary of the generation being built
+		 * @return
+		 * @throws IOException
+		 * @throws RecordProcessingException if properties are malformed, or it's unusable
+		 */
+		public T load(Properties mainProps, KeywordMatcher keywords) throws IOException, RecordProcessingException;
+
+		/**
+		 * @param mainProps the main properties
+		 * @param loaded the part as it was last loaded
+		 * @return names of the files it's loaded from, relative to the resources directory
+		 * (any nulls are ignored)
+		 */
+		public List<String> files(Properties mainProps, T loaded);
+	}
+
+	/**
+	 * Everything the extractors look things up in, as loaded at one time. Never changed
+	 * once it's been built.
+	 */
+	public static final class Generation {
+		// 1 for what was loaded at startup, one more for each reload
+		private final long number;
+		private final KeywordMatcher keywords;
+		private final Map<Part<?>, Object> parts;
+		// how long it took to load
+		private final long loadMillis;
+
+		Generation(long number, KeywordMatcher keywords, Map<Part<?>, Object> parts, long loadMillis) {
+			this.number = number;
+			this.keywords = keywords;
+			this.parts = parts;
+			this.loadMillis = loadMillis;
+		}
+
+		public long getNumber() {
+			return number;
+		}
+
+		public KeywordMatcher getKeywords() {
+			return keywords;
+		}
+
+		/**
+		 * @param part
+		 * @return the part as loaded for this generation, or null if it hasn't been registered
+		 */
+		@SuppressWarnings("unchecked")
+		public <T> T get(Part<T> part) {
+			return (T) parts.get(part);
+		}
+
+		public long getLoadMillis() {
+			return loadMillis;
+		}
+	}
+
+	private final Properties mainProps;
+	private final AtomicReference<Generation> current = new AtomicReference<Generation>();
+	// null unless the resources directory is being checked
+	private final ScheduledExecutorService checker;
+
+	// sizes and modification times of the files in the resources directory that the
+	// current generation was loaded from, and as they were at the last check; only
+	// touched while holding the reloader's lock
+	private String loadedStamp;
+	private String checkedStamp;
+
+	// reloads that didn't work out
+	private final LongAdder reloadFailures = Metrics.get().counter("resources.reload.failed");
+
+	/**
+	 * Loads the first generation, with nothing registered yet, and starts checking the
+	 * resources directory (if there is one).
+	 * @param mainProps
+	 * @throws FileNotFoundException if the keyword dictionary can't be found
+	 * @throws IOException
+	 * @throws RecordProcessingException if properties are malformed
+	 */
+	private ResourceReloader(Properties mainProps) throws FileNotFoundException, IOException, RecordProcessingException {
+		this.mainProps = mainProps;
+		int checkSeconds = PropertiesLoader.getIntProperty(mainProps, CHECK_SECONDS_KEY, 10, 0);
+		long start = System.nanoTime();
+		current.set(new Generation(1, KeywordMatcher.load(mainProps), new LinkedHashMap<Part<?>, Object>(),
+			(System.nanoTime() - start) / 1000000));
+		Path dir = PropertiesLoader.getResourcesDir(mainProps);
+		loadedStamp = checkedStamp = dir == null ? null : stamp(dir, current.get());
+
+		Metrics.get().gauge("resources.generation", () -> current.get().number);
+		Metrics.get().gauge("resources.loadMillis", () -> current.get().loadMillis);
+
+		if (dir != null && checkSeconds > 0) {
+			checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "bcp-resources-reloader");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			checker.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					checkForChanges();
+				}
+			}, checkSeconds, checkSeconds, TimeUnit.SECONDS);
+		} else {
+			checker = null;
+		}
+	}
+
+	/**
+	 * @param mainProps the main properties
+	 * @return the reloader shared by everything set up with these properties, made
+	 * (and kept in them) if need be
+	 * @throws FileNotFoundException if the keyword dictionary can't be found
+	 * @throws IOException
+	 * @throws RecordProcessingException if properties are malformed
+	 */
+	public static ResourceReloader of(Properties mainProps) throws FileNotFoundException, IOException, RecordProcessingException {
+		synchronized (mainProps) {
+			Object reloader = mainProps.get(INSTANCE_KEY);
+			if (!(reloader instanceof ResourceReloader)) {
+				reloader = new ResourceReloader(mainProps);
+				mainProps.put(INSTANCE_KEY, reloader);
+			}
+			return (ResourceReloader) reloader;
+		}
+	}
+
+	/**
+	 * @return the generation in use
+	 */
+	public Generation current() {
+		return current.get();
+	}
+
+	/**
+	 * Adds a part to the current generation, loading it, and to every generation after.
+	 * Does nothing if it's already been registered.
+	 * @param part
+	 * @throws IOException
+	 * @throws RecordProcessingException if properties are malformed, or the part is unusable
+	 */
+	public synchronized void register(Part<?> part) throws IOException, RecordProcessingException {
+		Generation generation = current.get();
+		if (generation.parts.containsKey(part)) {
+			return;
+		}
+		long start = System.nanoTime();
+		Map<Part<?>, Object> parts = new LinkedHashMap<Part<?>, Object>(generation.parts);
+		parts.put(part, part.load(mainProps, generation.keywords));
+		generation = new Generation(generation.number, generation.keywords, parts,
+			generation.loadMillis + (System.nanoTime() - start) / 1000000);
+		current.set(generation);
+		Path dir = PropertiesLoader.getResourcesDir(mainProps);
+		if (dir != null) {
+			loadedStamp = checkedStamp = stamp(dir, generation);
+		}
+	}
+
+	/**
+	 * Reloads if any of the files in the resources directory has changed since it was
+	 * last loaded, and hasn't changed since the last check (so isn't still being written).
+	 */
+	synchronized void checkForChanges() {
+		Generation old = current.get();
+		try {
+			String stamp = stamp(PropertiesLoader.getResourcesDir(mainProps), old);
+			boolean settled = stamp.equals(checkedStamp);
+			checkedStamp = stamp;
+			if (!settled || stamp.equals(loadedStamp)) {
+				return;
+			}
+
+			long start = System.nanoTime();
+			KeywordMatcher keywords = KeywordMatcher.load(mainProps);
+			Map<Part<?>, Object> parts = new LinkedHashMap<Part<?>, Object>();
+			for (Part<?> part : old.parts.keySet()) {
+				parts.put(part, part.load(mainProps, keywords));
+			}
+			Generation generation = new Generation(old.number + 1, keywords, parts, (System.nanoTime() - start) / 1000000);
+			current.set(generation);
+			loadedStamp = stamp;
+			System.out.println("reloaded resources, generation " + generation.number + ", in " + generation.loadMillis + " ms");
+		} catch (IOException | RecordProcessingException | RuntimeException e) {
+			// (don't try again until something changes)
+			loadedStamp = checkedStamp;
+			reloadFailures.increment();
+			System.err.println("unable to reload resources, keeping generation "
+				+ old.number + ", due to error: '" + e.getMessage() + "'");
+		}
+	}
+
+	/**
+	 * @param dir resources directory
+	 * @param generation the files that went into it are the ones looked at
+	 * @return sizes and modification times of the resource files in the directory
+	 * (whether they're there or not), as a string to compare with an earlier one
+	 * @throws IOException
+	 */
+	private String stamp(Path dir, Generation generation) throws IOException {
+		List<String> files = new ArrayList<String>();
+		files.add(mainProps.getProperty(KeywordMatcher.FILE_PROPERTY_KEY, KeywordMatcher.DEFAULT_FILE));
+		for (Map.Entry<Part<?>, Object> part : generation.parts.entrySet()) {
+			files.addAll(filesOf(part.getKey(), part.getValue()));
+		}
+		StringBuilder sb = new StringBuilder();
+		for (String file : files) {
+			Path path = file == null ? null : dir.resolve(file);
+			if (path != null && Files.isRegularFile(path)) {
+				sb.append(Files.size(path)).append('@').append(Files.getLastModifiedTime(path).toMillis());
+			}
+			sb.append(';');
+		}
+		return sb.toString();
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> List<String> filesOf(Part<T> part, Object loaded) {
+		return part.files(mainProps, (T) loaded);
+	}
+
+	/**
+	 * Stops checking for changes. The current generation stays in use.
+	 */
+	@Override
+	public void close() {
+		if (checker != null) {
+			checker.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,419 @@
+package org.example.bcp.archive;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * One file of an input archive, plus its index. Cards are only ever appended; once a
+ * segment is rolled it never changes again.
+ *
+ * A segment is:
+ * <pre>
+ * long   magic ("BCPARC01")
+ * record...
+ * </pre>
+ * and each record is:
+ * <pre>
+ * int    payload length
+ * int    CRC-32 of the payload
+ * long   timestamp (payload starts here)
+ * short  length of the file name in UTF-8 bytes
+ * bytes  the file name
+ * bytes  the file's contents, as they were
+ * </pre>
+ * The index file alongside it lists each record, and is what says which records are
+ * really there: records are written and forced to disk before their index entries are,
+ * so anything past the last indexed record was cut short by a crash, and is dropped.
+ * Each entry has a CRC of its own, and reading stops at the first one that doesn't match
+ * it (such as the zeros a crash can leave at the end of a file).
+ * <pre>
+ * long   magic ("BCPAIX02")
+ * entry... (int CRC-32 of the rest of the entry, long offset, int length, long timestamp,
+ *           short name length, name)
+ * </pre>
+ * @author astein
+ *
+ */
+final class ArchiveSegment {
+
+	static final long MAGIC = 0x4243504152433031L; // "BCPARC01"
+	static final long INDEX_MAGIC = 0x4243504149583032L; // "BCPAIX02"
+	static final int HEADER_BYTES = 8;
+	static final int RECORD_HEADER_BYTES = 8;
+	// an index entry, less the name
+	static final int INDEX_ENTRY_BYTES = 4 + 8 + 4 + 8 + 2;
+	// a record with an empty name and no contents
+	static final int MIN_RECORD_BYTES = RECORD_HEADER_BYTES + 8 + 2;
+	static final int MAX_NAME_BYTES = 0xFFFF;
+	// the most a file can hold and still fit in a record, whatever its name
+	static final long MAX_DATA_BYTES = Integer.MAX_VALUE - MIN_RECORD_BYTES - MAX_NAME_BYTES;
+	// files are copied into a segment this much at a time
+	private static final int CHUNK_BYTES = 64 * 1024;
+
+	static final String SEGMENT_SUFFIX = ".arc";
+	static final String INDEX_SUFFIX = ".idx";
+
+	/**
+	 * Where a card is in a segment, and what it was called.
+	 */
+	static final class Entry {
+		final long offset;
+		final int length;
+		final long timestamp;
+		final String name;
+
+		Entry(long offset, int length, long timestamp, String name) {
+			this.offset = offset;
+			this.length = length;
+			this.timestamp = timestamp;
+			this.name = name;
+		}
+	}
+
+	final int id;
+	final Path file;
+	final Path indexFile;
+	// when the segment was started (or its first card went in), for rolling by time
+	final long started;
+	private final FileChannel channel;
+	private final FileChannel indexChannel;
+	private long size;
+	// where the last committed record ends; anything after it can be rolled back
+	private long committedSize;
+	private long indexSize;
+	private int count;
+
+	private ArchiveSegment(int id, Path file, FileChannel channel, long size, FileChannel indexChannel, long indexSize,
+			int count, long started) {
+		this.id = id;
+		this.file = file;
+		this.indexFile = indexFileFor(file);
+		this.channel = channel;
+		this.size = size;
+		this.committedSize = size;
+		this.indexChannel = indexChannel;
+		this.indexSize = indexSize;
+		this.count = count;
+		this.started = started;
+	}
+
+	static Path fileFor(Path dir, int id) {
+		return dir.resolve(String.format("cards-%08d%s", id, SEGMENT_SUFFIX));
+	}
+
+	static Path indexFileFor(Path segmentFile) {
+		String name = segmentFile.getFileName().toString();
+		return segmentFile.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+	}
+
+	/**
+	 * Starts a new, empty segment.
+	 */
+	static ArchiveSegment create(Path dir, int id) throws IOException {
+		Path file = fileFor(dir, id);
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		FileChannel indexChannel = null;
+		try {
+			writeFully(channel, ByteBuffer.allocate(HEADER_BYTES).putLong(0, MAGIC), 0);
+			indexChannel = FileChannel.open(indexFileFor(file), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+			writeFully(indexChannel, ByteBuffer.allocate(HEADER_BYTES).putLong(0, INDEX_MAGIC), 0);
+			return new ArchiveSegment(id, file, channel, HEADER_BYTES, indexChannel, HEADER_BYTES, 0, System.currentTimeMillis());
+		} catch (IOException e) {
+			channel.close();
+			if (indexChannel != null) {
+				indexChannel.close();
+			}
+			// so that the next try doesn't find it already there
+			Files.deleteIfExists(file);
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens the last segment of an archive to carry on appending to it. Index entries are
+	 * checked against the records they point at; anything past the last good entry, and
+	 * any records past the last indexed one, are cut off. A segment that a crash left
+	 * without an index (or header) is started again, as long as nothing was written to it.
+	 */
+	static ArchiveSegment openForAppend(Path file, int id) throws IOException {
+		Path indexFile = indexFileFor(file);
+		List<Entry> entries = new ArrayList<Entry>();
+		List<Long> entryEnds = new ArrayList<Long>();
+		long indexEnd = readIndex(indexFile, entries, entryEnds);
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		FileChannel indexChannel = null;
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			boolean hasHeader = channel.read(header, 0) == HEADER_BYTES && header.getLong(0) == MAGIC;
+			long fileSize = channel.size();
+			if (indexEnd < 0 && (fileSize < HEADER_BYTES || (fileSize == HEADER_BYTES && hasHeader))) {
+				channel.close();
+				System.out.println("starting archive segment '" + file + "' again, as it was never finished");
+				Files.delete(file);
+				return create(file.getParent(), id);
+			}
+			if (indexEnd < 0) {
+				throw new IOException("'" + indexFile + "' is missing, or is not an input archive index");
+			}
+			if (!hasHeader) {
+				throw new IOException("'" + file + "' is not an input archive segment");
+			}
+
+			long size = HEADER_BYTES;
+			int good = 0;
+			ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_BYTES + 8);
+			for (Entry entry : entries) {
+				if (entry.offset != size || entry.length < MIN_RECORD_BYTES || fileSize - size < entry.length) {
+					break;
+				}
+				recordHeader.clear();
+				readFully(channel, recordHeader, entry.offset);
+				if (recordHeader.getInt(0) != entry.length - RECORD_HEADER_BYTES || recordHeader.getLong(RECORD_HEADER_BYTES) != entry.timestamp) {
+					break;
+				}
+				size += entry.length;
+				good++;
+			}
+			if (good < entries.size()) {
+				System.err.println("dropping " + (entries.size() - good) + " entries of '" + indexFile + "' that don't match '" + file + "'");
+				entries = entries.subList(0, good);
+				indexEnd = good == 0 ? HEADER_BYTES : entryEnds.get(good - 1);
+			}
+
+			indexChannel = FileChannel.open(indexFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			channel.truncate(size);
+			indexChannel.truncate(indexEnd);
+			long started = entries.isEmpty() ? System.currentTimeMillis() : entries.get(0).timestamp;
+			return new ArchiveSegment(id, file, channel, size, indexChannel, indexEnd, entries.size(), started);
+		} catch (IOException e) {
+			channel.close();
+			if (indexChannel != null) {
+				indexChannel.close();
+			}
+			throw e;
+		}
+	}
+
+	long size() {
+		return size;
+	}
+
+	int count() {
+		return count;
+	}
+
+	/**
+	 * Appends a card, copying the file it's in a chunk at a time. It isn't in the archive
+	 * until it's been {@link #commit(List) committed}. Only one thread may append at a time.
+	 * @param name the name to archive it under
+	 * @param source the file holding it
+	 * @param timestamp
+	 * @return the card's index entry
+	 * @throws IOException if the file can't be read, or holds more than {@link #MAX_DATA_BYTES}
+	 */
+	Entry append(String name, Path source, long timestamp) throws IOException {
+		byte[] nameBytes = nameBytes(name);
+		ByteBuffer head = ByteBuffer.allocate(RECORD_HEADER_BYTES + 8 + 2 + nameBytes.length);
+		head.putInt(0); // payload length and CRC, filled in below
+		head.putInt(0);
+		head.putLong(timestamp);
+		head.putShort((short) nameBytes.length);
+		head.put(nameBytes);
+		head.flip();
+		ByteBuffer payloadHead = head.duplicate();
+		payloadHead.position(RECORD_HEADER_BYTES);
+		CRC32 crc = new CRC32();
+		crc.update(payloadHead);
+
+		long offset = size;
+		long position = offset + head.limit();
+		long dataLength = 0;
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+			ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+			while (in.read(chunk) >= 0) {
+				chunk.flip();
+				int n = chunk.remaining();
+				dataLength += n;
+				if (dataLength > MAX_DATA_BYTES) {
+					throw new IOException("'" + source + "' is more than " + MAX_DATA_BYTES + " bytes, too big to archive");
+				}
+				crc.update(chunk.duplicate());
+				writeFully(channel, chunk, position);
+				position += n;
+				chunk.clear();
+			}
+		}
+		int length = (int) (position - offset);
+		head.putInt(0, length - RECORD_HEADER_BYTES);
+		head.putInt(4, (int) crc.getValue());
+		writeFully(channel, head, offset);
+		size = position;
+		return new Entry(offset, length, timestamp, name);
+	}
+
+	/**
+	 * Forces the records appended so far to disk, then adds their index entries (and
+	 * forces those too).
+	 */
+	void commit(List<Entry> entries) throws IOException {
+		if (entries.isEmpty()) {
+			return;
+		}
+		channel.force(false);
+		int length = 0;
+		for (Entry entry : entries) {
+			length += INDEX_ENTRY_BYTES + nameBytes(entry.name).length;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		for (Entry entry : entries) {
+			byte[] nameBytes = nameBytes(entry.name);
+			int start = buf.position();
+			buf.putInt(0); // CRC, filled in below
+			buf.putLong(entry.offset);
+			buf.putInt(entry.length);
+			buf.putLong(entry.timestamp);
+			buf.putShort((short) nameBytes.length);
+			buf.put(nameBytes);
+			buf.putInt(start, crc(buf, start + 4, buf.position() - start - 4));
+		}
+		buf.flip();
+		writeFully(indexChannel, buf, indexSize);
+		indexChannel.force(false);
+		indexSize += length;
+		count += entries.size();
+		committedSize = size;
+	}
+
+	/**
+	 * Drops whatever's been appended since the last commit, after a failure to append or
+	 * commit, so that it isn't left as a gap in front of the next records.
+	 * @throws IOException if the segment can't be cut back, and so shouldn't be appended to
+	 */
+	void rollBack() throws IOException {
+		channel.truncate(committedSize);
+		indexChannel.truncate(indexSize);
+		size = committedSize;
+	}
+
+	void close() throws IOException {
+		try {
+			channel.close();
+		} finally {
+			indexChannel.close();
+		}
+	}
+
+	/**
+	 * Reads an index file, stopping at an entry that's cut short or damaged.
+	 * @param indexFile
+	 * @param entries where to put the entries
+	 * @return the end of the last good entry, or -1 if it's not an index file
+	 * @throws IOException
+	 */
+	static long readIndex(Path indexFile, List<Entry> entries) throws IOException {
+		return readIndex(indexFile, entries, null);
+	}
+
+	/**
+	 * @param entryEnds if not null, where to put the end of each entry in the index file
+	 */
+	private static long readIndex(Path indexFile, List<Entry> entries, List<Long> entryEnds) throws IOException {
+		byte[] bytes;
+		try {
+			bytes = Files.readAllBytes(indexFile);
+		} catch (NoSuchFileException e) {
+			return -1;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		if (bytes.length < HEADER_BYTES || buf.getLong() != INDEX_MAGIC) {
+			return -1;
+		}
+		long end = buf.position();
+		while (buf.remaining() >= INDEX_ENTRY_BYTES) {
+			int start = buf.position();
+			int crc = buf.getInt();
+			long offset = buf.getLong();
+			int length = buf.getInt();
+			long timestamp = buf.getLong();
+			int nameLength = buf.getShort() & 0xFFFF;
+			if (buf.remaining() < nameLength || crc(buf, start + 4, INDEX_ENTRY_BYTES - 4 + nameLength) != crc) {
+				break;
+			}
+			String name = new String(bytes, buf.position(), nameLength, StandardCharsets.UTF_8);
+			buf.position(buf.position() + nameLength);
+			entries.add(new Entry(offset, length, timestamp, name));
+			end = buf.position();
+			if (entryEnds != null) {
+				entryEnds.add(end);
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Reads a card's contents back out of a segment file.
+	 * @throws IOException if it can't be read, or is damaged
+	 */
+	static byte[] read(FileChannel channel, Path file, Entry entry) throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(entry.length);
+		readFully(channel, record, entry.offset);
+		record.flip();
+		int payloadLength = record.getInt(0);
+		if (payloadLength != entry.length - RECORD_HEADER_BYTES || crc(record, RECORD_HEADER_BYTES, payloadLength) != record.getInt(4)) {
+			throw new IOException("damaged record at offset " + entry.offset + " of '" + file + "'");
+		}
+		int nameLength = record.getShort(RECORD_HEADER_BYTES + 8) & 0xFFFF;
+		int dataStart = RECORD_HEADER_BYTES + 8 + 2 + nameLength;
+		byte[] data = new byte[entry.length - dataStart];
+		record.position(dataStart);
+		record.get(data);
+		return data;
+	}
+
+	/**
+	 * File names are cut short, rather than refused, if they're absurdly long.
+	 */
+	private static byte[] nameBytes(String name) {
+		// no more than three bytes a char, so this always fits
+		if (name.length() > MAX_NAME_BYTES / 3) {
+			name = name.substring(0, MAX_NAME_BYTES / 3);
+		}
+		return name.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int crc(ByteBuffer buf, int start, int length) {
+		ByteBuffer dup = buf.duplicate();
+		dup.limit(start + length);
+		dup.position(start);
+		CRC32 crc = new CRC32();
+		crc.update(dup);
+		return (int) crc.getValue();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			position += channel.write(buf, position);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, position);
+			if (n < 0) {
+				throw new EOFException("record runs past the end of the segment");
+			}
+			position += n;
+		}
+	}
+}
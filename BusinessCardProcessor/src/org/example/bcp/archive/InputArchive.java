@@ -0,0 +1,383 @@
+package org.example.bcp.archive;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.example.bcp.metrics.Metrics;
+
+/**
+ * Keeps processed input files in a handful of big archive files instead of one file
+ * each, so that the directory doesn't end up holding millions of tiny files.
+ *
+ * A file handed to {@link #submit(Path)} is first moved into a staging directory inside
+ * the archive directory (a cheap rename, so it's out of the watched directory at once).
+ * A background thread then appends staged files to the current segment (see
+ * {@link ArchiveSegment}) in batches, forces each batch to disk, indexes it, and only then
+ * deletes the staged originals. If a batch fails part way, whatever of it went into the
+ * segment after the last commit is cut off again, and its files stay staged; anything
+ * still staged when the program stops is archived the next time it starts. A file too big
+ * to fit in a record is moved into the archive directory as it is, under its staged name.
+ *
+ * A segment is rolled once it reaches a size, or once it's been in use for a while.
+ * Every file is kept, even when several have the same name; {@link #find(Path, String)} returns
+ * all of them. Lookups only read committed index entries, so they can be done while the
+ * archive is being written.
+ * @author astein
+ *
+ */
+public class InputArchive {
+
+	static final String STAGING_DIR = "staging";
+
+	// most files archived in one go, between forces
+	private static final int MAX_BATCH = 1024;
+
+	// put on the queue to stop the archiver
+	private static final Path STOP = Paths.get("");
+
+	/**
+	 * A card found in the archive.
+	 */
+	public static final class ArchivedCard {
+		private final String name;
+		private final long timestamp;
+		private final byte[] data;
+
+		ArchivedCard(String name, long timestamp, byte[] data) {
+			this.name = name;
+			this.timestamp = timestamp;
+			this.data = data;
+		}
+
+		/**
+		 * @return the name of the file the card came in
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return when the card was archived, in milliseconds since the epoch
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * @return the file's contents, as they were
+		 */
+		public byte[] getData() {
+			return data;
+		}
+	}
+
+	private final Path dir;
+	private final Path stagingDir;
+	private final long segmentBytes;
+	private final long rollMillis;
+
+	private final BlockingQueue<Path> queue = new LinkedBlockingQueue<Path>();
+	private final Thread archiver;
+	// makes staged file names unique, even across restarts
+	private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() * 1000);
+
+	// only touched by the archiver thread
+	private ArchiveSegment current;
+	// set if a failed batch couldn't be cut off the current segment, which mustn't then
+	// be appended to again
+	private boolean rollNeeded;
+
+	private final LongAdder archived = Metrics.get().counter("archive.archived");
+	private final LongAdder errors = Metrics.get().counter("archive.errors");
+
+	/**
+	 * Opens (or creates) an archive, and starts archiving anything left staged from
+	 * last time.
+	 * @param dir
+	 * @param segmentBytes segments are rolled once they get to this size
+	 * @param rollMillis segments are rolled once they've been in use for this long, 0 for never
+	 * @throws IOException
+	 */
+	public InputArchive(Path dir, long segmentBytes, long rollMillis) throws IOException {
+		this.dir = dir;
+		this.stagingDir = dir.resolve(STAGING_DIR);
+		this.segmentBytes = segmentBytes;
+		this.rollMillis = rollMillis;
+		Files.createDirectories(stagingDir);
+
+		List<Integer> ids = segmentIds(dir);
+		if (ids.isEmpty()) {
+			current = ArchiveSegment.create(dir, 1);
+		} else {
+			int last = ids.get(ids.size() - 1);
+			current = ArchiveSegment.openForAppend(ArchiveSegment.fileFor(dir, last), last);
+		}
+
+		List<Path> leftovers = new ArrayList<Path>();
+		try (DirectoryStream<Path> staged = Files.newDirectoryStream(stagingDir)) {
+			for (Path file : staged) {
+				leftovers.add(file);
+			}
+		}
+		Collections.sort(leftovers);
+		if (!leftovers.isEmpty()) {
+			System.out.println("archiving " + leftovers.size() + " file(s) left in '" + stagingDir + "'");
+		}
+		queue.addAll(leftovers);
+
+		archiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				archiveLoop();
+			}
+		}, "bcp-archiver-" + dir.getFileName());
+		archiver.setDaemon(true);
+		archiver.start();
+	}
+
+	/**
+	 * Takes a file out of wherever it is and queues it to be archived.
+	 * @param file
+	 * @throws IOException if it can't be moved into the staging directory
+	 */
+	public void submit(Path file) throws IOException {
+		while (true) {
+			Path staged = stagingDir.resolve(sequence.incrementAndGet() + "_" + file.getFileName());
+			try {
+				Files.move(file, staged);
+				queue.add(staged);
+				return;
+			} catch (FileAlreadyExistsException e) {
+				// try the next number
+			}
+		}
+	}
+
+	/**
+	 * Archives whatever's queued, then stops the archiver and closes the archive.
+	 */
+	public void close() {
+		queue.add(STOP);
+		try {
+			archiver.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			current.close();
+		} catch (IOException e) {
+			System.err.println("unable to close archive segment '" + current.file + "', due to error: '" + e.getMessage() + "'");
+		}
+	}
+
+	private void archiveLoop() {
+		List<Path> batch = new ArrayList<Path>();
+		boolean stopping = false;
+		while (!stopping) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch, MAX_BATCH - 1);
+			stopping = batch.remove(STOP);
+			try {
+				archive(batch);
+			} catch (IOException | RuntimeException | Error e) {
+				// the files stay staged, and are tried again at the next start. the
+				// archiver carries on, so that later files don't pile up in staging
+				errors.add(batch.size());
+				System.err.println("unable to archive " + batch.size() + " file(s) into '" + dir + "', due to error: '" + e.getMessage() + "'");
+				e.printStackTrace();
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Appends a batch of staged files, rolling segments as needed, then deletes them.
+	 */
+	private void archive(List<Path> batch) throws IOException {
+		List<ArchiveSegment.Entry> pending = new ArrayList<ArchiveSegment.Entry>();
+		List<Path> done = new ArrayList<Path>();
+		if (rollNeeded) {
+			roll();
+			rollNeeded = false;
+		}
+		try {
+			for (Path staged : batch) {
+				long length;
+				try {
+					length = Files.size(staged);
+				} catch (NoSuchFileException e) {
+					continue;
+				}
+				if (length > ArchiveSegment.MAX_DATA_BYTES) {
+					Files.move(staged, dir.resolve(staged.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+					System.err.println("'" + staged.getFileName() + "' is too big to archive; moved it to '" + dir + "' as it is");
+					continue;
+				}
+				long now = System.currentTimeMillis();
+				if (current.count() + pending.size() > 0 &&
+						(current.size() + length > segmentBytes || (rollMillis > 0 && now - current.started >= rollMillis))) {
+					commit(pending, done);
+					roll();
+				}
+				pending.add(current.append(originalName(staged), staged, now));
+				done.add(staged);
+			}
+			commit(pending, done);
+		} catch (IOException | RuntimeException | Error e) {
+			rollBack();
+			throw e;
+		}
+	}
+
+	/**
+	 * Commits what's been appended, then deletes the staged files it came from.
+	 */
+	private void commit(List<ArchiveSegment.Entry> pending, List<Path> done) throws IOException {
+		current.commit(pending);
+		pending.clear();
+		archived.add(done.size());
+		try {
+			for (Path staged : done) {
+				Files.deleteIfExists(staged);
+			}
+		} finally {
+			done.clear();
+		}
+	}
+
+	/**
+	 * Cuts off whatever was appended to the current segment since its last commit, or if
+	 * that can't be done, has the next batch start a new segment, so that nothing's
+	 * indexed after a gap.
+	 */
+	private void rollBack() {
+		try {
+			current.rollBack();
+		} catch (IOException e) {
+			System.err.println("unable to roll back archive segment '" + current.file + "', due to error: '" + e.getMessage() + "'");
+			rollNeeded = true;
+		}
+	}
+
+	private void roll() throws IOException {
+		ArchiveSegment next = ArchiveSegment.create(dir, current.id + 1);
+		current.close();
+		current = next;
+	}
+
+	/**
+	 * @return the name the file had before it was staged
+	 */
+	private static String originalName(Path staged) {
+		String name = staged.getFileName().toString();
+		return name.substring(name.indexOf('_') + 1);
+	}
+
+	/**
+	 * @return the ids of the segments in an archive directory, in order
+	 */
+	private static List<Integer> segmentIds(Path dir) throws IOException {
+		List<Integer> ids = new ArrayList<Integer>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "cards-*" + ArchiveSegment.SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					ids.add(Integer.parseInt(name.substring("cards-".length(), name.length() - ArchiveSegment.SEGMENT_SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					// not one of ours
+				}
+			}
+		}
+		Collections.sort(ids);
+		return ids;
+	}
+
+	/**
+	 * Finds every archived file with a given name, oldest first. Only the (small) index
+	 * files are read, plus the records that match.
+	 * @param dir the archive directory
+	 * @param name
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<ArchivedCard> find(Path dir, String name) throws IOException {
+		List<ArchivedCard> found = new ArrayList<ArchivedCard>();
+		for (int id : segmentIds(dir)) {
+			Path file = ArchiveSegment.fileFor(dir, id);
+			List<ArchiveSegment.Entry> entries = new ArrayList<ArchiveSegment.Entry>();
+			ArchiveSegment.readIndex(ArchiveSegment.indexFileFor(file), entries);
+			FileChannel channel = null;
+			try {
+				for (ArchiveSegment.Entry entry : entries) {
+					if (!entry.name.equals(name)) {
+						continue;
+					}
+					if (channel == null) {
+						channel = FileChannel.open(file, StandardOpenOption.READ);
+					}
+					found.add(new ArchivedCard(entry.name, entry.timestamp, ArchiveSegment.read(channel, file, entry)));
+				}
+			} finally {
+				if (channel != null) {
+					channel.close();
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Looks up archived cards from the command line. Safe to run while bcp is.
+	 * <pre>
+	 * InputArchive &lt;archive dir&gt; get &lt;file name&gt;
+	 * InputArchive &lt;archive dir&gt; list
+	 * </pre>
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 3 && "get".equals(args[1])) {
+			List<ArchivedCard> cards = find(Paths.get(args[0]), args[2]);
+			if (cards.isEmpty()) {
+				System.out.println("no archived file named '" + args[2] + "'");
+			}
+			for (ArchivedCard card : cards) {
+				System.out.println("==== " + card.getName() + ", archived " + new Date(card.getTimestamp()));
+				System.out.println(new String(card.getData(), Charset.defaultCharset()));
+			}
+		} else if (args.length == 2 && "list".equals(args[1])) {
+			Path dir = Paths.get(args[0]);
+			for (int id : segmentIds(dir)) {
+				List<ArchiveSegment.Entry> entries = new ArrayList<ArchiveSegment.Entry>();
+				ArchiveSegment.readIndex(ArchiveSegment.indexFileFor(ArchiveSegment.fileFor(dir, id)), entries);
+				for (ArchiveSegment.Entry entry : entries) {
+					System.out.println(new Date(entry.timestamp) + "\t" + entry.name);
+				}
+			}
+		} else {
+			System.err.println("Usage: InputArchive <archive dir> get <file name>");
+			System.err.println("       InputArchive <archive dir> list");
+		}
+	}
+}
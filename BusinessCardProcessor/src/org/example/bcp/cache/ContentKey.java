@@ -0,0 +1,82 @@
+package org.example.bcp.cache;
+
+/**
+ * A 128-bit hash of a card's text, used to recognise a card that has been seen before.
+ *
+ * The two halves are independent 64-bit hashes (multiply-xorshift over the characters,
+ * with different seeds and multipliers, each finished with the MurmurHash3 mixer), so
+ * telling two different cards apart doesn't depend on any single 64-bit hash. The
+ * length is mixed in as well.
+ * @author astein
+ *
+ */
+public final class ContentKey {
+
+	private static final long SEED_1 = 0x9E3779B97F4A7C15L;
+	private static final long SEED_2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long MULTIPLIER_1 = 0xFF51AFD7ED558CCDL;
+	private static final long MULTIPLIER_2 = 0xC4CEB9FE1A85EC53L;
+
+	final long high;
+	final long low;
+
+	ContentKey(long high, long low) {
+		this.high = high;
+		this.low = low;
+	}
+
+	/**
+	 * @param text
+	 * @return the key for that text
+	 */
+	public static ContentKey of(CharSequence text) {
+		int length = text.length();
+		long h1 = SEED_1 ^ length;
+		long h2 = SEED_2 ^ ((long) length << 32);
+		int i = 0;
+		// four chars at a time
+		for (; i + 4 <= length; i += 4) {
+			long word = text.charAt(i)
+				| (long) text.charAt(i + 1) << 16
+				| (long) text.charAt(i + 2) << 32
+				| (long) text.charAt(i + 3) << 48;
+			h1 = (h1 ^ word) * MULTIPLIER_1;
+			h1 ^= h1 >>> 29;
+			h2 = (h2 ^ Long.rotateLeft(word, 31)) * MULTIPLIER_2;
+			h2 ^= h2 >>> 31;
+		}
+		for (; i < length; i++) {
+			h1 = (h1 ^ text.charAt(i)) * MULTIPLIER_1;
+			h2 = (h2 ^ text.charAt(i)) * MULTIPLIER_2;
+		}
+		return new ContentKey(mix(h1), mix(h2 ^ h1));
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= MULTIPLIER_1;
+		h ^= h >>> 33;
+		h *= MULTIPLIER_2;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof ContentKey)) {
+			return false;
+		}
+		ContentKey other = (ContentKey) o;
+		return high == other.high && low == other.low;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (low ^ (low >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%016x%016x", high, low);
+	}
+}
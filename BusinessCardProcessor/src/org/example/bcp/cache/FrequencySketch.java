@@ -0,0 +1,90 @@
+package org.example.bcp.cache;
+
+/**
+ * Estimates how often each key has been seen recently, for TinyLFU-style admission.
+ *
+ * A count-min sketch of 4-bit counters, packed 16 to a long: each key bumps one counter
+ * in each of four rows, and its estimate is the smallest of the four. Once the number of
+ * increments reaches ten times the table's width, every counter is halved, so that old
+ * popularity fades. Not thread-safe; the cache calls it under its own lock.
+ * @author astein
+ *
+ */
+final class FrequencySketch {
+
+	private static final long[] SEEDS = {
+		0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L
+	};
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	// four rows of 'width' counters each, one after the other
+	private final long[] table;
+	private final int width;
+	private final int sampleSize;
+	private int additions;
+
+	/**
+	 * @param expectedEntries roughly how many entries the cache holds; rows are eight
+	 * times as wide as that, to keep keys that aren't in the cache from inflating the
+	 * counts of ones that are
+	 */
+	FrequencySketch(int expectedEntries) {
+		width = Integer.highestOneBit(Math.max(16, (int) Math.min(8L * expectedEntries, 1 << 22)) - 1) << 1;
+		table = new long[4 * width / 16];
+		sampleSize = 10 * width;
+	}
+
+	/**
+	 * @return the estimated number of recent sightings of the key, at most 15
+	 */
+	int frequency(ContentKey key) {
+		int min = 15;
+		for (int row=0; row<4; row++) {
+			min = Math.min(min, counter(index(key, row)));
+		}
+		return min;
+	}
+
+	/**
+	 * Records a sighting of the key.
+	 */
+	void increment(ContentKey key) {
+		boolean added = false;
+		for (int row=0; row<4; row++) {
+			added |= incrementAt(index(key, row));
+		}
+		if (added && ++additions >= sampleSize) {
+			reset();
+		}
+	}
+
+	/**
+	 * @return which counter of the table holds the key's count for a row
+	 */
+	private int index(ContentKey key, int row) {
+		long h = (key.low + SEEDS[row]) * (key.high | 1);
+		h ^= h >>> 32;
+		return row * width + ((int) h & (width - 1));
+	}
+
+	private int counter(int i) {
+		return (int) (table[i >>> 4] >>> ((i & 15) << 2)) & 15;
+	}
+
+	private boolean incrementAt(int i) {
+		int shift = (i & 15) << 2;
+		long mask = 15L << shift;
+		if ((table[i >>> 4] & mask) == mask) {
+			return false;
+		}
+		table[i >>> 4] += 1L << shift;
+		return true;
+	}
+
+	private void reset() {
+		for (int i=0; i<table.length; i++) {
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		additions /= 2;
+	}
+}
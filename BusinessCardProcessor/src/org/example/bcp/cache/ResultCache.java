@@ -0,0 +1,333 @@
+package org.example.bcp.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.example.bcp.ContactInfo;
+import org.example.bcp.metrics.Metrics;
+
+/**
+ * Remembers what parsing a card's text came up with, keyed by a hash of the text, so
+ * that a card that's submitted again doesn't have to be parsed again. Both successes
+ * (the contact info) and failures (the missing field and reason) are remembered.
+ *
+ * The cache is bounded by number of entries and by (estimated) memory. Entries are kept
+ * in least-recently-used order, but when the cache is full a new entry only gets in if
+ * its text has been seen more often lately than the entry it would push out (TinyLFU
+ * admission), so a stream of one-off cards can't flush out the ones that keep coming
+ * back.
+ *
+ * The cache can be saved to a file and loaded back at the next start. The file records
+ * the parser's fingerprint (which extractors, and what dictionaries they use), and what
+ * was loaded is thrown away if the parser's fingerprint is different now.
+ *
+ * Hits, misses, evictions and rejected entries are counted in the metrics (cache.*).
+ * All methods are synchronized; a lookup is far cheaper than the parse it saves.
+ * @author astein
+ *
+ */
+public class ResultCache {
+
+	private static final long MAGIC = 0x4243504341434845L; // "BCPCACHE"
+	private static final int VERSION = 4;
+
+	// rough per-entry overhead (key, entry, map node), plus two bytes per char of strings
+	private static final int ENTRY_OVERHEAD_BYTES = 160;
+
+	/**
+	 * The outcome of parsing a card: either contact info or the field it was missing and why.
+	 */
+	public static final class Result {
+		private final String name;
+		private final String phoneNumber;
+		private final String emailAddress;
+		private final Map<String, String> extraFields;
+		private final String failedField;
+		private final String failure;
+
+		private Result(String name, String phoneNumber, String emailAddress, Map<String, String> extraFields,
+				String failedField, String failure) {
+			this.name = name;
+			this.phoneNumber = phoneNumber;
+			this.emailAddress = emailAddress;
+			this.extraFields = extraFields;
+			this.failedField = failedField;
+			this.failure = failure;
+		}
+
+		public static Result success(ContactInfo info) {
+			Map<String, String> extras = info.getExtraFields();
+			return new Result(info.getName(), info.getPhoneNumber(), info.getEmailAddress(),
+				extras.isEmpty() ? Collections.<String, String>emptyMap() : new LinkedHashMap<String, String>(extras), null, null);
+		}
+
+		/**
+		 * @param field the field that couldn't be found, or null
+		 * @param reason
+		 * @return a remembered failure
+		 */
+		public static Result failure(String field, String reason) {
+			return new Result(null, null, null, Collections.<String, String>emptyMap(), field, reason == null ? "" : reason);
+		}
+
+		public boolean isFailure() {
+			return failure != null;
+		}
+
+		/**
+		 * @return why parsing failed, or null if it didn't
+		 */
+		public String getFailure() {
+			return failure;
+		}
+
+		/**
+		 * @return the field that couldn't be found, or null
+		 */
+		public String getFailedField() {
+			return failedField;
+		}
+
+		/**
+		 * @return a new copy of the contact info, or null if parsing failed
+		 */
+		public ContactInfo getContactInfo() {
+			if (failure != null) {
+				return null;
+			}
+			ContactInfo info = new ContactInfo(name, phoneNumber, emailAddress);
+			for (Map.Entry<String, String> field : extraFields.entrySet()) {
+				info.setExtraField(field.getKey(), field.getValue());
+			}
+			return info;
+		}
+
+		int sizeInBytes() {
+			int size = ENTRY_OVERHEAD_BYTES + 2 * (length(name) + length(phoneNumber) + length(emailAddress) + length(failedField) + length(failure));
+			for (Map.Entry<String, String> field : extraFields.entrySet()) {
+				size += ENTRY_OVERHEAD_BYTES / 2 + 2 * (length(field.getKey()) + length(field.getValue()));
+			}
+			return size;
+		}
+
+		private static int length(String s) {
+			return s == null ? 0 : s.length();
+		}
+	}
+
+	private final int maxEntries;
+	private final long maxBytes;
+	private long bytes;
+	// the fingerprint saved with the entries that were loaded, if any were
+	private Long loadedFingerprint;
+	private Path loadedFrom;
+
+	// access-ordered, so the eldest entry is the least recently used
+	private final LinkedHashMap<ContentKey, Result> entries = new LinkedHashMap<ContentKey, Result>(16, 0.75f, true);
+	private final FrequencySketch sketch;
+
+	private final LongAdder hits = Metrics.get().counter("cache.hits");
+	private final LongAdder misses = Metrics.get().counter("cache.misses");
+	private final LongAdder evictions = Metrics.get().counter("cache.evictions");
+	private final LongAdder rejections = Metrics.get().counter("cache.rejected");
+
+	/**
+	 * @param maxEntries
+	 * @param maxBytes
+	 */
+	public ResultCache(int maxEntries, long maxBytes) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.sketch = new FrequencySketch(maxEntries);
+	}
+
+	/**
+	 * @param key
+	 * @return what parsing the card came up with last time, or null if it's not known
+	 */
+	public synchronized Result get(ContentKey key) {
+		sketch.increment(key);
+		Result result = entries.get(key);
+		if (result == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return result;
+	}
+
+	/**
+	 * Remembers the outcome of parsing a card, if there's room for it (or it's worth
+	 * making room for).
+	 * @param key
+	 * @param result
+	 */
+	public synchronized void put(ContentKey key, Result result) {
+		Result old = entries.remove(key);
+		if (old != null) {
+			bytes -= old.sizeInBytes();
+		}
+		int size = result.sizeInBytes();
+		if (size > maxBytes) {
+			rejections.increment();
+			return;
+		}
+
+		Iterator<Map.Entry<ContentKey, Result>> eldest = entries.entrySet().iterator();
+		boolean admitted = false;
+		while (entries.size() >= maxEntries || bytes + size > maxBytes) {
+			Map.Entry<ContentKey, Result> victim = eldest.next();
+			if (!admitted && sketch.frequency(victim.getKey()) >= sketch.frequency(key)) {
+				rejections.increment();
+				return;
+			}
+			admitted = true;
+			bytes -= victim.getValue().sizeInBytes();
+			eldest.remove();
+			evictions.increment();
+		}
+		entries.put(key, result);
+		bytes += size;
+	}
+
+	/**
+	 * Forgets every result, e.g. because the same cards would now be parsed differently.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Loads entries saved by {@link #save(Path, long)}. A missing or unreadable file just
+	 * leaves the cache as it is. The entries can't be trusted until
+	 * {@link #checkFingerprint(long)} has been called.
+	 * @param file
+	 */
+	public synchronized void load(Path file) {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readLong() != MAGIC || in.readInt() != VERSION) {
+				System.err.println("ignoring cache file '" + file + "', it's not a cache file of this version");
+				return;
+			}
+			loadedFingerprint = in.readLong();
+			loadedFrom = file;
+			int count = in.readInt();
+			for (int i=0; i<count; i++) {
+				ContentKey key = new ContentKey(in.readLong(), in.readLong());
+				Result result = in.readBoolean()
+					? Result.failure(readString(in), in.readUTF())
+					: new Result(readString(in), readString(in), readString(in), readExtraFields(in), null, null);
+				// a couple of sightings each, so that reloaded entries aren't the first to go
+				sketch.increment(key);
+				sketch.increment(key);
+				put(key, result);
+			}
+			System.out.println("loaded " + entries.size() + " cached result(s) from '" + file + "'");
+		} catch (NoSuchFileException e) {
+			// nothing saved yet
+		} catch (EOFException e) {
+			System.err.println("cache file '" + file + "' is truncated, loaded " + entries.size() + " result(s) from it");
+		} catch (IOException e) {
+			System.err.println("unable to load cache file '" + file + "', due to error: '" + e.getMessage() + "'");
+		}
+	}
+
+	/**
+	 * Forgets whatever was loaded by {@link #load(Path)} if it was saved with a different
+	 * fingerprint, i.e. the same cards might be parsed differently now.
+	 * @param fingerprint the parser's fingerprint now
+	 */
+	public synchronized void checkFingerprint(long fingerprint) {
+		if (loadedFingerprint != null && loadedFingerprint != fingerprint) {
+			System.out.println("discarding " + entries.size() + " cached result(s) from '" + loadedFrom
+				+ "', the extractors or their dictionaries have changed since they were saved");
+			clear();
+		}
+		loadedFingerprint = null;
+	}
+
+	/**
+	 * Writes the cache's entries out, least recently used first, so that loading them
+	 * restores the same order. The file is written alongside and then moved into place.
+	 * @param file
+	 * @param fingerprint the fingerprint of the parser that the entries came from
+	 * @throws IOException
+	 */
+	public synchronized void save(Path file, long fingerprint) throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(fingerprint);
+			out.writeInt(entries.size());
+			for (Map.Entry<ContentKey, Result> entry : entries.entrySet()) {
+				out.writeLong(entry.getKey().high);
+				out.writeLong(entry.getKey().low);
+				Result result = entry.getValue();
+				out.writeBoolean(result.isFailure());
+				if (result.isFailure()) {
+					writeString(out, result.failedField);
+					out.writeUTF(truncate(result.failure));
+				} else {
+					writeString(out, result.name);
+					writeString(out, result.phoneNumber);
+					writeString(out, result.emailAddress);
+					out.writeInt(result.extraFields.size());
+					for (Map.Entry<String, String> field : result.extraFields.entrySet()) {
+						out.writeUTF(truncate(field.getKey()));
+						writeString(out, field.getValue());
+					}
+				}
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) {
+			out.writeUTF(truncate(s));
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static Map<String, String> readExtraFields(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count == 0) {
+			return Collections.<String, String>emptyMap();
+		}
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		for (int i=0; i<count; i++) {
+			fields.put(in.readUTF(), readString(in));
+		}
+		return fields;
+	}
+
+	/**
+	 * writeUTF can't take more than 64K bytes; nothing sensible in a card comes close
+	 */
+	private static String truncate(String s) {
+		return s.length() > 16 * 1024 ? s.substring(0, 16 * 1024) : s;
+	}
+}
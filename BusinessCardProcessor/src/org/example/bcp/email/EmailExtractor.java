@@ -1,36 +1,90 @@
 package org.example.bcp.email;
 
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Properties;
 
-import org.example.bcp.FieldExtractor;
-import org.example.bcp.RecordProcessingException;
+import org.example.bcp.FieldMatcher;
+import org.example.bcp.LineFeatureExtractor;
+import org.example.bcp.LineFeatures;
 
 /**
- * A pretty simple data extractor for email addresses. Uses a regex to find an email address field, if any.
+ * A pretty simple data extractor for email addresses. Takes the first line that looks like an email address, if any.
  * @author astein
  *
  */
-public class EmailExtractor implements FieldExtractor {
-	
+public class EmailExtractor implements LineFeatureExtractor {
+
+	public static final String FIELD_NAME = "email";
+
 	// a very generous email pattern; not trying to validate against
 	// the W3C spec. just any text, followed by an '@', followed by text
 	// containing at least one '.'
-	// should prevent @twitter handles from matching
-	Pattern emailPattern = Pattern.compile("\\S+@\\S+\\.\\S+");
+	// should prevent @twitter handles from matching.
+	// this used to be the regex \S+@\S+\.\S+ matched against the whole line;
+	// looksLikeEmail() gives the same answers without one.
+
+	@Override
+	public String getFieldName() {
+		return FIELD_NAME;
+	}
+
+	@Override
+	public void init(Properties props) {
+		// nothing to set up
+	}
+
+	/**
+	 * Only lines that are a single token containing an '@' can be email addresses.
+	 */
+	@Override
+	public boolean accepts(LineFeatures features) {
+		return features.hasAt() && features.tokenCount() == 1;
+	}
 
 	@Override
-	public String getField(List<String> ocrRecord) throws RecordProcessingException {
-		for (String s : ocrRecord) {
-			Matcher emailMatcher = emailPattern.matcher(s.trim());
-			if (!emailMatcher.matches()) {
-				continue;
+	public FieldMatcher newMatcher() {
+		return new FieldMatcher() {
+			String email;
+
+			@Override
+			public boolean offer(CharSequence line, LineFeatures features) {
+				if (!looksLikeEmail(line)) {
+					return false;
+				}
+				email = line.toString();
+				return true;
+			}
+
+			@Override
+			public String getField() {
+				return email;
+			}
+
+			@Override
+			public String getMissingReason() {
+				return "phone number extractor cannot locate email address in OCR record";
 			}
-			return s.trim();
+		};
+	}
+
+	/**
+	 * @param s a line with no white-space in it
+	 * @return true if there's some text, an '@', some text, a '.' and some more text
+	 */
+	static boolean looksLikeEmail(CharSequence s) {
+		int length = s.length();
+		int at = 1;
+		while (at < length && s.charAt(at) != '@') {
+			at++;
+		}
+		if (at >= length) {
+			return false;
+		}
+		// the last '.' that still has something after it
+		int dot = length - 2;
+		while (dot >= 0 && s.charAt(dot) != '.') {
+			dot--;
 		}
-		
-		throw new RecordProcessingException("phone number extractor cannot locate email address in OCR record");
+		return dot >= at + 2;
 	}
 
 }
@@ -0,0 +1,741 @@
+package org.example.bcp.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import org.example.bcp.metrics.LatencyHistogram;
+import org.example.bcp.metrics.Metrics;
+import org.example.bcp.output.GroupCommitWriter;
+
+/**
+ * A write-ahead journal of the cards in flight, so that a restart after a crash neither
+ * loses nor duplicates output, and doesn't parse again what had already been written.
+ *
+ * Each input file goes through three states, each recorded by a line in the journal:
+ * claimed (a worker has started on it), written (its record is in the output file, at a
+ * known range of bytes; for a container, one such line per card) and done (it's been
+ * moved or archived out of the input directory). Records that don't come from a file
+ * (cards sent over HTTP, or in a batch) are journaled as written too, just without a file.
+ * Lines are appended through a {@link GroupCommitWriter}, so they're written and forced
+ * in batches. Before a file is moved, the output and then the journal are synced (see
+ * {@link #sync()}); one sync can cover any number of files.
+ *
+ * When the journal is opened, it's replayed:
+ * - bytes at the end of the output file that no written line accounts for (records
+ *   whose lines never reached the disk) are cut out; their files were never moved, so
+ *   they're simply processed again
+ * - files that were written but not done are remembered, so that {@link #isWritten(Path)}
+ *   can let them be moved on without being parsed again; likewise the cards of a
+ *   container that were written, see {@link #isWritten(Path, long)}
+ * - the journal is rewritten with just what's still in flight
+ * It's also rewritten while running, whenever it has grown by a set number of bytes, so
+ * replaying it takes time in proportion to the work that was in flight, not to the
+ * backlog or to how long the program ran.
+ *
+ * Lines are text: the CRC32 of the rest of the line in hex, then a tab-separated type and
+ * fields, with the file (its path, as given to the journal) last:
+ * <pre>
+ * B base                    output bytes before base are all accounted for
+ * C size modified file      claimed
+ * W card start end file     written; card is the card's byte offset in a container, or
+ *                           -1 for a file of one card; file is empty for a record that
+ *                           didn't come from a file
+ * D file                    done
+ * </pre>
+ * A line with the wrong CRC, or with no newline, is where a crash cut the journal short;
+ * it and anything after it are ignored.
+ *
+ * The output file must only be written through the journal's owner. So that a second
+ * process can't replay the journal (and cut the first one's records out of the output)
+ * while the first is running, the journal is locked while it's open; see
+ * {@link #lockForBatch(Path, Path)} for runs that write the output without it. If the
+ * output is found to be shorter than the journal says (e.g. it's been moved away),
+ * whatever the missing bytes held is processed again, if its file is still there.
+ * @author astein
+ *
+ */
+public class ProcessingJournal implements Closeable {
+
+	// the journal is small, and syncs drive its writes; the delay only matters for
+	// claims and dones, which don't have to be on disk quickly
+	private static final int BUFFER_BYTES = 32 * 1024;
+	private static final int BUFFERS = 4;
+	private static final long FLUSH_MILLIS = 200;
+
+	/**
+	 * A file that has been claimed, and what of it has been written.
+	 */
+	private static final class Claim {
+		final String file;
+		final long size;
+		final long modified;
+		// once the whole file has been written
+		Range whole;
+		// cards of a container written so far, by offset
+		Map<Long, Range> cards;
+
+		Claim(String file, long size, long modified) {
+			this.file = file;
+			this.size = size;
+			this.modified = modified;
+		}
+
+		boolean isWritten() {
+			return whole != null || (cards != null && !cards.isEmpty());
+		}
+	}
+
+	/**
+	 * A written record: which bytes of the output it took up, and what it came from.
+	 */
+	private static final class Range {
+		// null if it didn't come from a file
+		final Claim claim;
+		final long card;
+		long start;
+		long end;
+
+		Range(Claim claim, long card, long start, long end) {
+			this.claim = claim;
+			this.card = card;
+			this.start = start;
+			this.end = end;
+		}
+
+		void mark() {
+			if (claim == null) {
+				return;
+			}
+			if (card < 0) {
+				claim.whole = this;
+			} else {
+				if (claim.cards == null) {
+					claim.cards = new HashMap<Long, Range>();
+				}
+				claim.cards.put(card, this);
+			}
+		}
+	}
+
+	private final Path file;
+	private final Path outputFile;
+	// holds the lock on the journal for as long as it's open
+	private final FileChannel lock;
+	private final long rewriteBytes;
+
+	// claimed files that aren't done yet, by path
+	private final Map<String, Claim> claims = new HashMap<String, Claim>();
+	// every output byte before base has been accounted for; records written out of
+	// order (further on than base) wait here, by start, until the gap before them fills
+	private long base;
+	private final TreeMap<Long, Range> pending = new TreeMap<Long, Range>();
+
+	private volatile GroupCommitWriter writer;
+	// bytes appended since the journal was last rewritten
+	private long appended;
+
+	private final LongAdder rewrites = Metrics.get().counter("journal.rewrites");
+	private final LatencyHistogram syncTime = Metrics.get().histogram("journal.sync");
+
+	/**
+	 * Opens a journal, replaying it (and cutting unaccounted bytes out of the output
+	 * file) if it already exists. Must be called before the output file is opened.
+	 * @param file the journal file
+	 * @param outputFile the output file whose records it keeps track of
+	 * @param rewriteBytes how much the journal may grow before it's rewritten
+	 * @return
+	 * @throws IOException
+	 */
+	public static ProcessingJournal open(Path file, Path outputFile, long rewriteBytes) throws IOException {
+		return new ProcessingJournal(file, outputFile, rewriteBytes);
+	}
+
+	private ProcessingJournal(Path file, Path outputFile, long rewriteBytes) throws IOException {
+		this.file = file;
+		this.outputFile = outputFile;
+		this.rewriteBytes = rewriteBytes;
+
+		long start = System.nanoTime();
+		lock = lock(file);
+		long cut;
+		try {
+			Path splice = spliceFile();
+			if (Files.exists(splice)) {
+				// a crash in the middle of cutting bytes out of the output; finish doing so
+				finishSplice(splice);
+			}
+			cut = recover();
+			writer = openWriter();
+		} catch (IOException | RuntimeException e) {
+			lock.close();
+			throw e;
+		}
+		System.out.println("journal '" + file + "' replayed in " + (System.nanoTime() - start) / 1000000 + " ms: "
+			+ claims.size() + " file(s) written but not moved on, " + cut + " unaccounted output byte(s) cut");
+
+		Metrics.get().gauge("journal.inflight", () -> inflight());
+	}
+
+	/**
+	 * For a run that writes to the output file without the journal (a --batch run): holds
+	 * the journal's lock until it's closed, so that nothing else uses the output meanwhile,
+	 * and then notes in the journal that everything in the output is accounted for, so
+	 * that the next replay doesn't cut what the run wrote. Does nothing to a journal that
+	 * doesn't exist yet, since a new journal takes whatever's in the output as accounted for.
+	 * @param file the journal file
+	 * @param outputFile the output file whose records it keeps track of
+	 * @return closed once the run's output has been written
+	 * @throws IOException if the journal is in use by another process
+	 */
+	public static Closeable lockForBatch(final Path file, final Path outputFile) throws IOException {
+		final FileChannel lock = lock(file);
+		return new Closeable() {
+			@Override
+			public void close() throws IOException {
+				if (!lock.isOpen()) {
+					return;
+				}
+				try {
+					if (Files.exists(file)) {
+						// lines after a torn one would never be replayed, so they go with it
+						byte[] data = Files.readAllBytes(file);
+						int end = 0;
+						int nl;
+						while (end < data.length && (nl = lineEnd(data, end)) >= 0) {
+							end = nl + 1;
+						}
+						StringBuilder sb = new StringBuilder(new String(data, 0, end, StandardCharsets.UTF_8));
+						line(sb, "B\t" + (Files.exists(outputFile) ? Files.size(outputFile) : 0));
+						replace(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+					}
+				} finally {
+					lock.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Locks a journal, so that only one process at a time replays it or writes the output
+	 * file that it keeps track of. The lock is on a file of its own, as the journal itself
+	 * is replaced whenever it's rewritten.
+	 * @param file the journal file
+	 * @return the locked file; closing it releases the lock
+	 * @throws IOException if another process has the journal locked
+	 */
+	private static FileChannel lock(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file.resolveSibling(file.getFileName() + ".lock"),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			if (channel.tryLock() == null) {
+				throw new IOException("journal '" + file + "' is in use by another process");
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/**
+	 * Notes that a worker has started on a file. A container that's claimed again (after
+	 * a restart) keeps the cards already written, unless the file has changed.
+	 * @param file
+	 * @throws IOException if the journal can't be written
+	 */
+	public synchronized void claim(Path file) throws IOException {
+		String key = file.toString();
+		long size = -1;
+		long modified = -1;
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			size = attrs.size();
+			modified = attrs.lastModifiedTime().toMillis();
+		} catch (IOException e) {
+			// it'll fail to be read, and so never be written
+		}
+		Claim claim = claims.get(key);
+		if (claim == null || claim.size != size || claim.modified != modified) {
+			claims.put(key, new Claim(key, size, modified));
+		}
+		append("C\t" + size + '\t' + modified + '\t' + key);
+	}
+
+	/**
+	 * Notes that a record has been appended to the output file.
+	 * @param file the claimed file it came from, or null if it didn't come from a file
+	 * @param card the card's byte offset in a container, or -1 for a file of one card
+	 * @param extent where the record went
+	 * @throws IOException if the journal can't be written
+	 */
+	public synchronized void written(Path file, long card, GroupCommitWriter.Extent extent) throws IOException {
+		Claim claim = file == null ? null : claims.get(file.toString());
+		Range range = new Range(claim, card, extent.getStart(), extent.getEnd());
+		range.mark();
+		if (range.start <= base) {
+			base = Math.max(base, range.end);
+			while (!pending.isEmpty() && pending.firstKey() <= base) {
+				base = Math.max(base, pending.pollFirstEntry().getValue().end);
+			}
+		} else {
+			pending.put(range.start, range);
+		}
+		append("W\t" + card + '\t' + range.start + '\t' + range.end + '\t' + (claim == null ? "" : claim.file));
+	}
+
+	/**
+	 * Notes that a file has been moved or archived out of the input directory.
+	 * @param file
+	 * @throws IOException if the journal can't be written
+	 */
+	public synchronized void done(Path file) throws IOException {
+		String key = file.toString();
+		if (claims.remove(key) == null) {
+			return;
+		}
+		append("D\t" + key);
+	}
+
+	/**
+	 * @return true if the whole of a file was written before a restart (and it hasn't
+	 * changed since), so it only needs moving on
+	 */
+	public synchronized boolean isWritten(Path file) {
+		Claim claim = claims.get(file.toString());
+		return claim != null && claim.whole != null;
+	}
+
+	/**
+	 * @param file a container
+	 * @param card the card's byte offset in it
+	 * @return true if the card was written before a restart, or by an earlier claim
+	 */
+	public synchronized boolean isWritten(Path file, long card) {
+		Claim claim = claims.get(file.toString());
+		return claim != null && claim.cards != null && claim.cards.containsKey(card);
+	}
+
+	/**
+	 * Blocks until every line appended so far is on disk. The output file should be
+	 * synced first, so that nothing the journal says was written can be missing from it.
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		long start = System.nanoTime();
+		GroupCommitWriter current = writer;
+		try {
+			current.flush();
+		} catch (IOException e) {
+			// unless it was closed because the journal was rewritten, which forces
+			// everything anyway
+			if (current == writer) {
+				throw e;
+			}
+		}
+		syncTime.recordSince(start);
+	}
+
+	/**
+	 * Writes out anything buffered and closes the journal.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			writer.close();
+		} finally {
+			lock.close();
+		}
+	}
+
+	private synchronized long inflight() {
+		return claims.size();
+	}
+
+	/**
+	 * Appends a line, with its CRC, and rewrites the journal if it has grown enough.
+	 * Must be synchronized.
+	 */
+	private void append(String line) throws IOException {
+		byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+		writer.append(checksum(bytes), "\t", line, "\n");
+		appended += bytes.length + 10;
+		if (appended >= rewriteBytes) {
+			rewrite();
+		}
+	}
+
+	/**
+	 * Replaces the journal with one that holds just what's in flight. Must be synchronized.
+	 */
+	private void rewrite() throws IOException {
+		writer.close();
+		replace(file, snapshot(pending.values()).getBytes(StandardCharsets.UTF_8));
+		writer = openWriter();
+		rewrites.increment();
+	}
+
+	private GroupCommitWriter openWriter() throws IOException {
+		appended = 0;
+		return new GroupCommitWriter(file, StandardCharsets.UTF_8, BUFFER_BYTES, BUFFERS, FLUSH_MILLIS,
+			GroupCommitWriter.SyncPolicy.BATCH);
+	}
+
+	/**
+	 * @param outOfOrder written records after base
+	 * @return journal lines for the current state
+	 */
+	private String snapshot(Iterable<Range> outOfOrder) {
+		StringBuilder sb = new StringBuilder();
+		line(sb, "B\t" + base);
+		for (Range range : outOfOrder) {
+			// records of claimed files are listed with their files below
+			if (range.claim == null || claims.get(range.claim.file) != range.claim) {
+				line(sb, "W\t-1\t" + range.start + '\t' + range.end + '\t');
+			}
+		}
+		for (Claim claim : claims.values()) {
+			line(sb, "C\t" + claim.size + '\t' + claim.modified + '\t' + claim.file);
+			if (claim.whole != null) {
+				line(sb, "W\t-1\t" + claim.whole.start + '\t' + claim.whole.end + '\t' + claim.file);
+			}
+			if (claim.cards != null) {
+				for (Range card : claim.cards.values()) {
+					line(sb, "W\t" + card.card + '\t' + card.start + '\t' + card.end + '\t' + claim.file);
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	private static void line(StringBuilder sb, String line) {
+		sb.append(checksum(line.getBytes(StandardCharsets.UTF_8))).append('\t').append(line).append('\n');
+	}
+
+	/**
+	 * Replays the journal, cuts unaccounted bytes out of the output file and rewrites the
+	 * journal with just the files that were written but not done.
+	 * @return number of output bytes cut
+	 */
+	private long recover() throws IOException {
+		long outputSize = Files.exists(outputFile) ? Files.size(outputFile) : 0;
+		List<Range> ranges = new ArrayList<Range>();
+		if (!replay(ranges)) {
+			// a new journal: whatever's in the output already is from before it
+			base = outputSize;
+		}
+		if (outputSize < base) {
+			System.err.println("output file '" + outputFile + "' is shorter than journal '" + file
+				+ "' says it should be; cards whose records are missing will be processed again if their files are still there");
+			base = outputSize;
+		}
+
+		// records after base, in the order they're in the output. those that are all there
+		// are kept; the rest, and any bytes not accounted for, are cut
+		Collections.sort(ranges, new Comparator<Range>() {
+			@Override
+			public int compare(Range a, Range b) {
+				return Long.compare(a.start, b.start);
+			}
+		});
+		List<Range> kept = new ArrayList<Range>();
+		long keptEnd = base;
+		// where the first gap is, and so where the kept records after it are moved to
+		long gap = -1;
+		for (Range range : ranges) {
+			if (range.end <= base) {
+				range.mark();
+				continue;
+			}
+			if (range.start < keptEnd || range.end > outputSize) {
+				continue;
+			}
+			if (gap < 0 && range.start != keptEnd) {
+				gap = keptEnd;
+			}
+			kept.add(range);
+			keptEnd = range.end;
+			range.mark();
+		}
+
+		long cut;
+		if (gap < 0) {
+			cut = outputSize - keptEnd;
+			base = keptEnd;
+		} else {
+			// records after the gap are moved up to close it, so that output that was
+			// never accounted for doesn't end up between them
+			ByteBuffer moved = readKept(kept, gap);
+			long at = gap;
+			for (Range range : kept) {
+				if (range.start >= gap) {
+					range.end = at + (range.end - range.start);
+					range.start = at;
+					at = range.end;
+				}
+			}
+			cut = outputSize - at;
+			base = at;
+			dropFinished();
+			byte[] journal = snapshot(Collections.<Range>emptyList()).getBytes(StandardCharsets.UTF_8);
+			writeSplice(gap, moved, journal);
+			finishSplice(spliceFile());
+			return cut;
+		}
+
+		dropFinished();
+		replace(file, snapshot(Collections.<Range>emptyList()).getBytes(StandardCharsets.UTF_8));
+		if (cut > 0) {
+			try (FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.WRITE)) {
+				channel.truncate(base);
+				channel.force(false);
+			}
+		}
+		return cut;
+	}
+
+	/**
+	 * Reads the journal into claims and ranges.
+	 * @param ranges gets every written record
+	 * @return true if the journal had a base, i.e. it isn't new
+	 */
+	private boolean replay(List<Range> ranges) throws IOException {
+		if (!Files.exists(file)) {
+			return false;
+		}
+		byte[] data = Files.readAllBytes(file);
+		boolean hasBase = false;
+		int pos = 0;
+		while (pos < data.length) {
+			int nl = lineEnd(data, pos);
+			if (nl < 0) {
+				break;
+			}
+			String line = new String(data, pos + 9, nl - pos - 9, StandardCharsets.UTF_8);
+			pos = nl + 1;
+
+			try {
+				switch (line.charAt(0)) {
+				case 'B': {
+					base = Long.parseLong(line.substring(2));
+					hasBase = true;
+					break;
+				}
+				case 'C': {
+					String[] fields = line.split("\t", 4);
+					long size = Long.parseLong(fields[1]);
+					long modified = Long.parseLong(fields[2]);
+					Claim claim = claims.get(fields[3]);
+					if (claim == null || claim.size != size || claim.modified != modified) {
+						claims.put(fields[3], new Claim(fields[3], size, modified));
+					}
+					break;
+				}
+				case 'W': {
+					String[] fields = line.split("\t", 5);
+					ranges.add(new Range(fields[4].isEmpty() ? null : claims.get(fields[4]),
+						Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+					break;
+				}
+				case 'D': {
+					claims.remove(line.substring(2));
+					break;
+				}
+				default:
+					System.err.println("ignoring unknown line in journal '" + file + "': '" + line + "'");
+				}
+			} catch (RuntimeException e) {
+				System.err.println("ignoring malformed line in journal '" + file + "': '" + line + "'");
+			}
+		}
+		return hasBase;
+	}
+
+	/**
+	 * Forgets claimed files that have nothing written, that are gone, or that have
+	 * changed since they were claimed; they'll be processed from scratch if they're
+	 * still there.
+	 */
+	private void dropFinished() {
+		Iterator<Claim> it = claims.values().iterator();
+		while (it.hasNext()) {
+			Claim claim = it.next();
+			if (!claim.isWritten()) {
+				it.remove();
+				continue;
+			}
+			try {
+				BasicFileAttributes attrs = Files.readAttributes(Paths.get(claim.file), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				if (attrs.size() != claim.size || attrs.lastModifiedTime().toMillis() != claim.modified) {
+					it.remove();
+				}
+			} catch (NoSuchFileException e) {
+				it.remove();
+			} catch (IOException e) {
+				System.err.println("unable to check file '" + claim.file + "', due to error: '" + e.getMessage() + "'");
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return the bytes of the kept records from the gap on, end to end
+	 */
+	private ByteBuffer readKept(List<Range> kept, long gap) throws IOException {
+		long length = 0;
+		for (Range range : kept) {
+			if (range.start >= gap) {
+				length += range.end - range.start;
+			}
+		}
+		ByteBuffer moved = ByteBuffer.allocate((int) length);
+		try (FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.READ)) {
+			for (Range range : kept) {
+				if (range.start < gap) {
+					continue;
+				}
+				long position = range.start;
+				moved.limit(moved.position() + (int) (range.end - range.start));
+				while (moved.hasRemaining()) {
+					int n = channel.read(moved, position);
+					if (n < 0) {
+						throw new IOException("output file '" + outputFile + "' ended early");
+					}
+					position += n;
+				}
+			}
+		}
+		moved.flip();
+		return moved;
+	}
+
+	private Path spliceFile() {
+		return file.resolveSibling(file.getFileName() + ".splice");
+	}
+
+	/**
+	 * Saves everything needed to cut bytes out of the output file, so that it can be
+	 * finished if it's interrupted: where the gap starts, the records to move into it,
+	 * and the journal to replace the old one with once that's done.
+	 */
+	private void writeSplice(long gap, ByteBuffer moved, byte[] journal) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(12);
+		header.putLong(gap).putInt(moved.remaining()).flip();
+		Path splice = spliceFile();
+		Path tmp = splice.resolveSibling(splice.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer[] parts = { header, moved, ByteBuffer.wrap(journal) };
+			long remaining = header.remaining() + moved.remaining() + journal.length;
+			while (remaining > 0) {
+				remaining -= channel.write(parts);
+			}
+			channel.force(false);
+		}
+		Files.move(tmp, splice, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Moves the saved records into the gap, cuts the output file off after them and puts
+	 * the saved journal in place. Safe to repeat.
+	 */
+	private void finishSplice(Path splice) throws IOException {
+		ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(splice));
+		long gap = data.getLong();
+		int length = data.getInt();
+		ByteBuffer moved = data.duplicate();
+		moved.limit(moved.position() + length);
+		data.position(data.position() + length);
+		byte[] journal = new byte[data.remaining()];
+		data.get(journal);
+
+		try (FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.WRITE)) {
+			channel.truncate(gap);
+			long position = gap;
+			while (moved.hasRemaining()) {
+				position += channel.write(moved, position);
+			}
+			channel.force(false);
+		}
+		replace(file, journal);
+		Files.delete(splice);
+	}
+
+	/**
+	 * Writes a file in full and forces it, then puts it in place of the old one.
+	 */
+	private static void replace(Path file, byte[] data) throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buf = ByteBuffer.wrap(data);
+			while (buf.hasRemaining()) {
+				channel.write(buf);
+			}
+			channel.force(false);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return where the line starting at pos ends (its newline), or -1 if it's torn: a
+	 * line with no newline is, as is one whose CRC doesn't match
+	 */
+	private static int lineEnd(byte[] data, int pos) {
+		int nl = pos;
+		while (nl < data.length && data[nl] != '\n') {
+			nl++;
+		}
+		if (nl == data.length || nl - pos < 10 || data[pos + 8] != '\t' || !checksumMatches(data, pos, nl)) {
+			return -1;
+		}
+		return nl;
+	}
+
+	/**
+	 * @return true if the line from start to end (its newline) starts with the CRC of the rest
+	 */
+	private static boolean checksumMatches(byte[] data, int start, int end) {
+		CRC32 crc = new CRC32();
+		crc.update(data, start + 9, end - start - 9);
+		long expected = 0;
+		for (int i=start; i<start + 8; i++) {
+			int digit = Character.digit(data[i], 16);
+			if (digit < 0) {
+				return false;
+			}
+			expected = expected << 4 | digit;
+		}
+		return expected == crc.getValue();
+	}
+
+	/**
+	 * @return CRC32 of the bytes, as 8 hex digits
+	 */
+	private static String checksum(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length);
+		String hex = Long.toHexString(crc.getValue());
+		return "00000000".substring(hex.length()) + hex;
+	}
+}
@@ -0,0 +1,122 @@
+package org.example.bcp.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations, in nanoseconds.
+ *
+ * Buckets are log-linear: each power of two is split into 8 equal sub-buckets, so any
+ * recorded value is known to within 12.5%, and the whole range of a long fits in a few
+ * hundred buckets. Recording is a couple of shifts and an atomic increment; nothing is
+ * allocated and nothing blocks, so it's cheap enough to call for every card.
+ *
+ * Readers see a snapshot that may be a few recordings behind (or ahead in one bucket and
+ * behind in another), which is fine for monitoring.
+ * @author astein
+ *
+ */
+public final class LatencyHistogram {
+
+	// each power of two is split into 2^SUB_BITS sub-buckets
+	private static final int SUB_BITS = 3;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+	private final String name;
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	LatencyHistogram(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Records the time since startNanos.
+	 * @param startNanos a value of System.nanoTime() taken when the work started
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets.getAndIncrement(bucketFor(nanos));
+		count.increment();
+		total.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	/**
+	 * @return the histogram's current statistics
+	 */
+	public LatencySnapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		long n = 0;
+		for (int i=0; i<BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			n += counts[i];
+		}
+		long maxNanos = max.get();
+		long meanNanos = n == 0 ? 0 : total.sum() / Math.max(count.sum(), 1);
+		return new LatencySnapshot(name, n, meanNanos,
+			percentile(counts, n, 0.50, maxNanos),
+			percentile(counts, n, 0.90, maxNanos),
+			percentile(counts, n, 0.99, maxNanos),
+			maxNanos);
+	}
+
+	private static long percentile(long[] counts, long n, double p, long maxNanos) {
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(p * n);
+		long seen = 0;
+		for (int i=0; i<counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				// middle of the bucket, but never more than the largest value seen
+				return Math.min(lowerBound(i) + width(i) / 2, maxNanos);
+			}
+		}
+		return maxNanos;
+	}
+
+	static int bucketFor(long value) {
+		if (value < SUB_COUNT) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+
+	static long lowerBound(int bucket) {
+		if (bucket < SUB_COUNT) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+		int sub = bucket % SUB_COUNT;
+		return (long) (SUB_COUNT + sub) << (exponent - SUB_BITS);
+	}
+
+	private static long width(int bucket) {
+		if (bucket < SUB_COUNT) {
+			return 1;
+		}
+		int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+		return 1L << (exponent - SUB_BITS);
+	}
+}
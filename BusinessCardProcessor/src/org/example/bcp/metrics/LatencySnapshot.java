@@ -0,0 +1,61 @@
+package org.example.bcp.metrics;
+
+/**
+ * Statistics for one timed stage, as of some moment. Times are reported in microseconds.
+ * @author astein
+ *
+ */
+public final class LatencySnapshot {
+
+	private final String name;
+	private final long count;
+	private final long meanNanos;
+	private final long p50Nanos;
+	private final long p90Nanos;
+	private final long p99Nanos;
+	private final long maxNanos;
+
+	LatencySnapshot(String name, long count, long meanNanos, long p50Nanos, long p90Nanos, long p99Nanos, long maxNanos) {
+		this.name = name;
+		this.count = count;
+		this.meanNanos = meanNanos;
+		this.p50Nanos = p50Nanos;
+		this.p90Nanos = p90Nanos;
+		this.p99Nanos = p99Nanos;
+		this.maxNanos = maxNanos;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getMeanMicros() {
+		return meanNanos / 1e3;
+	}
+
+	public double getP50Micros() {
+		return p50Nanos / 1e3;
+	}
+
+	public double getP90Micros() {
+		return p90Nanos / 1e3;
+	}
+
+	public double getP99Micros() {
+		return p99Nanos / 1e3;
+	}
+
+	public double getMaxMicros() {
+		return maxNanos / 1e3;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%-24s count=%-9d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus max=%.1fus",
+			name, count, getMeanMicros(), getP50Micros(), getP90Micros(), getP99Micros(), getMaxMicros());
+	}
+}
@@ -0,0 +1,158 @@
+package org.example.bcp.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The one place all of bcp's counters and stage timings are kept.
+ *
+ * Counters and histograms are looked up by name once (typically when the thing that
+ * updates them is constructed) and then updated directly; updating them is lock-free
+ * and allocation-free, so it's fine to do for every card. Gauges (e.g. queue depths) are
+ * read only when they're reported. Everything can be read over
+ * JMX and, optionally, printed periodically.
+ * @author astein
+ *
+ */
+public final class Metrics implements MetricsMXBean {
+
+	public static final String OBJECT_NAME = "org.example.bcp:type=Metrics";
+
+	// names of the well-known counters
+	public static final String PROCESSED = "cards.processed";
+	public static final String FAILED = "cards.failed";
+	public static final String FAX_FILTERED = "phone.fax.filtered";
+	public static final String AMBIGUOUS_NAME = "name.ambiguous";
+	public static final String FUZZY_NAME = "name.fuzzy";
+
+	private static final Metrics INSTANCE = new Metrics();
+
+	private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+	private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+	private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+
+	private ScheduledExecutorService dumper;
+
+	private Metrics() {
+	}
+
+	public static Metrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param name
+	 * @return the counter with that name, created if need be
+	 */
+	public LongAdder counter(String name) {
+		return counters.computeIfAbsent(name, k -> new LongAdder());
+	}
+
+	/**
+	 * @param name
+	 * @return the histogram with that name, created if need be
+	 */
+	public LatencyHistogram histogram(String name) {
+		return histograms.computeIfAbsent(name, LatencyHistogram::new);
+	}
+
+	/**
+	 * Registers a gauge: a value that isn't counted up but read when it's wanted (e.g.
+	 * a queue's depth). A gauge registered under the same name as an earlier one
+	 * replaces it.
+	 * @param name
+	 * @param value reads the current value; called from whatever thread wants it
+	 */
+	public void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+	/**
+	 * Makes the metrics visible over JMX. Does nothing if they already are.
+	 * @throws JMException
+	 */
+	public synchronized void register() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = new ObjectName(OBJECT_NAME);
+		if (!server.isRegistered(objectName)) {
+			server.registerMBean(this, objectName);
+		}
+	}
+
+	/**
+	 * Prints a report to stdout every so often, on a daemon thread.
+	 * @param periodSeconds
+	 */
+	public synchronized void startDumping(long periodSeconds) {
+		if (dumper != null) {
+			return;
+		}
+		dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "bcp-metrics");
+			thread.setDaemon(true);
+			return thread;
+		});
+		dumper.scheduleAtFixedRate(() -> System.out.println(getReport()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stopDumping() {
+		if (dumper != null) {
+			dumper.shutdownNow();
+			dumper = null;
+		}
+	}
+
+	@Override
+	public Map<String, Long> getCounters() {
+		Map<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+			values.put(counter.getKey(), counter.getValue().sum());
+		}
+		return values;
+	}
+
+	@Override
+	public Map<String, Long> getGauges() {
+		Map<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+			values.put(gauge.getKey(), gauge.getValue().getAsLong());
+		}
+		return values;
+	}
+
+	@Override
+	public Map<String, LatencySnapshot> getLatencies() {
+		Map<String, LatencySnapshot> values = new TreeMap<String, LatencySnapshot>();
+		for (LatencyHistogram histogram : histograms.values()) {
+			values.put(histogram.getName(), histogram.snapshot());
+		}
+		return values;
+	}
+
+	@Override
+	public String getReport() {
+		StringBuilder sb = new StringBuilder("---- bcp metrics ----\n");
+		for (Map.Entry<String, Long> counter : getCounters().entrySet()) {
+			sb.append(String.format("%-24s %d%n", counter.getKey(), counter.getValue()));
+		}
+		for (Map.Entry<String, Long> gauge : getGauges().entrySet()) {
+			sb.append(String.format("%-24s %d%n", gauge.getKey(), gauge.getValue()));
+		}
+		for (LatencySnapshot latency : getLatencies().values()) {
+			sb.append(latency).append('\n');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,31 @@
+package org.example.bcp.metrics;
+
+import java.util.Map;
+
+/**
+ * What bcp exposes over JMX, under the name {@value Metrics#OBJECT_NAME}.
+ * @author astein
+ *
+ */
+public interface MetricsMXBean {
+
+	/**
+	 * @return the current value of every counter, by name
+	 */
+	public Map<String, Long> getCounters();
+
+	/**
+	 * @return the current value of every gauge (e.g. queue depths), by name
+	 */
+	public Map<String, Long> getGauges();
+
+	/**
+	 * @return the current statistics of every timed stage, by name
+	 */
+	public Map<String, LatencySnapshot> getLatencies();
+
+	/**
+	 * @return everything, as human-readable text
+	 */
+	public String getReport();
+}
@@ -0,0 +1,374 @@
+package org.example.bcp.name;
+
+import java.util.Arrays;
+
+/**
+ * Finds names that are within an edit distance or two of a term, for terms that OCR has
+ * garbled ("Wi1son", "Smtih"), without comparing the term against every name.
+ *
+ * It's a symmetric-delete index (as in SymSpell): every way of deleting up to maxDistance
+ * characters from every name is hashed, and the hashes are kept, each paired with its
+ * name's entry number, in one sorted long array. A term is looked up by hashing every way
+ * of deleting up to maxDistance characters from it too; any name sharing one of those
+ * hashes is a candidate, and candidates are checked with a real edit distance (counting
+ * a swap of two neighbouring characters as one edit). So a lookup costs a few dozen binary
+ * searches plus a few distance checks, however many names there are.
+ *
+ * Case is ignored, as it is in {@link NameIndex}.
+ * @author astein
+ *
+ */
+public final class FuzzyNameIndex {
+
+	/**
+	 * A name that was found, and how far it was from the term.
+	 */
+	public static final class Match {
+		private final int rank;
+		private final int distance;
+
+		Match(int rank, int distance) {
+			this.rank = rank;
+			this.distance = distance;
+		}
+
+		public int getRank() {
+			return rank;
+		}
+
+		/**
+		 * @return number of edits between the term and the name, 0 if they're the same
+		 */
+		public int getDistance() {
+			return distance;
+		}
+	}
+
+	// names and terms longer than this are left out (census names are much shorter)
+	static final int MAX_LENGTH = 24;
+
+	private final int maxDistance;
+	// the names (upper-cased) packed end to end, with where each starts (one extra at
+	// the end) and its rank. entry numbers are this index's own
+	private final char[] names;
+	private final int[] offsets;
+	private final int[] ranks;
+	// (hash of a delete << 32) | entry number, sorted
+	private final long[] deletes;
+	private final long buildMillis;
+
+	/**
+	 * Builds the index over every name in a lookup.
+	 * @param lookup
+	 * @param maxDistance 1 or 2; more would make the index enormous
+	 */
+	public FuzzyNameIndex(NameLookup lookup, int maxDistance) {
+		if (maxDistance < 1 || maxDistance > 2) {
+			throw new IllegalArgumentException("max distance must be 1 or 2, not " + maxDistance);
+		}
+		long start = System.nanoTime();
+		this.maxDistance = maxDistance;
+
+		// copy the names out, so that candidates can be checked without going through
+		// the lookup (which may be a mapped snapshot)
+		int count = 0;
+		int length = 0;
+		for (int e=0; e<lookup.size(); e++) {
+			int nameLength = lookup.name(e).length();
+			if (nameLength <= MAX_LENGTH) {
+				count++;
+				length += nameLength;
+			}
+		}
+		names = new char[length];
+		offsets = new int[count + 1];
+		ranks = new int[count];
+		int entry = 0;
+		for (int e=0; e<lookup.size(); e++) {
+			CharSequence name = lookup.name(e);
+			if (name.length() > MAX_LENGTH) {
+				continue;
+			}
+			int offset = offsets[entry];
+			for (int i=0; i<name.length(); i++) {
+				names[offset + i] = name.charAt(i);
+			}
+			ranks[entry] = lookup.rankOf(e);
+			offsets[++entry] = offset + name.length();
+		}
+
+		DeleteCollector collector = new DeleteCollector(count * 16);
+		char[] name = new char[MAX_LENGTH];
+		for (entry=0; entry<count; entry++) {
+			int nameLength = offsets[entry + 1] - offsets[entry];
+			System.arraycopy(names, offsets[entry], name, 0, nameLength);
+			collector.entry = entry;
+			for (int d=0; d<=maxDistance; d++) {
+				forEachDelete(name, nameLength, d, collector);
+			}
+		}
+		long[] all = Arrays.copyOf(collector.pairs, collector.count);
+		Arrays.parallelSort(all);
+
+		// the same delete can come from a name more than once ("LL" less either L)
+		int unique = 0;
+		for (int i=0; i<all.length; i++) {
+			if (unique == 0 || all[i] != all[unique - 1]) {
+				all[unique++] = all[i];
+			}
+		}
+		deletes = unique == all.length ? all : Arrays.copyOf(all, unique);
+		buildMillis = (System.nanoTime() - start) / 1000000;
+	}
+
+	/**
+	 * Finds the name closest to part of a character sequence, if any is within maxDistance.
+	 * Exact matches are found too (distance 0), but {@link NameLookup#rank} is quicker
+	 * for those.
+	 * 
+	 * The term's deletes are tried fewest first. Every name within d edits of the term
+	 * shares a delete with it that has no more than d characters deleted from the term,
+	 * so once a name d edits away has turned up, deletes of more than d characters
+	 * needn't be tried.
+	 * @param s
+	 * @param start index of the first character of the term
+	 * @param end index after the last character of the term
+	 * @param maxDistance at most the index's own
+	 * @return the closest name (the best-ranked one if several are as close), or null
+	 */
+	public Match lookup(CharSequence s, int start, int end, int maxDistance) {
+		int length = end - start;
+		maxDistance = Math.min(maxDistance, this.maxDistance);
+		if (length > MAX_LENGTH || length <= maxDistance) {
+			return null;
+		}
+		char[] term = new char[length];
+		for (int i=0; i<length; i++) {
+			term[i] = NameIndex.fold(s.charAt(start + i));
+		}
+
+		CandidateChecker checker = new CandidateChecker(term, maxDistance);
+		for (int d=0; d<=maxDistance && checker.bound >= d; d++) {
+			forEachDelete(term, length, d, checker);
+		}
+		return checker.bestDistance > maxDistance ? null : new Match(checker.bestRank, checker.bestDistance);
+	}
+
+	public int getMaxDistance() {
+		return maxDistance;
+	}
+
+	/**
+	 * @return number of (delete, name) pairs in the index
+	 */
+	public int deleteCount() {
+		return deletes.length;
+	}
+
+	/**
+	 * @return approximate number of bytes of heap taken by the index
+	 */
+	public long sizeInBytes() {
+		return 8L * deletes.length + 2L * names.length + 4L * (offsets.length + ranks.length);
+	}
+
+	/**
+	 * @return how long the index took to build
+	 */
+	public long getBuildMillis() {
+		return buildMillis;
+	}
+
+	private interface DeleteHandler {
+		void delete(int hash);
+	}
+
+	/**
+	 * Hashes every string made by deleting exactly n of s's characters. Deletes are made
+	 * at increasing positions, so each set of positions comes up once.
+	 */
+	private static void forEachDelete(char[] s, int length, int n, DeleteHandler handler) {
+		forEachDelete(s, length, new int[n], 0, 0, handler);
+	}
+
+	private static void forEachDelete(char[] s, int length, int[] deleted, int count, int from, DeleteHandler handler) {
+		if (count == deleted.length) {
+			handler.delete(hash(s, length, deleted));
+			return;
+		}
+		for (int i=from; i<length; i++) {
+			deleted[count] = i;
+			forEachDelete(s, length, deleted, count + 1, i + 1, handler);
+		}
+	}
+
+	/**
+	 * @return hash of s[0, length) less the characters at the (increasing) deleted positions
+	 */
+	private static int hash(char[] s, int length, int[] deleted) {
+		int h = 0x811C9DC5;
+		int d = 0;
+		for (int i=0; i<length; i++) {
+			if (d < deleted.length && deleted[d] == i) {
+				d++;
+				continue;
+			}
+			h = (h ^ s[i]) * 0x01000193;
+		}
+		return h;
+	}
+
+	private static final class DeleteCollector implements DeleteHandler {
+		long[] pairs;
+		int count;
+		int entry;
+
+		DeleteCollector(int capacity) {
+			pairs = new long[Math.max(capacity, 16)];
+		}
+
+		@Override
+		public void delete(int hash) {
+			if (count == pairs.length) {
+				pairs = Arrays.copyOf(pairs, count * 2);
+			}
+			pairs[count++] = ((long) hash << 32) | entry;
+		}
+	}
+
+	/**
+	 * Checks every name that shares a delete with the term, keeping the closest.
+	 */
+	private final class CandidateChecker implements DeleteHandler {
+		final char[] term;
+		// names further away than this aren't wanted: maxDistance, then the best distance so far
+		int bound;
+		int bestDistance = Integer.MAX_VALUE;
+		int bestRank = Integer.MAX_VALUE;
+		// entry + 1 of each name already checked, open addressed; a name usually shares
+		// several deletes with the term
+		int[] checked = new int[64];
+		int checkedCount;
+		// rows for the edit distance
+		final int[][] rows = new int[3][MAX_LENGTH + 1];
+
+		CandidateChecker(char[] term, int maxDistance) {
+			this.term = term;
+			this.bound = maxDistance;
+		}
+
+		@Override
+		public void delete(int hash) {
+			long key = (long) hash << 32;
+			for (int i=lowerBound(key); i<deletes.length && (deletes[i] >> 32) == hash; i++) {
+				int entry = (int) deletes[i];
+				int offset = offsets[entry];
+				int length = offsets[entry + 1] - offset;
+				if (Math.abs(length - term.length) > bound || !markChecked(entry)) {
+					continue;
+				}
+				int distance = distance(term, names, offset, length, bound, rows);
+				if (distance > bound) {
+					continue;
+				}
+				int rank = ranks[entry];
+				if (distance < bestDistance || (distance == bestDistance && rank < bestRank)) {
+					bestDistance = distance;
+					bestRank = rank;
+					bound = distance;
+				}
+			}
+		}
+
+		/**
+		 * @return false if the entry had already been checked
+		 */
+		private boolean markChecked(int entry) {
+			int mask = checked.length - 1;
+			int slot = (entry * 0x9E3779B9) >>> 16 & mask;
+			while (checked[slot] != 0) {
+				if (checked[slot] == entry + 1) {
+					return false;
+				}
+				slot = (slot + 1) & mask;
+			}
+			checked[slot] = entry + 1;
+			if (++checkedCount * 2 > checked.length) {
+				int[] old = checked;
+				checked = new int[old.length * 2];
+				checkedCount = 0;
+				for (int e : old) {
+					if (e != 0) {
+						markChecked(e - 1);
+					}
+				}
+			}
+			return true;
+		}
+
+		private int lowerBound(long key) {
+			int lo = 0;
+			int hi = deletes.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (deletes[mid] < key) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+
+	/**
+	 * Edit distance where inserting, deleting or changing a character, or swapping two
+	 * neighbouring ones, each count as one edit (optimal string alignment).
+	 * @param a
+	 * @param b
+	 * @param offset where b's string starts
+	 * @param m its length
+	 * @param maxDistance
+	 * @param rows three rows of scratch space, at least m + 1 long
+	 * @return the distance, or something more than maxDistance once it's clearly more
+	 */
+	static int distance(char[] a, char[] b, int offset, int m, int maxDistance, int[][] rows) {
+		int n = a.length;
+		int[] previous2 = rows[0];
+		int[] previous = rows[1];
+		int[] current = rows[2];
+		for (int j=0; j<=m; j++) {
+			previous[j] = j;
+		}
+		for (int i=1; i<=n; i++) {
+			current[0] = i;
+			int rowMin = i;
+			for (int j=1; j<=m; j++) {
+				int cost = a[i - 1] == b[offset + j - 1] ? 0 : 1;
+				int d = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+				if (i > 1 && j > 1 && a[i - 1] == b[offset + j - 2] && a[i - 2] == b[offset + j - 1]) {
+					d = Math.min(d, previous2[j - 2] + 1);
+				}
+				current[j] = d;
+				rowMin = Math.min(rowMin, d);
+			}
+			// a swap can reach back two rows, so both have to be over the limit
+			if (rowMin > maxDistance && min(previous, m) > maxDistance) {
+				return maxDistance + 1;
+			}
+			int[] t = previous2;
+			previous2 = previous;
+			previous = current;
+			current = t;
+		}
+		return previous[m];
+	}
+
+	private static int min(int[] row, int m) {
+		int min = Integer.MAX_VALUE;
+		for (int j=0; j<=m; j++) {
+			min = Math.min(min, row[j]);
+		}
+		return min;
+	}
+}
@@ -0,0 +1,73 @@
+package org.example.bcp.name;
+
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * The same hash table as {@link NameIndex}, but read straight out of a (memory-mapped)
+ * names snapshot instead of out of heap arrays. See {@link NameSnapshot} for the layout.
+ * @author astein
+ *
+ */
+final class MappedNameIndex implements NameLookup {
+
+	private final IntBuffer slots;
+	private final IntBuffer offsets;
+	private final IntBuffer ranks;
+	private final CharBuffer names;
+	private final int mask;
+	private final int size;
+
+	MappedNameIndex(IntBuffer slots, IntBuffer offsets, IntBuffer ranks, CharBuffer names) {
+		this.slots = slots;
+		this.offsets = offsets;
+		this.ranks = ranks;
+		this.names = names;
+		this.mask = slots.capacity() - 1;
+		this.size = ranks.capacity();
+	}
+
+	@Override
+	public int rank(CharSequence s, int start, int end) {
+		int slot = NameIndex.hash(s, start, end) & mask;
+		while (true) {
+			int entry = slots.get(slot) - 1;
+			if (entry < 0) {
+				return -1;
+			}
+			if (matches(entry, s, start, end)) {
+				return ranks.get(entry);
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public CharSequence name(int entry) {
+		return names.subSequence(offsets.get(entry), offsets.get(entry + 1));
+	}
+
+	@Override
+	public int rankOf(int entry) {
+		return ranks.get(entry);
+	}
+
+	private boolean matches(int entry, CharSequence s, int start, int end) {
+		int offset = offsets.get(entry);
+		int length = offsets.get(entry + 1) - offset;
+		if (length != end - start) {
+			return false;
+		}
+		for (int i=0; i<length; i++) {
+			if (names.get(offset + i) != NameIndex.fold(s.charAt(start + i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
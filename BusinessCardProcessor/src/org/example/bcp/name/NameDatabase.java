@@ -1,13 +1,19 @@
 package org.example.bcp.name;
 
-import java.io.BufferedReader;
+import java.io.CharArrayWriter;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.HashMap;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
-import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
+import org.example.bcp.PropertiesLoader;
 import org.example.bcp.util.CsvProcessor;
 
 /**
@@ -15,61 +21,166 @@ import org.example.bcp.util.CsvProcessor;
  * Currently, 'all' is defined by US 2010 Census data for surnames which appear in census at least 100 times.
  * Once upon a time, it was possible to get all census names, first and last, regardless of frequency. Sadly, this data
  * seems to be no longer available from .gov.
+ * 
+ * The database can be served straight out of a memory-mapped snapshot that the build
+ * compiles from the CSV (see {@link NameSnapshot}), which saves parsing the CSV at startup.
  * @author astein
  *
  */
 public class NameDatabase {
 	
 	// a very simple database should allow us to do very fast look-ups
-	Map<String, DatabaseRecord> nameDatabase = new HashMap<String, DatabaseRecord>();
+	NameLookup nameDatabase;
+	
+	// for names OCR has garbled; null unless buildFuzzyIndex() has been called
+	FuzzyNameIndex fuzzyIndex;
+	
+	// where to look for the CSV before the classpath; may be null
+	private final Path resourcesDir;
+	
+	// CRC-32 of the CSV the names came from
+	private long checksum = -1;
+	
+	// CSVs smaller than this aren't worth splitting up to parse
+	static final int PARALLEL_THRESHOLD_CHARS = 1024 * 1024;
+	
+	/**
+	 * Includes processing to init the database from the file
+	 * @param databaseFile
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public NameDatabase(String databaseFile) throws FileNotFoundException, IOException {
+		this(databaseFile, null);
+	}
 	
 	/**
-	 * Allows us to associate a name with its ranking.
-	 * @author astein
-	 *
+	 * @param databaseFile CSV file, on the classpath
+	 * @param snapshotFile snapshot file path (see {@link NameSnapshot}), may be null
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 * @see #NameDatabase(String, String, Path)
 	 */
-	private class DatabaseRecord {
-		public DatabaseRecord(String name, int rank) {
-			this.name = name;
-			this.rank = rank;
+	public NameDatabase(String databaseFile, String snapshotFile) throws FileNotFoundException, IOException {
+		this(databaseFile, snapshotFile, null);
+	}
+	
+	/**
+	 * Inits the database from a precompiled snapshot if there's a usable one, otherwise
+	 * from the CSV file. A snapshot is only usable if it was compiled from the very CSV
+	 * that's being used now; a stale one is ignored (with a warning).
+	 * @param databaseFile CSV file, in the resources directory or on the classpath
+	 * @param snapshotFile snapshot file path (see {@link NameSnapshot}), may be null
+	 * @param resourcesDir where to look for the CSV before the classpath, may be null
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public NameDatabase(String databaseFile, String snapshotFile, Path resourcesDir) throws FileNotFoundException, IOException {
+		this.resourcesDir = resourcesDir;
+		if (snapshotFile != null) {
+			nameDatabase = openSnapshot(databaseFile, Paths.get(snapshotFile));
+		}
+		if (nameDatabase == null) {
+			CRC32 crc = new CRC32();
+			try (InputStream is = new CheckedInputStream(openCsv(databaseFile), crc)) {
+				nameDatabase = readCsv(is);
+			}
+			checksum = crc.getValue();
+		}
+	}
+	
+	/**
+	 * @return CRC-32 of the CSV the names came from (whether they were read from it or
+	 * from a snapshot of it)
+	 */
+	public long getChecksum() {
+		return checksum;
+	}
+	
+	private NameLookup openSnapshot(String databaseFile, Path snapshot) throws IOException {
+		if (!Files.isRegularFile(snapshot)) {
+			System.err.println("names snapshot '" + snapshot + "' not found, loading '" + databaseFile + "' instead");
+			return null;
 		}
 		
-		@SuppressWarnings("unused")
-		String name;
-		int rank;
+		long checksum = -1;
+		InputStream is = PropertiesLoader.openResource(resourcesDir, databaseFile);
+		if (is != null) {
+			try {
+				checksum = NameSnapshot.checksum(is);
+			} finally {
+				is.close();
+			}
+		}
+		NameLookup lookup = NameSnapshot.open(snapshot, checksum);
+		if (lookup == null) {
+			System.err.println("loading '" + databaseFile + "' instead of names snapshot");
+		} else {
+			this.checksum = checksum;
+		}
+		return lookup;
+	}
+	
+	private InputStream openCsv(String databaseFile) throws IOException {
+		InputStream is = PropertiesLoader.openResource(resourcesDir, databaseFile);
+		if (is == null) {
+			throw new FileNotFoundException("names database '" + databaseFile + "' not found");
+		}
+		return is;
 	}
 	
 	/**
-	 * Includes processing to init the database from the file
-	 * @param databaseFile
-	 * @throws FileNotFoundException
+	 * Builds an index out of census CSV data. Big files are parsed in parallel chunks.
+	 * @param csv
+	 * @return
 	 * @throws IOException
 	 */
-	public NameDatabase(String databaseFile) throws FileNotFoundException, IOException {
-		try (BufferedReader bufReader =	new BufferedReader(
-				new InputStreamReader(this.getClass().getResourceAsStream("/" + databaseFile))
-			)) {
-			CsvProcessor csvProc = new CsvProcessor(bufReader);
-			boolean first = true;
-			int nameIndex = -1;
-			int rankIndex = -1;
-			for (List<String> rec : csvProc) {
-				if (first) {
-					// first row should tell us which field contains our name data
-					nameIndex = rec.indexOf("name");
-					rankIndex = rec.indexOf("rank");
-					first = false;
-				} else {
-					nameDatabase.put(
-						rec.get(nameIndex).toUpperCase(),
-						new DatabaseRecord(rec.get(nameIndex).toUpperCase(), Integer.parseInt(rec.get(rankIndex))));
-				}
+	static NameIndex readCsv(InputStream csv) throws IOException {
+		char[] data;
+		int length;
+		try (Reader reader = new InputStreamReader(csv)) {
+			CharArrayWriter all = new CharArrayWriter(1024 * 1024);
+			char[] buf = new char[64 * 1024];
+			int n;
+			while ((n = reader.read(buf)) != -1) {
+				all.write(buf, 0, n);
 			}
+			data = all.toCharArray();
+			length = data.length;
+		}
+		
+		// first row should tell us which field contains our name data
+		CsvProcessor header = new CsvProcessor(data, 0, length);
+		if (!header.hasNext()) {
+			return new NameIndex.Builder().build();
 		}
+		CsvProcessor.Row headerRow = header.next();
+		final int nameIndex = headerRow.indexOf("name");
+		final int rankIndex = headerRow.indexOf("rank");
+		
+		int chunks = length < PARALLEL_THRESHOLD_CHARS ? 1 : Runtime.getRuntime().availableProcessors();
+		List<NameIndex.Builder> parts = CsvProcessor.parseParallel(data, header.position(), length, chunks,
+			new CsvProcessor.ChunkHandler<NameIndex.Builder>() {
+				@Override
+				public NameIndex.Builder handle(CsvProcessor chunk) {
+					NameIndex.Builder builder = new NameIndex.Builder();
+					for (CsvProcessor.Row rec : chunk) {
+						builder.add(rec.chars(), rec.start(nameIndex), rec.end(nameIndex), rec.getInt(rankIndex));
+					}
+					return builder;
+				}
+			});
+		
+		// chunks are in file order, so a name listed twice keeps its last rank
+		NameIndex.Builder builder = parts.get(0);
+		for (int i=1; i<parts.size(); i++) {
+			builder.addAll(parts.get(i));
+		}
+		return builder.build();
 	}
 	
 	public boolean containsName(String name) {
-		return nameDatabase.get(name.toUpperCase()) != null ? true : false;
+		return nameDatabase.rank(name, 0, name.length()) != -1;
 	}
 	
 	public int size() {
@@ -77,10 +188,43 @@ public class NameDatabase {
 	}
 	
 	public int rankFor(String name) {
-		if (containsName(name)) {
-			return nameDatabase.get(name.toUpperCase()).rank;
-		} else {
-			return -1;
-		}
+		return nameDatabase.rank(name, 0, name.length());
+	}
+	
+	/**
+	 * Looks up a name found somewhere inside a larger piece of text, without
+	 * copying it out or upper-casing it first. Allocates nothing.
+	 * @param text
+	 * @param start index of the first character of the name
+	 * @param end index after the last character of the name
+	 * @return the name's rank, or -1 if it isn't in the database
+	 */
+	public int rank(CharSequence text, int start, int end) {
+		return nameDatabase.rank(text, start, end);
+	}
+	
+	/**
+	 * Builds the index that {@link #fuzzyRank(CharSequence, int, int, int)} uses. Takes
+	 * a while, and a fair amount of memory (see {@link FuzzyNameIndex#sizeInBytes()}).
+	 * @param maxDistance 1 or 2
+	 * @return the index
+	 */
+	public FuzzyNameIndex buildFuzzyIndex(int maxDistance) {
+		fuzzyIndex = new FuzzyNameIndex(nameDatabase, maxDistance);
+		return fuzzyIndex;
+	}
+	
+	/**
+	 * Looks up a name found somewhere inside a larger piece of text, allowing for a few
+	 * characters being wrong, missing, extra or swapped.
+	 * @param text
+	 * @param start index of the first character of the name
+	 * @param end index after the last character of the name
+	 * @param maxDistance most edits allowed
+	 * @return the closest name's rank and distance, or null if there's none that close
+	 * (or no fuzzy index)
+	 */
+	public FuzzyNameIndex.Match fuzzyRank(CharSequence text, int start, int end, int maxDistance) {
+		return fuzzyIndex == null ? null : fuzzyIndex.lookup(text, start, end, maxDistance);
 	}
 }
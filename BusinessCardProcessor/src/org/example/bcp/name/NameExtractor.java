@@ -2,37 +2,123 @@ package org.example.bcp.name;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
-import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 
-import org.example.bcp.FieldExtractor;
+import org.example.bcp.FieldMatcher;
+import org.example.bcp.LineFeatureExtractor;
+import org.example.bcp.LineFeatures;
+import org.example.bcp.PropertiesLoader;
 import org.example.bcp.RecordProcessingException;
+import org.example.bcp.ResourceReloader;
+import org.example.bcp.metrics.Metrics;
+import org.example.bcp.util.KeywordMatcher;
 
 /**
  * A field extractor that finds things that look like names. Mainly this is done by
  * performing lookups against a names database. When more than one potential name is
  * present, a ranking-based approach is used to choose among them.
+ * 
+ * The names database and the extractor's properties are loaded as part of each
+ * {@link ResourceReloader.Generation generation} of resources, along with the keyword
+ * dictionary that the company indicators come from, and are reloaded with them when their
+ * copies in the resources directory change. Each card is parsed with whichever generation
+ * was current when it started.
  * @author astein
  *
  */
-public class NameExtractor implements FieldExtractor {
+public class NameExtractor implements LineFeatureExtractor {
 
-	NameDatabase nameDatabase;
+	/**
+	 * The names database and the extractor's properties, as loaded for one generation of
+	 * resources. Never changed once it's been built.
+	 */
+	static final class Names {
+		final Properties props;
+		final NameDatabase nameDatabase;
+		// will help to resolve some kinds of ambiguity (i.e. where person names appear in
+		// company names, such as "Arthur Anderson Corp"). the company indicators are listed
+		// in the keyword dictionary (see KeywordMatcher)
+		final int companyKinds;
+		// when no line holds a name, a name garbled by OCR is looked for, up to this many
+		// edits away (0 for never). short terms are allowed fewer edits, see fuzzyDistanceFor()
+		final int fuzzyDistance;
+		final FuzzyNameIndex fuzzyIndex;
+
+		/**
+		 * @param mainProps the main properties
+		 * @param keywords the keyword dictionary of the generation they're for
+		 * @throws FileNotFoundException
+		 * @throws IOException
+		 * @throws RecordProcessingException if properties are malformed, or there are no names
+		 */
+		Names(Properties mainProps, KeywordMatcher keywords) throws FileNotFoundException, IOException, RecordProcessingException {
+			Path dir = PropertiesLoader.getResourcesDir(mainProps);
+			String file = mainProps.getProperty(PROPERTIES_KEY + PropertiesLoader.FILE_SUFFIX);
+			// the copy in the resources directory may have changed since startup
+			props = dir != null && file != null
+				? checkProperties(PropertiesLoader.loadResourceProperties(dir, file))
+				: getProperties(mainProps);
+			nameDatabase = new NameDatabase(props.getProperty(DBFILE_PROPERTY_KEY), props.getProperty(SNAPSHOT_PROPERTY_KEY), dir);
+			if (nameDatabase.size() == 0) {
+				// (e.g. a CSV without the right columns)
+				throw new RecordProcessingException("no names found in '" + props.getProperty(DBFILE_PROPERTY_KEY) + "'");
+			}
+			
+			companyKinds = keywords.kind(COMPANY_KIND);
+			
+			fuzzyDistance = Math.min(2, PropertiesLoader.getIntProperty(props, FUZZY_DISTANCE_PROPERTY_KEY, 2, 0));
+			if (fuzzyDistance > 0) {
+				fuzzyIndex = nameDatabase.buildFuzzyIndex(fuzzyDistance);
+				System.out.println(String.format("fuzzy name index: %d deletes of %d names, %.1f MB, built in %d ms",
+					fuzzyIndex.deleteCount(), nameDatabase.size(), fuzzyIndex.sizeInBytes() / (1024.0 * 1024.0), fuzzyIndex.getBuildMillis()));
+			} else {
+				fuzzyIndex = null;
+			}
+		}
+	}
 	
-	Properties props;
+	/**
+	 * Loads the names for each generation of resources.
+	 */
+	static final ResourceReloader.Part<Names> NAMES = new ResourceReloader.Part<Names>() {
+		@Override
+		public Names load(Properties mainProps, KeywordMatcher keywords) throws IOException, RecordProcessingException {
+			return new Names(mainProps, keywords);
+		}
+
+		@Override
+		public List<String> files(Properties mainProps, Names loaded) {
+			return Arrays.asList(mainProps.getProperty(PROPERTIES_KEY + PropertiesLoader.FILE_SUFFIX),
+				loaded.props.getProperty(DBFILE_PROPERTY_KEY));
+		}
+	};
 	
+	public static final String FIELD_NAME = "name";
 	public static final String PROPERTIES_KEY = "extractor.props.name";
 	public static final String DBFILE_PROPERTY_KEY = "names.db.file";
+	public static final String SNAPSHOT_PROPERTY_KEY = "names.db.snapshot";
+	public static final String FUZZY_DISTANCE_PROPERTY_KEY = "names.fuzzy.max.distance";
+	
+	public static final String COMPANY_KIND = "company";
+	
+	// shared with the other extractors
+	ResourceReloader resources;
 	
-	// will help to resolve some kinds of ambiguity (i.e. where person names appear in
-	// company names, such as "Arthur Anderson Corp")
-	// TODO externalize this listing so we can add cases
-	String [] companyIndicatorsArr = { "LLC", "LLC.", "INC", "INC.", "CORP", "CORP.",
-			"CORPORATION", "CO", "CO.", "ASSOCIATES", "CONSULTING", "TECH", "GLOBOCORP" };
-	Set<String> companyIndicators;
+	// cards with more than one likely-looking name
+	LongAdder ambiguous = Metrics.get().counter(Metrics.AMBIGUOUS_NAME);
+	// cards whose name was only found by allowing for OCR errors
+	LongAdder fuzzy = Metrics.get().counter(Metrics.FUZZY_NAME);
+	
+	/**
+	 * Makes an extractor that must be set up with {@link #init(Properties)} before it's used.
+	 */
+	public NameExtractor() {
+	}
 	
 	/**
 	 * @param props
@@ -41,10 +127,46 @@ public class NameExtractor implements FieldExtractor {
 	 * @throws RecordProcessingException if properties are malformed
 	 */
 	public NameExtractor(Properties props) throws FileNotFoundException, IOException, RecordProcessingException {
-		this.props = getProperties(props);
-		nameDatabase = new NameDatabase(this.props.getProperty(DBFILE_PROPERTY_KEY));
+		init(props);
+	}
+	
+	@Override
+	public void init(Properties props) throws FileNotFoundException, IOException, RecordProcessingException {
+		resources = ResourceReloader.of(props);
+		resources.register(NAMES);
 		
-		companyIndicators = new HashSet<String>(Arrays.asList(companyIndicatorsArr));
+		Metrics.get().gauge("name.fuzzy.index.bytes", () -> {
+			Names names = resources.current().get(NAMES);
+			return names.fuzzyIndex == null ? 0 : names.fuzzyIndex.sizeInBytes();
+		});
+		Metrics.get().gauge("name.fuzzy.index.buildMillis", () -> {
+			Names names = resources.current().get(NAMES);
+			return names.fuzzyIndex == null ? 0 : names.fuzzyIndex.getBuildMillis();
+		});
+	}
+	
+	/**
+	 * @return number of the generation of resources in use, which goes up by one with each reload
+	 */
+	@Override
+	public long generation() {
+		return resources.current().getNumber();
+	}
+	
+	/**
+	 * @return made from the checksums of the names database and keyword dictionary of the
+	 * generation in use, and how far off a garbled name may be
+	 */
+	@Override
+	public long fingerprint() {
+		ResourceReloader.Generation generation = resources.current();
+		Names names = generation.get(NAMES);
+		return 31 * (31 * names.nameDatabase.getChecksum() + generation.getKeywords().getChecksum()) + names.fuzzyDistance;
+	}
+	
+	@Override
+	public String getFieldName() {
+		return FIELD_NAME;
 	}
 	
 	/**
@@ -53,7 +175,7 @@ public class NameExtractor implements FieldExtractor {
 	 * @return
 	 * @throws RecordProcessingException 
 	 */
-	private Properties getProperties(Properties props) throws RecordProcessingException {
+	private static Properties getProperties(Properties props) throws RecordProcessingException {
 		Object val = props.get(PROPERTIES_KEY);
 		if (val == null) {
 			throw new RecordProcessingException(
@@ -65,7 +187,10 @@ public class NameExtractor implements FieldExtractor {
 				"value associated with " + PROPERTIES_KEY + " is not a Properties instance"
 			);
 		}
-		Properties myProps = (Properties) val;
+		return checkProperties((Properties) val);
+	}
+	
+	private static Properties checkProperties(Properties myProps) throws RecordProcessingException {
 		if (!myProps.containsKey(DBFILE_PROPERTY_KEY)) {
 			throw new RecordProcessingException(
 				"name extractor properties does not include an entry for " + DBFILE_PROPERTY_KEY
@@ -75,39 +200,79 @@ public class NameExtractor implements FieldExtractor {
 		return myProps;
 	}
 
+	/**
+	 * Only lines with letters in them can hold a name, and lines that are all digits are
+	 * taken to be addresses.
+	 */
 	@Override
-	public String getField(List<String> fieldSet) throws RecordProcessingException {
-		int index = 0;
-		int chosenIndex = -1;
-		int rank = Integer.MAX_VALUE;
-		boolean alreadyWarned = false;
-		
-		// get a likelihood-of-being-a-person-name-ranking for each field,
-		// go with the lowest value (lower means more-likely)
-		for (String field : fieldSet) {
-			int tmpRank = getNameRank(field);
-			if (tmpRank > 0 && !isCorpProbably(field) && !isAddressProbably(field)) {
-				// if rank has already been assigned, then some previous field must have come
-				// up as a likely name already, so we'll need to resolve some ambiguity 
-				if (rank < Integer.MAX_VALUE && !alreadyWarned) {
-					System.out.println("WARNING: got more than one potential person name, going to have to choose");
-					alreadyWarned = true;
+	public boolean accepts(LineFeatures features) {
+		return features.letterCount() > 0 && !features.allDigits();
+	}
+
+	/**
+	 * The matcher sticks to the generation that's current when it's made.
+	 */
+	@Override
+	public FieldMatcher newMatcher() {
+		ResourceReloader.Generation generation = resources.current();
+		final KeywordMatcher keywords = generation.getKeywords();
+		final Names names = generation.get(NAMES);
+		return new FieldMatcher() {
+			String chosen;
+			int rank = Integer.MAX_VALUE;
+			boolean alreadyWarned = false;
+			// lines that might hold a garbled name, kept (as they were offered) in case
+			// none holds a real one
+			List<CharSequence> maybeGarbled;
+
+			// get a likelihood-of-being-a-person-name-ranking for each field,
+			// go with the lowest value (lower means more-likely)
+			@Override
+			public boolean offer(CharSequence field, LineFeatures features) {
+				int tmpRank = getNameRank(names, field);
+				if (tmpRank > 0 && !isCorpProbably(keywords, names, field) && !isAddressProbably(features)) {
+					// if rank has already been assigned, then some previous field must have come
+					// up as a likely name already, so we'll need to resolve some ambiguity 
+					if (rank < Integer.MAX_VALUE && !alreadyWarned) {
+						System.out.println("WARNING: got more than one potential person name, going to have to choose");
+						alreadyWarned = true;
+						ambiguous.increment();
+					}
+					
+					// if new ranking is lower, then use it
+					if (tmpRank < rank) {
+						chosen = field.toString();
+						rank = tmpRank;
+					}
+				} else if (tmpRank < 0 && chosen == null && names.fuzzyDistance > 0 && !features.leadingDigit()
+						&& !isCorpProbably(keywords, names, field) && !isAddressProbably(features)) {
+					// (street addresses start with a number, and are full of words a couple of
+					// edits away from some surname)
+					if (maybeGarbled == null) {
+						maybeGarbled = new ArrayList<CharSequence>();
+					}
+					maybeGarbled.add(field);
 				}
-				
-				// if new ranking is lower, then use it
-				if (tmpRank < rank) {
-					chosenIndex = index;
-					rank = tmpRank;
+				// a later line might rank better
+				return false;
+			}
+
+			@Override
+			public String getField() {
+				if (chosen == null && maybeGarbled != null) {
+					chosen = getGarbledName(names, maybeGarbled);
+					if (chosen != null) {
+						fuzzy.increment();
+					}
 				}
+				return chosen;
 			}
-			index++;
-		}
-		
-		if (chosenIndex == -1) {
-			throw new RecordProcessingException("name extractor could not locate a likely name in the provided data set");
-		}
-		
-		return fieldSet.get(chosenIndex);
+
+			@Override
+			public String getMissingReason() {
+				return "name extractor could not locate a likely name in the provided data set";
+			}
+		};
 	}
 
 	/**
@@ -117,32 +282,25 @@ public class NameExtractor implements FieldExtractor {
 	 * 
 	 * This could be strengthened by checking the end of the string for things
 	 * like "Court", "Ct", "Street" and so on.
-	 * @param s
+	 * @param features
 	 * @return true if probably an address
 	 */
-	private boolean isAddressProbably(String s) {
-		if (s.trim().matches("^\\d+")) {
-			return true;
-		}
-		return false;
+	private boolean isAddressProbably(LineFeatures features) {
+		return features.allDigits();
 	}
 
 	/**
 	 * Decides if a string is likely to be a corporation or other business
-	 * entity name. Runs through a listing of typical substrings that indicate a
-	 * corp is being referred to and treats those that end with such substrings as
-	 * probable corp names.
+	 * entity name. Strings that end with one of the company indicators in the keyword
+	 * dictionary (ignoring case) are treated as probable corp names. All the indicators
+	 * are checked in one pass over the string.
+	 * @param keywords
+	 * @param names
 	 * @param s
 	 * @return true if probably a corporation name
 	 */
-	private boolean isCorpProbably(String s) {
-		String sUpper = s.trim().toUpperCase();
-		for (String corp : companyIndicators) {
-			if (sUpper.endsWith(corp)) {
-				return true;
-			}
-		}
-		return false;
+	private static boolean isCorpProbably(KeywordMatcher keywords, Names names, CharSequence s) {
+		return keywords.endsWith(s, 0, s.length(), names.companyKinds);
 	}
 
 	/**
@@ -157,19 +315,104 @@ public class NameExtractor implements FieldExtractor {
 	 * Split the field into whitespace- and hyphen-delimited terms and looks to
 	 * see if each term is in our names database.
 	 * Since our names database is actually surnames, we search the list of
-	 * terms in reverse order to save a little time.
+	 * terms in reverse order to save a little time. Terms are looked up in place,
+	 * without splitting the field up into new strings.
+	 * @param names
 	 * @param maybeName
 	 * @return an integer ranking for the provided name
 	 */
-	private int getNameRank(String maybeName) {
-		String [] terms = maybeName.split("\\s+|-");
-		for (int i=terms.length-1; i>=0; i--) {
-			if (nameDatabase.containsName(terms[i])) {
-				// the first hit will produce our rank value
-				return nameDatabase.rankFor(terms[i]);
+	private static int getNameRank(Names names, CharSequence maybeName) {
+		int end = maybeName.length();
+		while (end > 0) {
+			// skip back over delimiters to the end of the next term, then to its start
+			while (end > 0 && isTermDelimiter(maybeName.charAt(end - 1))) {
+				end--;
+			}
+			int start = end;
+			while (start > 0 && !isTermDelimiter(maybeName.charAt(start - 1))) {
+				start--;
 			}
+			if (start < end) {
+				int rank = names.nameDatabase.rank(maybeName, start, end);
+				if (rank != -1) {
+					// the first hit will produce our rank value
+					return rank;
+				}
+			}
+			end = start;
 		}
 		return -1;
 	}
 	
+	/**
+	 * Picks the line holding the name that's fewest edits away from one of its terms,
+	 * for cards where no line holds a name as it's spelt. Any real name beats these, so
+	 * this is only done once every line has been looked at, and none did.
+	 * 
+	 * Among lines whose names are as close, the best-ranked name wins. Only terms made of
+	 * letters (or the digits OCR mistakes them for) are looked up.
+	 * @param names
+	 * @param lines
+	 * @return the line, or null if none holds a name that close
+	 */
+	private static String getGarbledName(Names names, List<CharSequence> lines) {
+		CharSequence best = null;
+		int bestDistance = Integer.MAX_VALUE;
+		int bestRank = Integer.MAX_VALUE;
+		for (CharSequence line : lines) {
+			int end = line.length();
+			while (end > 0) {
+				while (end > 0 && isTermDelimiter(line.charAt(end - 1))) {
+					end--;
+				}
+				int start = end;
+				while (start > 0 && !isTermDelimiter(line.charAt(start - 1))) {
+					start--;
+				}
+				int maxDistance = Math.min(fuzzyDistanceFor(names.fuzzyDistance, line, start, end), bestDistance);
+				if (maxDistance > 0) {
+					FuzzyNameIndex.Match match = names.nameDatabase.fuzzyRank(line, start, end, maxDistance);
+					if (match != null && (match.getDistance() < bestDistance
+							|| (match.getDistance() == bestDistance && match.getRank() < bestRank))) {
+						best = line;
+						bestDistance = match.getDistance();
+						bestRank = match.getRank();
+					}
+				}
+				end = start;
+			}
+		}
+		return best == null ? null : best.toString();
+	}
+	
+	/**
+	 * @return how many edits to allow looking up a term: none for terms that are short,
+	 * or aren't made of letters (and the odd digit), one for terms of up to six chars
+	 */
+	private static int fuzzyDistanceFor(int fuzzyDistance, CharSequence s, int start, int end) {
+		int length = end - start;
+		if (length < 4) {
+			return 0;
+		}
+		int digits = 0;
+		for (int i=start; i<end; i++) {
+			char c = s.charAt(i);
+			if (c >= '0' && c <= '9') {
+				digits++;
+			} else if (!Character.isLetter(c) && c != '\'') {
+				return 0;
+			}
+		}
+		int distance = Math.min(fuzzyDistance, length < 7 ? 1 : 2);
+		return digits > distance ? 0 : distance;
+	}
+	
+	/**
+	 * @param c
+	 * @return true for white-space (as in regex \\s) and hyphens
+	 */
+	private static boolean isTermDelimiter(char c) {
+		return c == ' ' || c == '-' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+	
 }
@@ -0,0 +1,233 @@
+package org.example.bcp.name;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * A compact, read-only map from name to rank, looked up case-insensitively.
+ *
+ * All of the (upper-cased) names are packed end to end into one char array, with their
+ * start offsets and ranks in parallel int arrays. The hash table itself is an int array
+ * of entry numbers, probed linearly. Hashing and comparing fold case a character at a
+ * time, straight off whatever CharSequence range is being looked up, so a lookup never
+ * allocates and never has to upper-case the term first.
+ *
+ * Case is folded with Character.toUpperCase, one char at a time. For names made of
+ * ASCII letters (i.e. census names) that's the same as String.toUpperCase, but it
+ * doesn't depend on the default locale.
+ * @author astein
+ *
+ */
+public final class NameIndex implements NameLookup {
+
+	// entry number + 1 for each slot, 0 meaning empty. length is a power of two.
+	private final int[] slots;
+	// where each entry's name starts in names; one extra at the end
+	private final int[] offsets;
+	private final int[] ranks;
+	private final char[] names;
+	private final int mask;
+
+	private NameIndex(int[] slots, int[] offsets, int[] ranks, char[] names) {
+		this.slots = slots;
+		this.offsets = offsets;
+		this.ranks = ranks;
+		this.names = names;
+		this.mask = slots.length - 1;
+	}
+
+	/**
+	 * Looks up part of a character sequence.
+	 * @param s
+	 * @param start index of the first character of the name
+	 * @param end index after the last character of the name
+	 * @return the rank of the name, or -1 if it isn't in the index
+	 */
+	@Override
+	public int rank(CharSequence s, int start, int end) {
+		int slot = hash(s, start, end) & mask;
+		while (true) {
+			int entry = slots[slot] - 1;
+			if (entry < 0) {
+				return -1;
+			}
+			if (matches(entry, s, start, end)) {
+				return ranks[entry];
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * @return number of names in the index
+	 */
+	@Override
+	public int size() {
+		return ranks.length;
+	}
+
+	@Override
+	public CharSequence name(int entry) {
+		return CharBuffer.wrap(names, offsets[entry], offsets[entry + 1] - offsets[entry]);
+	}
+
+	@Override
+	public int rankOf(int entry) {
+		return ranks[entry];
+	}
+
+	/**
+	 * @return approximate number of bytes of heap taken by the index's arrays
+	 */
+	public long sizeInBytes() {
+		return 4L * (slots.length + offsets.length + ranks.length) + 2L * names.length;
+	}
+
+	// the raw tables, for writing out snapshots
+	
+	int[] slots() {
+		return slots;
+	}
+	
+	int[] offsets() {
+		return offsets;
+	}
+	
+	int[] ranks() {
+		return ranks;
+	}
+	
+	char[] names() {
+		return names;
+	}
+
+	private boolean matches(int entry, CharSequence s, int start, int end) {
+		int offset = offsets[entry];
+		int length = offsets[entry + 1] - offset;
+		if (length != end - start) {
+			return false;
+		}
+		for (int i=0; i<length; i++) {
+			if (names[offset + i] != fold(s.charAt(start + i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static int hash(CharSequence s, int start, int end) {
+		int h = 0;
+		for (int i=start; i<end; i++) {
+			h = 31 * h + fold(s.charAt(i));
+		}
+		// spread the bits, since the table is indexed by the low ones
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	static char fold(char c) {
+		if (c < 0x80) {
+			return (c >= 'a' && c <= 'z') ? (char) (c - ('a' - 'A')) : c;
+		}
+		return Character.toUpperCase(c);
+	}
+
+	/**
+	 * Collects names and ranks and then packs them into an index. If a name is added
+	 * more than once, the last rank given for it wins.
+	 */
+	public static final class Builder {
+		private char[] names = new char[1024];
+		private int[] offsets = new int[257];
+		private int[] ranks = new int[256];
+		private int count;
+		private int length;
+
+		public Builder add(CharSequence name, int rank) {
+			return add(name, 0, name.length(), rank);
+		}
+
+		public Builder add(CharSequence name, int start, int end, int rank) {
+			if (count == ranks.length) {
+				ranks = Arrays.copyOf(ranks, count * 2);
+				offsets = Arrays.copyOf(offsets, count * 2 + 1);
+			}
+			int nameLength = end - start;
+			if (length + nameLength > names.length) {
+				names = Arrays.copyOf(names, Math.max(names.length * 2, length + nameLength));
+			}
+			for (int i=0; i<nameLength; i++) {
+				names[length + i] = fold(name.charAt(start + i));
+			}
+			offsets[count] = length;
+			ranks[count] = rank;
+			length += nameLength;
+			count++;
+			offsets[count] = length;
+			return this;
+		}
+
+		/**
+		 * Adds everything that was added to another builder, in the same order.
+		 * @param other
+		 * @return
+		 */
+		public Builder addAll(Builder other) {
+			CharBuffer otherNames = CharBuffer.wrap(other.names);
+			for (int e=0; e<other.count; e++) {
+				add(otherNames, other.offsets[e], other.offsets[e + 1], other.ranks[e]);
+			}
+			return this;
+		}
+
+		public NameIndex build() {
+			// keep the table at most half full
+			int capacity = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+			int mask = capacity - 1;
+			int[] slots = new int[capacity];
+
+			// entries may shrink if there are duplicate names, so pack afresh
+			int[] packedOffsets = new int[count + 1];
+			int[] packedRanks = new int[count];
+			char[] packedNames = new char[length];
+			NameIndex index = new NameIndex(slots, packedOffsets, packedRanks, packedNames);
+			int entries = 0;
+			int packedLength = 0;
+
+			CharBuffer all = CharBuffer.wrap(names, 0, length);
+			for (int e=0; e<count; e++) {
+				int start = offsets[e];
+				int end = offsets[e + 1];
+				int slot = hash(all, start, end) & mask;
+				while (true) {
+					int existing = slots[slot] - 1;
+					if (existing < 0) {
+						System.arraycopy(names, start, packedNames, packedLength, end - start);
+						packedOffsets[entries] = packedLength;
+						packedRanks[entries] = ranks[e];
+						packedLength += end - start;
+						packedOffsets[entries + 1] = packedLength;
+						entries++;
+						slots[slot] = entries;
+						break;
+					}
+					if (index.matches(existing, all, start, end)) {
+						packedRanks[existing] = ranks[e];
+						break;
+					}
+					slot = (slot + 1) & mask;
+				}
+			}
+
+			if (entries == count) {
+				return index;
+			}
+			return new NameIndex(slots,
+				Arrays.copyOf(packedOffsets, entries + 1),
+				Arrays.copyOf(packedRanks, entries),
+				Arrays.copyOf(packedNames, packedLength));
+		}
+	}
+}
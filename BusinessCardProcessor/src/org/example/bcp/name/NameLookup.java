@@ -0,0 +1,35 @@
+package org.example.bcp.name;
+
+/**
+ * Something that can give the rank of a name, looked up case-insensitively.
+ * @author astein
+ *
+ */
+public interface NameLookup {
+	
+	/**
+	 * Looks up part of a character sequence. Must not allocate.
+	 * @param s
+	 * @param start index of the first character of the name
+	 * @param end index after the last character of the name
+	 * @return the rank of the name, or -1 if it isn't present
+	 */
+	public int rank(CharSequence s, int start, int end);
+	
+	/**
+	 * @return number of names present
+	 */
+	public int size();
+	
+	/**
+	 * @param entry from 0 to size() - 1
+	 * @return the name of an entry, upper-cased
+	 */
+	public CharSequence name(int entry);
+	
+	/**
+	 * @param entry from 0 to size() - 1
+	 * @return the rank of an entry
+	 */
+	public int rankOf(int entry);
+}
@@ -0,0 +1,182 @@
+package org.example.bcp.name;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes precompiled, binary snapshots of the names database, so that it
+ * can be memory-mapped at startup instead of parsed out of the census CSV.
+ * 
+ * A snapshot is the NameIndex hash table written out as-is (big-endian):
+ * <pre>
+ * long   magic ("BCPNAMES")
+ * int    format version
+ * long   CRC-32 of the CSV the snapshot was compiled from
+ * int    number of hash table slots (a power of two)
+ * int    number of names
+ * int    number of name chars
+ * int[]  slots
+ * int[]  name offsets (one more than the number of names)
+ * int[]  ranks
+ * char[] names
+ * </pre>
+ * 
+ * The main method compiles a snapshot; the build does this as part of packaging.
+ * @author astein
+ *
+ */
+public final class NameSnapshot {
+	
+	static final long MAGIC = 0x4243504E414D4553L; // "BCPNAMES"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 8 + 4 + 8 + 4 + 4 + 4;
+	
+	private NameSnapshot() {
+	}
+	
+	/**
+	 * Writes a snapshot of an index. The file is written alongside and then moved into
+	 * place, so readers never see a half-written snapshot.
+	 * @param index
+	 * @param sourceChecksum checksum of the CSV that the index was built from
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void write(NameIndex index, long sourceChecksum, Path file) throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		int[] slots = index.slots();
+		int[] offsets = index.offsets();
+		int[] ranks = index.ranks();
+		char[] names = index.names();
+		
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(sourceChecksum);
+			out.writeInt(slots.length);
+			out.writeInt(ranks.length);
+			out.writeInt(names.length);
+			for (int i : slots) {
+				out.writeInt(i);
+			}
+			for (int i : offsets) {
+				out.writeInt(i);
+			}
+			for (int i : ranks) {
+				out.writeInt(i);
+			}
+			for (char c : names) {
+				out.writeChar(c);
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Maps a snapshot into memory.
+	 * @param file
+	 * @param expectedChecksum checksum of the CSV the snapshot should have been built from,
+	 * or -1 to not check
+	 * @return the lookup, or null if the snapshot is of the wrong version, is damaged or
+	 * was built from some other CSV
+	 * @throws IOException
+	 */
+	static NameLookup open(Path file, long expectedChecksum) throws IOException {
+		MappedByteBuffer buf;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			// the mapping stays valid after the channel is closed
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		
+		if (buf.capacity() < HEADER_BYTES || buf.getLong(0) != MAGIC) {
+			System.err.println("names snapshot '" + file + "' is not a names snapshot");
+			return null;
+		}
+		if (buf.getInt(8) != VERSION) {
+			System.err.println("names snapshot '" + file + "' is format version " + buf.getInt(8) + ", expected " + VERSION);
+			return null;
+		}
+		if (expectedChecksum != -1 && buf.getLong(12) != expectedChecksum) {
+			System.err.println("names snapshot '" + file + "' is stale (checksum mismatch)");
+			return null;
+		}
+		int slotCount = buf.getInt(20);
+		int nameCount = buf.getInt(24);
+		int charCount = buf.getInt(28);
+		long expectedSize = HEADER_BYTES + 4L * (slotCount + nameCount + 1 + nameCount) + 2L * charCount;
+		if (Integer.bitCount(slotCount) != 1 || nameCount < 0 || charCount < 0 || buf.capacity() != expectedSize) {
+			System.err.println("names snapshot '" + file + "' is damaged");
+			return null;
+		}
+		
+		int pos = HEADER_BYTES;
+		ByteBuffer slots = section(buf, pos, 4 * slotCount);
+		pos += 4 * slotCount;
+		ByteBuffer offsets = section(buf, pos, 4 * (nameCount + 1));
+		pos += 4 * (nameCount + 1);
+		ByteBuffer ranks = section(buf, pos, 4 * nameCount);
+		pos += 4 * nameCount;
+		ByteBuffer names = section(buf, pos, 2 * charCount);
+		
+		return new MappedNameIndex(slots.asIntBuffer(), offsets.asIntBuffer(), ranks.asIntBuffer(), names.asCharBuffer());
+	}
+	
+	private static ByteBuffer section(ByteBuffer buf, int position, int length) {
+		ByteBuffer dup = buf.duplicate();
+		dup.position(position);
+		dup.limit(position + length);
+		return dup.slice();
+	}
+	
+	/**
+	 * @param in
+	 * @return CRC-32 of everything in the stream
+	 * @throws IOException
+	 */
+	static long checksum(InputStream in) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buf = new byte[64 * 1024];
+		int n;
+		while ((n = in.read(buf)) != -1) {
+			crc.update(buf, 0, n);
+		}
+		return crc.getValue();
+	}
+	
+	/**
+	 * Compiles a names CSV into a snapshot.
+	 * Usage: NameSnapshot &lt;census csv file&gt; &lt;snapshot file&gt;
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: NameSnapshot <names csv file> <snapshot file>");
+			System.exit(1);
+		}
+		Path csv = Paths.get(args[0]);
+		Path snapshot = Paths.get(args[1]);
+		
+		long checksum;
+		try (InputStream in = Files.newInputStream(csv)) {
+			checksum = checksum(in);
+		}
+		NameIndex index;
+		try (InputStream in = Files.newInputStream(csv)) {
+			index = NameDatabase.readCsv(in);
+		}
+		write(index, checksum, snapshot);
+		System.out.println("wrote " + index.size() + " names to snapshot '" + snapshot + "'");
+	}
+}
@@ -0,0 +1,456 @@
+package org.example.bcp.output;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A long-lived, append-only output sink that batches many records into a single write.
+ *
+ * Records are encoded straight into a pooled buffer. A background thread writes the
+ * filled buffers to one FileChannel in a single gathering write when a buffer is full,
+ * when the oldest unwritten record has waited long enough, or when a caller asks for
+ * its record to be made durable. Records are never split up or interleaved; a record
+ * that is bigger than a buffer spans consecutive buffers, which are written in order.
+ *
+ * How hard the writer tries to get data onto the disk is governed by a {@link SyncPolicy}.
+ * With NONE and BATCH, {@link #append(CharSequence...)} returns as soon as the record is
+ * buffered, and {@link #close()} (run from a shutdown hook) writes out whatever is left.
+ * With EVERY, append does not return until the batch containing the record has been
+ * written and forced; concurrent appenders share the same force (i.e. group commit).
+ * @author astein
+ *
+ */
+public class GroupCommitWriter implements Closeable {
+
+	/**
+	 * When to force written data to the storage device.
+	 */
+	public enum SyncPolicy {
+		/** never force; leave it to the OS */
+		NONE,
+		/** force after each batch is written, but don't make appenders wait for it */
+		BATCH,
+		/** force after each batch is written, and make each appender wait for it */
+		EVERY;
+
+		/**
+		 * @param s one of 'none', 'batch' or 'every', case insensitive
+		 * @return
+		 */
+		public static SyncPolicy fromString(String s) {
+			return valueOf(s.trim().toUpperCase());
+		}
+	}
+
+	/**
+	 * Where an appended record went in the file.
+	 */
+	public static final class Extent {
+		private final long seq;
+		private final long start;
+		private final long end;
+
+		Extent(long seq, long start, long end) {
+			this.seq = seq;
+			this.start = start;
+			this.end = end;
+		}
+
+		/**
+		 * @return the record's sequence number
+		 */
+		public long getSeq() {
+			return seq;
+		}
+
+		/**
+		 * @return position in the file of the record's first byte
+		 */
+		public long getStart() {
+			return start;
+		}
+
+		/**
+		 * @return position in the file just after the record's last byte
+		 */
+		public long getEnd() {
+			return end;
+		}
+	}
+
+	private final FileChannel channel;
+	private final SyncPolicy syncPolicy;
+	private final long maxDelayNanos;
+	private final int bufferSize;
+	private final int maxBuffers;
+	private final CharsetEncoder encoder;
+
+	// guards all of the buffer state below, shared with the flusher
+	private final ReentrantLock lock = new ReentrantLock();
+	// held by an appender for as long as it's encoding a record, so that records stay
+	// whole even while the appender waits on the flusher for a buffer
+	private final ReentrantLock appendLock = new ReentrantLock();
+	// signalled when the flusher has something to do
+	private final Condition work = lock.newCondition();
+	// signalled when the flusher has finished a batch
+	private final Condition flushed = lock.newCondition();
+
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+	private final List<ByteBuffer> sealed = new ArrayList<ByteBuffer>();
+	private ByteBuffer current;
+	private int allocated;
+	// position in the file at which the current buffer starts
+	private long currentStart;
+
+	// sequence number of the last record appended, and of the last one written out
+	private long appendedSeq;
+	private long flushedSeq;
+	// when the oldest record not yet handed to the flusher was appended
+	private long oldestPendingNanos;
+	// number of appenders waiting on a force
+	private int syncWaiters;
+
+	private boolean closed;
+	private IOException failure;
+
+	private final Thread flusher;
+
+	/**
+	 * Opens (creating if need be) the output file for appending and starts the flusher.
+	 * @param file output file
+	 * @param charset charset used to encode records
+	 * @param bufferSize size of each pooled buffer; a batch is written once a buffer fills
+	 * @param maxBuffers most buffers that may be filled or waiting to be written at once
+	 * @param maxDelayMillis longest a record may sit in a buffer before it's written
+	 * @param syncPolicy
+	 * @throws IOException
+	 */
+	public GroupCommitWriter(Path file, Charset charset, int bufferSize, int maxBuffers, long maxDelayMillis,
+			SyncPolicy syncPolicy) throws IOException {
+		if (maxBuffers < 2) {
+			throw new IllegalArgumentException("at least two buffers are needed");
+		}
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		this.syncPolicy = syncPolicy;
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+		this.bufferSize = bufferSize;
+		this.maxBuffers = maxBuffers;
+		this.encoder = charset.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.current = ByteBuffer.allocateDirect(bufferSize);
+		this.allocated = 1;
+		this.currentStart = channel.size();
+
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, "bcp-output-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Appends one record, made up of the concatenation of the given parts.
+	 * @param parts
+	 * @return where the record went
+	 * @throws IOException if the writer is closed or an earlier write failed
+	 */
+	public Extent append(CharSequence... parts) throws IOException {
+		long seq;
+		long start;
+		long end;
+		appendLock.lock();
+		lock.lock();
+		try {
+			try {
+				checkUsable();
+				start = currentStart + current.position();
+				if (appendedSeq == flushedSeq && current.position() == 0 && sealed.isEmpty()) {
+					// the flusher is idle; wake it so that it starts timing this record
+					oldestPendingNanos = System.nanoTime();
+					work.signal();
+				}
+				encoder.reset();
+				for (CharSequence part : parts) {
+					encode(CharBuffer.wrap(part), false);
+				}
+				encode(CharBuffer.allocate(0), true);
+				while (encoder.flush(current) == CoderResult.OVERFLOW) {
+					nextBuffer();
+				}
+				seq = ++appendedSeq;
+				end = currentStart + current.position();
+			} finally {
+				appendLock.unlock();
+			}
+			if (syncPolicy == SyncPolicy.EVERY) {
+				awaitFlushed(seq);
+			}
+		} finally {
+			lock.unlock();
+		}
+		return new Extent(seq, start, end);
+	}
+
+	/**
+	 * Blocks until every record appended so far has been written (and forced, unless
+	 * the policy is NONE).
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		lock.lock();
+		try {
+			checkUsable();
+			awaitFlushed(appendedSeq);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return how hard the writer tries to get data onto the disk
+	 */
+	public SyncPolicy getSyncPolicy() {
+		return syncPolicy;
+	}
+
+	/**
+	 * Writes out everything that's been appended, then closes the file. Safe to call
+	 * more than once.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			if (failure == null) {
+				awaitFlushed(appendedSeq);
+			}
+			closed = true;
+			work.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		try {
+			if (syncPolicy != SyncPolicy.NONE && failure == null) {
+				channel.force(false);
+			}
+		} finally {
+			channel.close();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Encodes into the current buffer, moving on to fresh buffers as they fill.
+	 * Lock must be held.
+	 */
+	private void encode(CharBuffer in, boolean endOfInput) throws IOException {
+		while (true) {
+			CoderResult result = encoder.encode(in, current, endOfInput);
+			if (result.isOverflow()) {
+				nextBuffer();
+			} else if (result.isUnderflow()) {
+				return;
+			} else {
+				// can't happen with REPLACE actions
+				result.throwException();
+			}
+		}
+	}
+
+	/**
+	 * Called when the current buffer is full. Hands it to the flusher and takes a fresh
+	 * one, waiting for the flusher to give one back if the pool is exhausted. Lock and
+	 * append lock must be held.
+	 */
+	private void nextBuffer() throws IOException {
+		while (free.isEmpty() && allocated >= maxBuffers) {
+			work.signal();
+			awaitCondition(flushed);
+			if (failure != null) {
+				throw failure;
+			}
+			if (current.remaining() > 0) {
+				// the flusher took the full buffer while we waited
+				return;
+			}
+		}
+		currentStart += current.position();
+		current.flip();
+		sealed.add(current);
+		work.signal();
+		if (!free.isEmpty()) {
+			current = free.poll();
+		} else {
+			current = ByteBuffer.allocateDirect(bufferSize);
+			allocated++;
+		}
+	}
+
+	/**
+	 * Waits for the flusher to get past the given sequence number. Lock must be held.
+	 */
+	private void awaitFlushed(long seq) throws IOException {
+		syncWaiters++;
+		try {
+			work.signal();
+			while (flushedSeq < seq && failure == null) {
+				awaitCondition(flushed);
+			}
+		} finally {
+			syncWaiters--;
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void awaitCondition(Condition condition) throws IOException {
+		try {
+			condition.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting on output writer");
+		}
+	}
+
+	private void checkUsable() throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+		if (closed) {
+			throw new IOException("output writer is closed");
+		}
+	}
+
+	/**
+	 * Body of the flusher thread. Gathers up everything buffered so far and writes it
+	 * in one go.
+	 */
+	private void flushLoop() {
+		List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+		while (true) {
+			long batchSeq;
+			lock.lock();
+			try {
+				try {
+					while (!closed && !batchReady()) {
+						if (appendedSeq > flushedSeq) {
+							long wait = maxDelayNanos - (System.nanoTime() - oldestPendingNanos);
+							if (wait > 0) {
+								work.awaitNanos(wait);
+							}
+						} else {
+							work.await();
+						}
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (closed && sealed.isEmpty() && current.position() == 0) {
+					return;
+				}
+
+				batch.addAll(sealed);
+				sealed.clear();
+				if (current.position() > 0) {
+					currentStart += current.position();
+					current.flip();
+					batch.add(current);
+					if (free.isEmpty()) {
+						current = ByteBuffer.allocateDirect(bufferSize);
+						allocated++;
+					} else {
+						current = free.poll();
+					}
+				}
+				batchSeq = appendedSeq;
+				oldestPendingNanos = System.nanoTime();
+			} finally {
+				lock.unlock();
+			}
+
+			IOException error = null;
+			try {
+				ByteBuffer[] bufs = batch.toArray(new ByteBuffer[batch.size()]);
+				long remaining = 0;
+				for (ByteBuffer b : bufs) {
+					remaining += b.remaining();
+				}
+				while (remaining > 0) {
+					remaining -= channel.write(bufs);
+				}
+				if (syncPolicy != SyncPolicy.NONE) {
+					channel.force(false);
+				}
+			} catch (IOException e) {
+				error = e;
+			}
+
+			lock.lock();
+			try {
+				for (ByteBuffer b : batch) {
+					b.clear();
+					free.add(b);
+				}
+				batch.clear();
+				if (error != null) {
+					failure = error;
+				} else {
+					flushedSeq = batchSeq;
+				}
+				flushed.signalAll();
+				if (error != null) {
+					return;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Lock must be held.
+	 * @return true if there's something that ought to be written now
+	 */
+	private boolean batchReady() {
+		if (!sealed.isEmpty()) {
+			return true;
+		}
+		if (appendedSeq == flushedSeq) {
+			return false;
+		}
+		return syncWaiters > 0 || System.nanoTime() - oldestPendingNanos >= maxDelayNanos;
+	}
+}
@@ -1,63 +1,137 @@
 package org.example.bcp.phone;
 
+import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
 
-import org.example.bcp.FieldExtractor;
+import org.example.bcp.FieldMatcher;
+import org.example.bcp.LineFeatureExtractor;
+import org.example.bcp.LineFeatures;
+import org.example.bcp.PropertiesLoader;
 import org.example.bcp.RecordProcessingException;
+import org.example.bcp.ResourceReloader;
+import org.example.bcp.metrics.Metrics;
+import org.example.bcp.util.KeywordMatcher;
 
 /**
  * Finds a phone number (not a fax number) in a list of strings.
+ *
+ * The fax markers come from the keyword dictionary of the current
+ * {@link ResourceReloader.Generation generation} of resources, which the name extractor's
+ * company indicators come from too, so both change over at the same moment when it's
+ * reloaded.
  * @author astein
  *
  */
-public class PhoneNumberExtractor implements FieldExtractor {
+public class PhoneNumberExtractor implements LineFeatureExtractor {
+
+	/**
+	 * Which kinds of keyword mark a fax number, for each generation of resources.
+	 */
+	static final ResourceReloader.Part<Integer> FAX_KINDS = new ResourceReloader.Part<Integer>() {
+		@Override
+		public Integer load(Properties mainProps, KeywordMatcher keywords) {
+			return keywords.kind(PhoneNumberScanner.FAX_KIND);
+		}
+
+		@Override
+		public List<String> files(Properties mainProps, Integer loaded) {
+			// just the keyword dictionary, which is always looked at
+			return Collections.emptyList();
+		}
+	};
+
+	public static final String FIELD_NAME = "phone";
 
-	// a regex pattern that finds phone numbers
 	// at the very least, the text must contain two sequences of three digits
 	// followed by a sequence of four digits. the sequences may be separated,
-	// preceded and followed by virtually anything.
-	// we also capture () pretty much everything so we can inspect it for clues
-	// as to whether this is a fax number or not.
-	Pattern phonePattern = Pattern.compile("(.*)([\\d]{3}).*([\\d]{3}).*([\\d]{4})(.*)");
-	
-	String FAX = "FAX";
-	String FACSIMILE = "FACSIMILE"; // archaic, yes. but, so is a fax machine.
-	
+	// preceded and followed by virtually anything. whatever precedes and follows
+	// them is inspected for clues as to whether this is a fax number or not.
+	// see PhoneNumberScanner for the details.
+	private static final int MIN_DIGITS = 10;
+
+	LongAdder faxFiltered = Metrics.get().counter(Metrics.FAX_FILTERED);
+
+	// shared with the other extractors; null until init(), when the built-in fax markers
+	// are used
+	ResourceReloader resources;
+
 	@Override
-	public String getField(List<String> ocrRecord) throws RecordProcessingException {
-		for (String s : ocrRecord) {
-			Matcher phoneMatcher = phonePattern.matcher(s.trim());
-			if (!phoneMatcher.matches()) {
-				continue;
-			}
-			
-			// filter out phone numbers that are really fax numbers
-			if (phoneMatcher.group(1).toUpperCase().contains(FAX) || phoneMatcher.group(1).toUpperCase().contains(FACSIMILE) ||
-				phoneMatcher.group(5).toUpperCase().contains(FAX) || phoneMatcher.group(5).toUpperCase().contains(FACSIMILE)) {
-				continue;
-			}
-			
-			return normalize(phoneMatcher);
-		}
-		
-		throw new RecordProcessingException("phone number extractor cannot locate phone number in OCR record");
+	public String getFieldName() {
+		return FIELD_NAME;
+	}
+
+	@Override
+	public void init(Properties props) throws IOException, RecordProcessingException {
+		resources = ResourceReloader.of(props);
+		resources.register(FAX_KINDS);
 	}
-	
+
 	/**
-	 * Generates a phone number formatted as a simple sequence of digits. Uses
-	 * the context generated by an already-completed regex match to produce the
-	 * required digit sequences.
-	 * @param matchedPattern
-	 * @return formatted phone number
+	 * @return number of the generation of resources in use, 0 before init()
 	 */
-	private String normalize(Matcher matchedPattern) {
-		if (matchedPattern.group(2) != null && matchedPattern.group(2).compareTo("") != 0) {
-			return matchedPattern.group(2) + matchedPattern.group(3) + matchedPattern.group(4);
-		} else {
-			return matchedPattern.group(3) + matchedPattern.group(4);
-		}
+	@Override
+	public long generation() {
+		return resources == null ? 0 : resources.current().getNumber();
+	}
+
+	/**
+	 * @return the checksum of the keyword dictionary the fax markers came from
+	 */
+	@Override
+	public long fingerprint() {
+		return resources == null ? 0 : resources.current().getKeywords().getChecksum();
+	}
+
+	/**
+	 * Lines with fewer than ten digits can't hold a phone number.
+	 */
+	@Override
+	public boolean accepts(LineFeatures features) {
+		return features.digitCount() >= MIN_DIGITS;
+	}
+
+	/**
+	 * The matcher sticks to the generation that's current when it's made.
+	 */
+	@Override
+	public FieldMatcher newMatcher() {
+		final ResourceReloader.Generation generation = resources == null ? null : resources.current();
+		final int faxKinds = generation == null ? 0 : generation.get(FAX_KINDS);
+		return new FieldMatcher() {
+			String number;
+
+			@Override
+			public boolean offer(CharSequence line, LineFeatures features) {
+				PhoneNumberScanner.Match match = generation == null
+					? PhoneNumberScanner.scan(line, 0, line.length())
+					: PhoneNumberScanner.scan(line, 0, line.length(), generation.getKeywords(), faxKinds);
+				if (match == null) {
+					return false;
+				}
+
+				// filter out phone numbers that are really fax numbers
+				if (match.isFax()) {
+					faxFiltered.increment();
+					return false;
+				}
+
+				number = match.normalize();
+				return true;
+			}
+
+			@Override
+			public String getField() {
+				return number;
+			}
+
+			@Override
+			public String getMissingReason() {
+				return "phone number extractor cannot locate phone number in OCR record";
+			}
+		};
 	}
 
 }
@@ -0,0 +1,160 @@
+package org.example.bcp.phone;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.example.bcp.util.KeywordMatcher;
+
+/**
+ * Finds a phone number in a line of text without using a regex.
+ *
+ * This gives exactly the same answers as matching the whole (trimmed) line against
+ * <pre>(.*)([\d]{3}).*([\d]{3}).*([\d]{4})(.*)</pre>
+ * which is what the phone number extractor used to do. Because every '.*' in that
+ * pattern is greedy, the match it settles on is always made of
+ * <ul>
+ * <li>the last run of 4 digits in the line,</li>
+ * <li>the last run of 3 digits that ends at or before that,</li>
+ * <li>and the last run of 3 digits that ends at or before that one.</li>
+ * </ul>
+ * (a "run" here being any digits, not necessarily a maximal sequence of them). All
+ * three can be found in one pass over the line from right to left, keeping a count
+ * of how many digits follow each position. The text either side of the number is then
+ * checked for fax keywords with a {@link KeywordMatcher}, so the scan is O(line length)
+ * however many keywords there are, and allocates nothing unless it finds a number.
+ * @author astein
+ *
+ */
+public final class PhoneNumberScanner {
+
+	static final String FAX = "FAX";
+	static final String FACSIMILE = "FACSIMILE"; // archaic, yes. but, so is a fax machine.
+	public static final String FAX_KIND = "fax";
+
+	// for when no keyword dictionary has been loaded
+	private static final KeywordMatcher DEFAULT_KEYWORDS = new KeywordMatcher(
+		Collections.singletonMap(FAX_KIND, Arrays.asList(FAX, FACSIMILE)));
+
+	/**
+	 * Where the pieces of a phone number were found in a line, and whether the text
+	 * around it says it's a fax number.
+	 */
+	public static final class Match {
+		private final CharSequence line;
+		private final int areaCode;
+		private final int exchange;
+		private final int subscriber;
+		private final boolean fax;
+
+		Match(CharSequence line, int areaCode, int exchange, int subscriber, boolean fax) {
+			this.line = line;
+			this.areaCode = areaCode;
+			this.exchange = exchange;
+			this.subscriber = subscriber;
+			this.fax = fax;
+		}
+
+		/**
+		 * @return true if the text before or after the number mentions fax/facsimile
+		 */
+		public boolean isFax() {
+			return fax;
+		}
+
+		/**
+		 * @return the phone number formatted as a simple sequence of (ten) digits
+		 */
+		public String normalize() {
+			char[] digits = new char[10];
+			for (int i=0; i<3; i++) {
+				digits[i] = line.charAt(areaCode + i);
+				digits[3 + i] = line.charAt(exchange + i);
+			}
+			for (int i=0; i<4; i++) {
+				digits[6 + i] = line.charAt(subscriber + i);
+			}
+			return new String(digits);
+		}
+	}
+
+	private PhoneNumberScanner() {
+	}
+
+	/**
+	 * Scans a line of text for a phone number, using the built-in fax keywords.
+	 * Leading and trailing white-space (as per String.trim()) is ignored.
+	 * @param line
+	 * @param start index of the first character to look at
+	 * @param end index after the last character to look at
+	 * @return the match, or null if there's no phone number in the line
+	 */
+	public static Match scan(CharSequence line, int start, int end) {
+		return scan(line, start, end, DEFAULT_KEYWORDS, DEFAULT_KEYWORDS.kind(FAX_KIND));
+	}
+
+	/**
+	 * Scans a line of text for a phone number. Leading and trailing white-space (as per
+	 * String.trim()) is ignored.
+	 * @param line
+	 * @param start index of the first character to look at
+	 * @param end index after the last character to look at
+	 * @param keywords
+	 * @param faxKinds the kinds of keyword that mark a fax number
+	 * @return the match, or null if there's no phone number in the line
+	 */
+	public static Match scan(CharSequence line, int start, int end, KeywordMatcher keywords, int faxKinds) {
+		while (start < end && line.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && line.charAt(end - 1) <= ' ') {
+			end--;
+		}
+
+		// starting positions of the 4-, 3- and 3-digit groups
+		int subscriber = -1;
+		int exchange = -1;
+		int areaCode = -1;
+		// how many digits there are from the current position onwards
+		int run = 0;
+
+		for (int i=end-1; i>=start; i--) {
+			char c = line.charAt(i);
+			if (isLineTerminator(c)) {
+				// '.' doesn't match these, so the pattern could never have matched
+				return null;
+			}
+
+			run = (c >= '0' && c <= '9') ? run + 1 : 0;
+			if (subscriber < 0) {
+				if (run >= 4) {
+					subscriber = i;
+				}
+			} else if (exchange < 0) {
+				if (run >= 3 && i + 3 <= subscriber) {
+					exchange = i;
+				}
+			} else if (areaCode < 0) {
+				if (run >= 3 && i + 3 <= exchange) {
+					areaCode = i;
+				}
+			}
+		}
+
+		if (areaCode < 0) {
+			return null;
+		}
+
+		// a fax keyword before or after the number (not overlapping it)
+		int suffixStart = subscriber + 4;
+		boolean fax = keywords.contains(line, start, areaCode, faxKinds) ||
+			keywords.contains(line, suffixStart, end, faxKinds);
+		return new Match(line, areaCode, exchange, subscriber, fax);
+	}
+
+	/**
+	 * The characters that '.' in a regex won't match
+	 */
+	private static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+}
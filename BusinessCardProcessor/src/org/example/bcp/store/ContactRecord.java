@@ -0,0 +1,40 @@
+package org.example.bcp.store;
+
+import org.example.bcp.ContactInfo;
+
+/**
+ * A card as kept in the contacts store: the structured contact info, the raw text it
+ * came from, and when it was stored.
+ * @author astein
+ *
+ */
+public class ContactRecord {
+
+	private final ContactInfo info;
+	private final String rawData;
+	private final long timestamp;
+
+	public ContactRecord(ContactInfo info, String rawData, long timestamp) {
+		this.info = info;
+		this.rawData = rawData;
+		this.timestamp = timestamp;
+	}
+
+	public ContactInfo getInfo() {
+		return info;
+	}
+
+	/**
+	 * @return the card's original text
+	 */
+	public String getRawData() {
+		return rawData;
+	}
+
+	/**
+	 * @return when the record was stored, in milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+}
@@ -0,0 +1,591 @@
+package org.example.bcp.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.example.bcp.ContactInfo;
+import org.example.bcp.metrics.LatencyHistogram;
+import org.example.bcp.metrics.Metrics;
+
+/**
+ * An embedded, append-only store of contact records, indexed by phone number, email
+ * address and name.
+ *
+ * Records are appended to a log made of numbered segment files (see {@link Segment} for
+ * the format). When the active segment is full it's sealed, with a hint file listing its
+ * records' keys, and a new one is started. At startup the in-memory indexes are rebuilt
+ * from the hint files, so only the active segment has to be read in full.
+ *
+ * Each index maps a normalised key (digits of the phone number, lower-cased email
+ * address, upper-cased name) to the most recent record with that key, so looking
+ * something up is one hash lookup and one positional read, and checking whether a
+ * contact has been seen before doesn't touch the disk at all. A record that's no longer
+ * the most recent for any of its keys is garbage; compaction rewrites sealed segments that
+ * are mostly garbage, in place and in order, so that replaying the log still gives the
+ * same indexes.
+ *
+ * Appends are written but not forced to disk until {@link #sync()}; a crash can lose the
+ * records appended since, and any record torn by the crash is dropped at the next startup.
+ *
+ * A store can also be opened {@link #openReadOnly(Path) read-only}, for lookups, while
+ * another process has it open for writing. That doesn't lock, create or change anything.
+ * @author astein
+ *
+ */
+public class ContactStore implements Closeable {
+
+	private final Path dir;
+	private final long segmentBytes;
+	private final boolean readOnly;
+	// only one process may have the store open for writing at a time; null if read-only
+	private final FileChannel lockFile;
+	private final FileLock lock;
+
+	private final ConcurrentMap<Integer, Segment> segments = new ConcurrentHashMap<Integer, Segment>();
+	private final ConcurrentMap<String, Long> byPhone = new ConcurrentHashMap<String, Long>();
+	private final ConcurrentMap<String, Long> byEmail = new ConcurrentHashMap<String, Long>();
+	private final ConcurrentMap<String, Long> byName = new ConcurrentHashMap<String, Long>();
+
+	// appends happen one at a time; the active segment and its hints belong to whoever holds this
+	private final Object appendLock = new Object();
+	private Segment active;
+	private List<Segment.Hint> activeHints;
+	private boolean closed;
+
+	// lookups hold the read lock; compaction holds the write lock while swapping a segment
+	private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+	private final Object compactLock = new Object();
+	private ScheduledExecutorService compactor;
+
+	private final LatencyHistogram appendTime = Metrics.get().histogram("store.append");
+	private final LongAdder seenBefore = Metrics.get().counter("store.seenBefore");
+
+	/**
+	 * Opens a store, creating it if need be, and rebuilds its indexes.
+	 * @param dir directory holding the segment files
+	 * @param segmentBytes size at which a segment is sealed and a new one started
+	 * @throws IOException
+	 */
+	public ContactStore(Path dir, long segmentBytes) throws IOException {
+		this(dir, segmentBytes, false);
+	}
+
+	/**
+	 * Opens an existing store just to look contacts up in, as it is right now. Records
+	 * appended after it's been opened aren't seen. Sealed segments are indexed from their
+	 * hint files, and any others are scanned, but nothing is repaired or written.
+	 * @param dir directory holding the segment files
+	 * @return a store that can be looked things up in, but not appended to
+	 * @throws IOException if there's no store there
+	 */
+	public static ContactStore openReadOnly(Path dir) throws IOException {
+		if (!Files.isDirectory(dir)) {
+			throw new IOException("no contacts store at '" + dir + "'");
+		}
+		return new ContactStore(dir, Long.MAX_VALUE, true);
+	}
+
+	private ContactStore(Path dir, long segmentBytes, boolean readOnly) throws IOException {
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		this.readOnly = readOnly;
+		if (readOnly) {
+			lockFile = null;
+			lock = null;
+		} else {
+			Files.createDirectories(dir);
+			lockFile = FileChannel.open(dir.resolve("LOCK"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			lock = lockFile.tryLock();
+			if (lock == null) {
+				lockFile.close();
+				throw new IOException("contacts store '" + dir + "' is in use by another process");
+			}
+		}
+
+		long start = System.nanoTime();
+		TreeMap<Integer, Path> files = new TreeMap<Integer, Path>();
+		try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(dir)) {
+			for (Path file : dirStream) {
+				String name = file.getFileName().toString();
+				if (name.endsWith(".tmp")) {
+					// left behind by an interrupted compaction or hint write, or being
+					// written right now by whoever has the store open for writing
+					if (!readOnly) {
+						Files.delete(file);
+					}
+				} else if (name.startsWith("contacts-") && name.endsWith(Segment.SEGMENT_SUFFIX)) {
+					try {
+						files.put(Integer.parseInt(name.substring(9, name.length() - Segment.SEGMENT_SUFFIX.length())), file);
+					} catch (NumberFormatException e) {
+						System.err.println("ignoring unexpected file '" + file + "' in contacts store");
+					}
+				}
+			}
+		}
+
+		int records = 0;
+		for (Map.Entry<Integer, Path> entry : files.entrySet()) {
+			boolean last = entry.getKey().equals(files.lastKey());
+			Segment segment;
+			try {
+				segment = Segment.open(entry.getValue(), entry.getKey(), readOnly);
+			} catch (NoSuchFileException e) {
+				if (readOnly) {
+					// compacted away since the directory was listed
+					continue;
+				}
+				throw e;
+			}
+			List<Segment.Hint> hints = last ? null : segment.readHints();
+			if (hints == null) {
+				if (readOnly) {
+					hints = segment.scan();
+				} else {
+					hints = recover(segment);
+					if (!last) {
+						segment.writeHints(hints);
+					}
+				}
+			}
+			segments.put(segment.id, segment);
+			for (Segment.Hint hint : hints) {
+				index(segment.id, hint);
+			}
+			records += hints.size();
+			if (last) {
+				active = segment;
+				activeHints = hints;
+			}
+		}
+		if (active == null && !readOnly) {
+			active = Segment.create(dir, 1);
+			activeHints = new ArrayList<Segment.Hint>();
+			segments.put(active.id, active);
+		}
+
+		System.out.println("opened contacts store '" + dir + "': " + records + " record(s) in " + segments.size()
+			+ " segment(s), indexed in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+	}
+
+	/**
+	 * Reads a segment in full, dropping anything after the last good record.
+	 */
+	private static List<Segment.Hint> recover(Segment segment) throws IOException {
+		long fileSize = segment.size();
+		List<Segment.Hint> hints = segment.scan();
+		if (segment.size() < fileSize) {
+			System.err.println("dropping " + (fileSize - segment.size()) + " byte(s) of incomplete or damaged data at the end of '"
+				+ segment.file + "'");
+			segment.truncate(segment.size());
+		}
+		return hints;
+	}
+
+	/**
+	 * Stores a contact.
+	 * @param info
+	 * @param rawData the card text the contact came from
+	 * @return true if a contact with the same phone number or email address was already
+	 * in the store
+	 * @throws IOException
+	 */
+	public boolean append(ContactInfo info, String rawData) throws IOException {
+		long start = System.nanoTime();
+		ByteBuffer encoded = Segment.encode(new ContactRecord(info, rawData, System.currentTimeMillis()));
+		boolean seen;
+		synchronized (appendLock) {
+			if (closed) {
+				throw new IOException("contacts store is closed");
+			}
+			if (readOnly) {
+				throw new IOException("contacts store is open read-only");
+			}
+			if (active.size() > Segment.HEADER_BYTES && active.size() + encoded.limit() > segmentBytes) {
+				roll();
+			}
+			long offset = active.append(encoded);
+			Segment.Hint hint = Segment.hintFor(offset, encoded.limit(), info);
+			activeHints.add(hint);
+			seen = index(active.id, hint);
+		}
+		if (seen) {
+			seenBefore.increment();
+		}
+		appendTime.recordSince(start);
+		return seen;
+	}
+
+	/**
+	 * Blocks until every record appended so far has been forced to disk. Appends carry on
+	 * meanwhile.
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		Segment segment;
+		synchronized (appendLock) {
+			if (closed) {
+				throw new IOException("contacts store is closed");
+			}
+			if (readOnly) {
+				return;
+			}
+			segment = active;
+		}
+		// a segment rolled since has been forced already
+		segment.force();
+	}
+
+	/**
+	 * Seals the active segment and starts a new one.
+	 */
+	private void roll() throws IOException {
+		active.force();
+		active.writeHints(activeHints);
+		Segment next = Segment.create(dir, active.id + 1);
+		segments.put(next.id, next);
+		active = next;
+		activeHints = new ArrayList<Segment.Hint>();
+	}
+
+	/**
+	 * @return true if a contact with the same phone number or email address is in the store
+	 */
+	public boolean hasSeen(ContactInfo info) {
+		String phone = phoneKey(info.getPhoneNumber());
+		String email = emailKey(info.getEmailAddress());
+		return (!phone.isEmpty() && byPhone.containsKey(phone)) || (!email.isEmpty() && byEmail.containsKey(email));
+	}
+
+	/**
+	 * @param phoneNumber in any format
+	 * @return the most recent record with that phone number, or null
+	 * @throws IOException
+	 */
+	public ContactRecord findByPhone(String phoneNumber) throws IOException {
+		return find(byPhone, phoneKey(phoneNumber));
+	}
+
+	/**
+	 * @param emailAddress in any case
+	 * @return the most recent record with that email address, or null
+	 * @throws IOException
+	 */
+	public ContactRecord findByEmail(String emailAddress) throws IOException {
+		return find(byEmail, emailKey(emailAddress));
+	}
+
+	/**
+	 * @param name in any case
+	 * @return the most recent record with that name, or null
+	 * @throws IOException
+	 */
+	public ContactRecord findByName(String name) throws IOException {
+		return find(byName, nameKey(name));
+	}
+
+	private ContactRecord find(Map<String, Long> index, String key) throws IOException {
+		if (key.isEmpty()) {
+			return null;
+		}
+		swapLock.readLock().lock();
+		try {
+			Long location = index.get(key);
+			if (location == null) {
+				return null;
+			}
+			return segments.get(segmentId(location)).read(offset(location));
+		} finally {
+			swapLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Points the indexes at a record.
+	 * @return true if the record's phone number or email address was already indexed
+	 */
+	private boolean index(int segmentId, Segment.Hint hint) {
+		long location = location(segmentId, hint.offset);
+		boolean seen = false;
+		if (!hint.phoneKey.isEmpty()) {
+			seen |= byPhone.put(hint.phoneKey, location) != null;
+		}
+		if (!hint.emailKey.isEmpty()) {
+			seen |= byEmail.put(hint.emailKey, location) != null;
+		}
+		if (!hint.nameKey.isEmpty()) {
+			byName.put(hint.nameKey, location);
+		}
+		return seen;
+	}
+
+	/**
+	 * Compacts sealed segments every so often, on a daemon thread.
+	 * @param periodSeconds
+	 * @param garbagePercent see {@link #compact(int)}
+	 */
+	public synchronized void startCompacting(long periodSeconds, final int garbagePercent) {
+		if (compactor != null || readOnly) {
+			return;
+		}
+		compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "bcp-store-compactor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		compactor.scheduleWithFixedDelay(() -> {
+			try {
+				compact(garbagePercent);
+			} catch (IOException e) {
+				System.err.println("unable to compact contacts store, due to error: '" + e.getMessage() + "'");
+				e.printStackTrace();
+			}
+		}, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Rewrites each sealed segment in which at least the given percentage of records are
+	 * no longer the most recent for any of their keys, keeping only the ones that are.
+	 * @param garbagePercent
+	 * @throws IOException
+	 */
+	public void compact(int garbagePercent) throws IOException {
+		synchronized (compactLock) {
+			int activeId;
+			synchronized (appendLock) {
+				if (closed || readOnly) {
+					return;
+				}
+				activeId = active.id;
+			}
+			for (Integer id : new TreeMap<Integer, Segment>(segments).headMap(activeId).keySet()) {
+				Segment segment = segments.get(id);
+				List<Segment.Hint> hints = segment.readHints();
+				if (hints == null) {
+					hints = recover(segment);
+					segment.writeHints(hints);
+				}
+				List<Segment.Hint> live = new ArrayList<Segment.Hint>();
+				for (Segment.Hint hint : hints) {
+					if (isLive(id, hint)) {
+						live.add(hint);
+					}
+				}
+				int garbage = hints.size() - live.size();
+				if (live.isEmpty() && !hints.isEmpty()) {
+					drop(segment);
+					System.out.println("compacted '" + segment.file + "': nothing left, removed it");
+				} else if (garbage > 0 && 100L * garbage >= (long) garbagePercent * hints.size()) {
+					rewrite(segment, live);
+					System.out.println("compacted '" + segment.file + "': kept " + live.size() + " of " + hints.size() + " record(s)");
+				}
+			}
+		}
+	}
+
+	private boolean isLive(int segmentId, Segment.Hint hint) {
+		Long location = location(segmentId, hint.offset);
+		return location.equals(byPhone.get(hint.phoneKey))
+			|| location.equals(byEmail.get(hint.emailKey))
+			|| location.equals(byName.get(hint.nameKey));
+	}
+
+	/**
+	 * Replaces a segment with one holding just the given records, in the same order.
+	 */
+	private void rewrite(Segment segment, List<Segment.Hint> live) throws IOException {
+		Path tmp = segment.file.resolveSibling(segment.file.getFileName() + ".tmp");
+		Segment out = Segment.createAt(tmp, segment.id);
+		List<Segment.Hint> moved = new ArrayList<Segment.Hint>(live.size());
+		try {
+			for (Segment.Hint hint : live) {
+				long offset = out.append(segment.readRaw(hint));
+				moved.add(new Segment.Hint(offset, hint.length, hint.phoneKey, hint.emailKey, hint.nameKey));
+			}
+			out.force();
+		} finally {
+			out.close();
+		}
+
+		Segment compacted;
+		swapLock.writeLock().lock();
+		try {
+			Files.move(tmp, segment.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			compacted = Segment.open(segment.file, segment.id);
+			segments.put(segment.id, compacted);
+			for (int i=0; i<live.size(); i++) {
+				Long from = location(segment.id, live.get(i).offset);
+				Long to = location(segment.id, moved.get(i).offset);
+				// only where the record is still the most recent; an append may have
+				// superseded it since it was checked
+				relocate(byPhone, live.get(i).phoneKey, from, to);
+				relocate(byEmail, live.get(i).emailKey, from, to);
+				relocate(byName, live.get(i).nameKey, from, to);
+			}
+			segment.close();
+		} finally {
+			swapLock.writeLock().unlock();
+		}
+		// if this doesn't happen, the old hint file won't match and the segment gets scanned
+		compacted.writeHints(moved);
+	}
+
+	/**
+	 * Removes a segment that holds nothing but garbage.
+	 */
+	private void drop(Segment segment) throws IOException {
+		swapLock.writeLock().lock();
+		try {
+			segments.remove(segment.id);
+			segment.close();
+			Files.delete(segment.file);
+		} finally {
+			swapLock.writeLock().unlock();
+		}
+		Files.deleteIfExists(Segment.hintFileFor(segment.file));
+	}
+
+	private static void relocate(ConcurrentMap<String, Long> index, String key, Long from, Long to) {
+		if (!key.isEmpty()) {
+			index.replace(key, from, to);
+		}
+	}
+
+	/**
+	 * Stops compaction and closes the segment files.
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (compactor != null) {
+				compactor.shutdownNow();
+				compactor = null;
+			}
+		}
+		synchronized (compactLock) {
+			synchronized (appendLock) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				if (!readOnly) {
+					active.force();
+				}
+			}
+			swapLock.writeLock().lock();
+			try {
+				for (Segment segment : segments.values()) {
+					segment.close();
+				}
+			} finally {
+				swapLock.writeLock().unlock();
+			}
+			if (!readOnly) {
+				lock.release();
+				lockFile.close();
+			}
+		}
+	}
+
+	private static long location(int segmentId, long offset) {
+		return ((long) segmentId << 40) | offset;
+	}
+
+	private static int segmentId(long location) {
+		return (int) (location >>> 40);
+	}
+
+	private static long offset(long location) {
+		return location & ((1L << 40) - 1);
+	}
+
+	/**
+	 * @return just the digits of a phone number
+	 */
+	static String phoneKey(String phoneNumber) {
+		if (phoneNumber == null) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder(phoneNumber.length());
+		for (int i=0; i<phoneNumber.length(); i++) {
+			char c = phoneNumber.charAt(i);
+			if (c >= '0' && c <= '9') {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	static String emailKey(String emailAddress) {
+		return emailAddress == null ? "" : emailAddress.trim().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * @return the name, upper-cased, with runs of white-space made into single spaces
+	 */
+	static String nameKey(String name) {
+		return name == null ? "" : name.trim().replaceAll("\\s+", " ").toUpperCase(Locale.ROOT);
+	}
+
+	/**
+	 * Looks a contact up from the command line. The store is opened read-only, so this can
+	 * be done while bcp is running.
+	 * @param args store directory, 'phone', 'email' or 'name', and the value to look up
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.err.println("Usage: ContactStore <store directory> phone|email|name <value>");
+			return;
+		}
+		ContactStore opened;
+		try {
+			opened = openReadOnly(Paths.get(args[0]));
+		} catch (IOException e) {
+			System.err.println("unable to open contacts store, due to error: '" + e.getMessage() + "'");
+			return;
+		}
+		try (ContactStore store = opened) {
+			ContactRecord record;
+			if ("phone".equals(args[1])) {
+				record = store.findByPhone(args[2]);
+			} else if ("email".equals(args[1])) {
+				record = store.findByEmail(args[2]);
+			} else if ("name".equals(args[1])) {
+				record = store.findByName(args[2]);
+			} else {
+				System.err.println("Usage: ContactStore <store directory> phone|email|name <value>");
+				return;
+			}
+			if (record == null) {
+				System.out.println("not found");
+			} else {
+				System.out.println(record.getInfo().prettyPrint() + "\n\nStored: " + new Date(record.getTimestamp()));
+			}
+		}
+	}
+}
@@ -0,0 +1,413 @@
+package org.example.bcp.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.example.bcp.ContactInfo;
+
+/**
+ * One file of the contacts store's log. Records are only ever appended to a segment;
+ * once it's full it's sealed and never changes again, other than being compacted.
+ *
+ * A segment is:
+ * <pre>
+ * long   magic ("BCPSEG01")
+ * record...
+ * </pre>
+ * and each record is:
+ * <pre>
+ * int    payload length
+ * int    CRC-32 of the payload
+ * long   timestamp (payload starts here)
+ * string name, phone number, email address, raw data
+ * </pre>
+ * where a string is a varint holding the UTF-8 length + 1 (0 for null) followed by the
+ * UTF-8 bytes. A record that's cut short or fails its CRC marks the end of the segment,
+ * which is how a write torn by a crash is recognised and dropped.
+ *
+ * A sealed segment has a hint file alongside it, listing each record's offset, length and
+ * index keys, so that the indexes can be rebuilt at startup without decoding the
+ * segment itself:
+ * <pre>
+ * long   magic ("BCPHINT1")
+ * long   length of the segment the hints describe
+ * int    number of entries
+ * entry... (long offset, int length, UTF phone key, UTF email key, UTF name key)
+ * long   CRC-32 of everything before it
+ * </pre>
+ * @author astein
+ *
+ */
+final class Segment {
+
+	static final long MAGIC = 0x4243505345473031L; // "BCPSEG01"
+	static final long HINT_MAGIC = 0x42435048494E5431L; // "BCPHINT1"
+	static final int HEADER_BYTES = 8;
+	static final int RECORD_HEADER_BYTES = 8;
+
+	static final String SEGMENT_SUFFIX = ".seg";
+	static final String HINT_SUFFIX = ".hint";
+
+	/**
+	 * Where a record is in a segment, and the keys it's indexed under.
+	 */
+	static final class Hint {
+		final long offset;
+		final int length;
+		final String phoneKey;
+		final String emailKey;
+		final String nameKey;
+
+		Hint(long offset, int length, String phoneKey, String emailKey, String nameKey) {
+			this.offset = offset;
+			this.length = length;
+			this.phoneKey = phoneKey;
+			this.emailKey = emailKey;
+			this.nameKey = nameKey;
+		}
+	}
+
+	final int id;
+	final Path file;
+	private final FileChannel channel;
+	private volatile long size;
+
+	private Segment(int id, Path file, FileChannel channel, long size) {
+		this.id = id;
+		this.file = file;
+		this.channel = channel;
+		this.size = size;
+	}
+
+	static Path fileFor(Path dir, int id) {
+		return dir.resolve(String.format("contacts-%08d%s", id, SEGMENT_SUFFIX));
+	}
+
+	static Path hintFileFor(Path segmentFile) {
+		String name = segmentFile.getFileName().toString();
+		return segmentFile.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + HINT_SUFFIX);
+	}
+
+	/**
+	 * Starts a new, empty segment.
+	 */
+	static Segment create(Path dir, int id) throws IOException {
+		return createAt(fileFor(dir, id), id);
+	}
+
+	/**
+	 * Starts a new, empty segment in a particular file (e.g. a temporary one).
+	 */
+	static Segment createAt(Path file, int id) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putLong(0, MAGIC);
+		writeFully(channel, header, 0);
+		return new Segment(id, file, channel, HEADER_BYTES);
+	}
+
+	/**
+	 * Opens an existing segment. Its size is taken to be the size of the file until
+	 * {@link #truncate(long)} says otherwise.
+	 */
+	static Segment open(Path file, int id) throws IOException {
+		return open(file, id, false);
+	}
+
+	/**
+	 * @param readOnly if true, the segment can only be read, and scanned
+	 */
+	static Segment open(Path file, int id, boolean readOnly) throws IOException {
+		FileChannel channel = readOnly
+			? FileChannel.open(file, StandardOpenOption.READ)
+			: FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			if (channel.read(header, 0) != HEADER_BYTES || header.getLong(0) != MAGIC) {
+				throw new IOException("'" + file + "' is not a contacts store segment");
+			}
+			return new Segment(id, file, channel, channel.size());
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	long size() {
+		return size;
+	}
+
+	/**
+	 * Appends an encoded record. Only one thread may append at a time.
+	 * @return the offset of the record
+	 */
+	long append(ByteBuffer record) throws IOException {
+		long offset = size;
+		writeFully(channel, record, offset);
+		size = offset + record.limit();
+		return offset;
+	}
+
+	/**
+	 * @param offset
+	 * @return the record at that offset
+	 * @throws IOException if it can't be read, or is damaged
+	 */
+	ContactRecord read(long offset) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+		readFully(channel, header, offset);
+		int length = header.getInt(0);
+		if (length < 0 || offset + RECORD_HEADER_BYTES + length > size) {
+			throw new IOException("damaged record at offset " + offset + " of '" + file + "'");
+		}
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		readFully(channel, payload, offset + RECORD_HEADER_BYTES);
+		payload.flip();
+		if (crc(payload, 0, length) != header.getInt(4)) {
+			throw new IOException("damaged record at offset " + offset + " of '" + file + "'");
+		}
+		return decode(payload);
+	}
+
+	/**
+	 * @return the raw bytes of a record (header included), as found by a scan
+	 */
+	ByteBuffer readRaw(Hint hint) throws IOException {
+		ByteBuffer raw = ByteBuffer.allocate(hint.length);
+		readFully(channel, raw, hint.offset);
+		raw.flip();
+		return raw;
+	}
+
+	/**
+	 * Reads every record from the start, stopping at the first one that's incomplete or
+	 * damaged. Afterwards, the segment's size is the end of the last good record.
+	 * @return hints for the records read
+	 */
+	List<Hint> scan() throws IOException {
+		List<Hint> hints = new ArrayList<Hint>();
+		long length = channel.size();
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("segment '" + file + "' is larger than 2GB");
+		}
+		MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+		int pos = HEADER_BYTES;
+		while (pos + RECORD_HEADER_BYTES <= length) {
+			int payloadLength = data.getInt(pos);
+			int crc = data.getInt(pos + 4);
+			int payloadStart = pos + RECORD_HEADER_BYTES;
+			if (payloadLength < 0 || payloadStart + (long) payloadLength > length || crc(data, payloadStart, payloadLength) != crc) {
+				break;
+			}
+			ByteBuffer payload = data.duplicate();
+			payload.limit(payloadStart + payloadLength);
+			payload.position(payloadStart);
+			ContactRecord record = decode(payload.slice());
+			hints.add(hintFor(pos, RECORD_HEADER_BYTES + payloadLength, record.getInfo()));
+			pos = payloadStart + payloadLength;
+		}
+		size = pos;
+		return hints;
+	}
+
+	/**
+	 * Cuts the file back to the given size, e.g. to drop a torn record at the end.
+	 */
+	void truncate(long newSize) throws IOException {
+		channel.truncate(newSize);
+		size = newSize;
+	}
+
+	void force() throws IOException {
+		channel.force(false);
+	}
+
+	void close() throws IOException {
+		channel.close();
+	}
+
+	static Hint hintFor(long offset, int length, ContactInfo info) {
+		return new Hint(offset, length,
+			ContactStore.phoneKey(info.getPhoneNumber()),
+			ContactStore.emailKey(info.getEmailAddress()),
+			ContactStore.nameKey(info.getName()));
+	}
+
+	/**
+	 * Writes the hint file for this segment, atomically.
+	 */
+	void writeHints(List<Hint> hints) throws IOException {
+		Path hintFile = hintFileFor(file);
+		Path tmp = hintFile.resolveSibling(hintFile.getFileName() + ".tmp");
+		CRC32 crc = new CRC32();
+		try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(tmp)), crc))) {
+			out.writeLong(HINT_MAGIC);
+			out.writeLong(size);
+			out.writeInt(hints.size());
+			for (Hint hint : hints) {
+				out.writeLong(hint.offset);
+				out.writeInt(hint.length);
+				out.writeUTF(hint.phoneKey);
+				out.writeUTF(hint.emailKey);
+				out.writeUTF(hint.nameKey);
+			}
+			out.flush();
+			out.writeLong(crc.getValue());
+		}
+		Files.move(tmp, hintFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return the hints from this segment's hint file, or null if there isn't one or it
+	 * doesn't match the segment
+	 */
+	List<Hint> readHints() {
+		Path hintFile = hintFileFor(file);
+		CRC32 crc = new CRC32();
+		try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+				new BufferedInputStream(Files.newInputStream(hintFile)), crc))) {
+			if (in.readLong() != HINT_MAGIC || in.readLong() != size) {
+				return null;
+			}
+			int count = in.readInt();
+			if (count < 0) {
+				return null;
+			}
+			List<Hint> hints = new ArrayList<Hint>(count);
+			for (int i=0; i<count; i++) {
+				hints.add(new Hint(in.readLong(), in.readInt(), in.readUTF(), in.readUTF(), in.readUTF()));
+			}
+			long expected = crc.getValue();
+			if (in.readLong() != expected) {
+				return null;
+			}
+			return hints;
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (EOFException e) {
+			return null;
+		} catch (IOException e) {
+			System.err.println("unable to read hint file '" + hintFile + "', due to error: '" + e.getMessage() + "'");
+			return null;
+		}
+	}
+
+	static ByteBuffer encode(ContactRecord record) {
+		ContactInfo info = record.getInfo();
+		byte[][] strings = {
+			utf8(info.getName()), utf8(info.getPhoneNumber()), utf8(info.getEmailAddress()), utf8(record.getRawData())
+		};
+		int payloadLength = 8;
+		for (byte[] s : strings) {
+			payloadLength += varintSize(s == null ? 0 : s.length + 1) + (s == null ? 0 : s.length);
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_BYTES + payloadLength);
+		buf.putInt(payloadLength);
+		buf.putInt(0); // CRC, filled in below
+		buf.putLong(record.getTimestamp());
+		for (byte[] s : strings) {
+			putVarint(buf, s == null ? 0 : s.length + 1);
+			if (s != null) {
+				buf.put(s);
+			}
+		}
+		buf.putInt(4, crc(buf, RECORD_HEADER_BYTES, payloadLength));
+		buf.flip();
+		return buf;
+	}
+
+	static ContactRecord decode(ByteBuffer payload) {
+		long timestamp = payload.getLong();
+		String name = getString(payload);
+		String phone = getString(payload);
+		String email = getString(payload);
+		String rawData = getString(payload);
+		return new ContactRecord(new ContactInfo(name, phone, email), rawData, timestamp);
+	}
+
+	private static byte[] utf8(String s) {
+		return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String getString(ByteBuffer buf) {
+		int n = getVarint(buf);
+		if (n == 0) {
+			return null;
+		}
+		byte[] bytes = new byte[n - 1];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static int varintSize(int value) {
+		int n = 1;
+		while ((value >>>= 7) != 0) {
+			n++;
+		}
+		return n;
+	}
+
+	private static void putVarint(ByteBuffer buf, int value) {
+		while ((value & ~0x7F) != 0) {
+			buf.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte) value);
+	}
+
+	private static int getVarint(ByteBuffer buf) {
+		int value = 0;
+		for (int shift=0; shift<32; shift+=7) {
+			byte b = buf.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("bad varint");
+	}
+
+	private static int crc(ByteBuffer buf, int start, int length) {
+		ByteBuffer dup = buf.duplicate();
+		dup.limit(start + length);
+		dup.position(start);
+		CRC32 crc = new CRC32();
+		crc.update(dup);
+		return (int) crc.getValue();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			position += channel.write(buf, position);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, position);
+			if (n < 0) {
+				throw new EOFException("record runs past the end of the segment");
+			}
+			position += n;
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package org.example.bcp.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Walks the regular files in a directory tree, or the entries of a zip or tar archive
+ * (optionally gzipped), handing each one to a handler. Archives are streamed, so they
+ * are read front to back exactly once no matter how big they are. Archive entries are
+ * read into memory, so any bigger than a limit are skipped, unread, and reported as such.
+ * @author astein
+ *
+ */
+public class ArchiveReader {
+
+	private static final int TAR_BLOCK = 512;
+	// longest GNU long name that's believed
+	private static final int MAX_LONG_NAME = 64 * 1024;
+
+	/**
+	 * Receives the files found by an ArchiveReader, one at a time, in the order they
+	 * appear.
+	 */
+	public interface EntryHandler {
+		/**
+		 * A file in a directory tree. The handler is free to read it whenever it likes.
+		 * @param name path of the file relative to the directory
+		 * @param file
+		 * @throws IOException
+		 * @throws InterruptedException
+		 */
+		public void file(String name, Path file) throws IOException, InterruptedException;
+
+		/**
+		 * An entry in an archive, already read into memory.
+		 * @param name
+		 * @param data
+		 * @throws IOException
+		 * @throws InterruptedException
+		 */
+		public void entry(String name, byte[] data) throws IOException, InterruptedException;
+
+		/**
+		 * An entry in an archive that's bigger than the limit, and so hasn't been read.
+		 * @param name
+		 * @param size how big it is, or -1 if all that's known is that it's over the limit
+		 * @throws IOException
+		 * @throws InterruptedException
+		 */
+		public void tooLarge(String name, long size) throws IOException, InterruptedException;
+	}
+
+	private ArchiveReader() {
+	}
+
+	/**
+	 * @param input a directory, or a .zip, .tar, .tar.gz or .tgz file
+	 * @param maxEntryBytes archive entries bigger than this aren't read
+	 * @param handler
+	 * @throws IOException if the input can't be read, or isn't a type we know
+	 * @throws InterruptedException
+	 */
+	public static void read(Path input, int maxEntryBytes, EntryHandler handler) throws IOException, InterruptedException {
+		if (Files.isDirectory(input)) {
+			readDirectory(input, handler);
+			return;
+		}
+
+		String name = input.getFileName().toString().toLowerCase(Locale.ROOT);
+		if (name.endsWith(".zip") || name.endsWith(".jar")) {
+			try (InputStream in = new BufferedInputStream(Files.newInputStream(input))) {
+				readZip(in, maxEntryBytes, handler);
+			}
+		} else if (name.endsWith(".tar")) {
+			try (InputStream in = new BufferedInputStream(Files.newInputStream(input))) {
+				readTar(in, maxEntryBytes, handler);
+			}
+		} else if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+			try (InputStream in = new GZIPInputStream(new BufferedInputStream(Files.newInputStream(input)), 64 * 1024)) {
+				readTar(in, maxEntryBytes, handler);
+			}
+		} else {
+			throw new IOException("'" + input + "' is not a directory, zip or tar file");
+		}
+	}
+
+	private static void readDirectory(Path dir, EntryHandler handler) throws IOException, InterruptedException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				if (Files.isRegularFile(file)) {
+					handler.file(dir.relativize(file).toString(), file);
+				}
+			}
+		}
+	}
+
+	private static void readZip(InputStream in, int maxEntryBytes, EntryHandler handler) throws IOException, InterruptedException {
+		ZipInputStream zip = new ZipInputStream(in);
+		ZipEntry entry;
+		while ((entry = zip.getNextEntry()) != null) {
+			if (entry.isDirectory()) {
+				continue;
+			}
+			// the size isn't always known up front; the rest of an entry that's too big
+			// is skipped by the next getNextEntry
+			if (entry.getSize() > maxEntryBytes) {
+				handler.tooLarge(entry.getName(), entry.getSize());
+				continue;
+			}
+			byte[] data = readAll(zip, maxEntryBytes);
+			if (data == null) {
+				handler.tooLarge(entry.getName(), -1);
+			} else {
+				handler.entry(entry.getName(), data);
+			}
+		}
+	}
+
+	/**
+	 * Reads a POSIX (ustar) or GNU tar stream. Only regular files are handed on; GNU long
+	 * names are honoured, everything else (links, directories, pax headers...) is skipped.
+	 */
+	private static void readTar(InputStream in, int maxEntryBytes, EntryHandler handler) throws IOException, InterruptedException {
+		byte[] header = new byte[TAR_BLOCK];
+		String longName = null;
+		while (true) {
+			if (!readBlock(in, header)) {
+				return;
+			}
+			if (isZeroBlock(header)) {
+				// end of archive
+				return;
+			}
+
+			long size = parseOctal(header, 124, 12);
+			if (size < 0) {
+				throw new IOException("tar entry damaged");
+			}
+			long padding = (TAR_BLOCK - (size % TAR_BLOCK)) % TAR_BLOCK;
+			byte type = header[156];
+
+			if (type == 'L') {
+				// GNU long name for the next entry
+				if (size > MAX_LONG_NAME) {
+					throw new IOException("tar long name too long or damaged");
+				}
+				byte[] data = new byte[(int) size];
+				readFully(in, data);
+				skipFully(in, padding);
+				longName = cString(data, 0, data.length);
+				continue;
+			}
+
+			String name = longName;
+			longName = null;
+			if (name == null) {
+				name = cString(header, 0, 100);
+				String prefix = cString(header, 345, 155);
+				if (isUstar(header) && !prefix.isEmpty()) {
+					name = prefix + "/" + name;
+				}
+			}
+			if ((type != '0' && type != 0) || size > maxEntryBytes) {
+				skipFully(in, size + padding);
+				if (type == '0' || type == 0) {
+					handler.tooLarge(name, size);
+				}
+				continue;
+			}
+			byte[] data = new byte[(int) size];
+			readFully(in, data);
+			skipFully(in, padding);
+			handler.entry(name, data);
+		}
+	}
+
+	private static boolean isUstar(byte[] header) {
+		return header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a' && header[261] == 'r';
+	}
+
+	private static boolean isZeroBlock(byte[] block) {
+		for (byte b : block) {
+			if (b != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long parseOctal(byte[] buf, int offset, int length) {
+		long value = 0;
+		int end = offset + length;
+		int i = offset;
+		while (i < end && (buf[i] == ' ' || buf[i] == 0)) {
+			i++;
+		}
+		for (; i < end; i++) {
+			byte b = buf[i];
+			if (b == ' ' || b == 0) {
+				break;
+			}
+			if (b < '0' || b > '7') {
+				return -1;
+			}
+			value = (value << 3) + (b - '0');
+		}
+		return value;
+	}
+
+	private static String cString(byte[] buf, int offset, int length) {
+		int end = offset;
+		while (end < offset + length && buf[end] != 0) {
+			end++;
+		}
+		return new String(buf, offset, end - offset, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return false if the stream ended cleanly before the block
+	 */
+	private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+		int n = 0;
+		while (n < block.length) {
+			int r = in.read(block, n, block.length - n);
+			if (r < 0) {
+				if (n == 0) {
+					return false;
+				}
+				throw new EOFException("truncated tar header");
+			}
+			n += r;
+		}
+		return true;
+	}
+
+	private static void readFully(InputStream in, byte[] buf) throws IOException {
+		int n = 0;
+		while (n < buf.length) {
+			int r = in.read(buf, n, buf.length - n);
+			if (r < 0) {
+				throw new EOFException("truncated tar entry");
+			}
+			n += r;
+		}
+	}
+
+	private static void skipFully(InputStream in, long count) throws IOException {
+		while (count > 0) {
+			long skipped = in.skip(count);
+			if (skipped <= 0) {
+				if (in.read() < 0) {
+					throw new EOFException("truncated tar entry");
+				}
+				skipped = 1;
+			}
+			count -= skipped;
+		}
+	}
+
+	/**
+	 * @return everything left in the stream, or null if that's more than maxBytes (in
+	 * which case it's only been read as far as the limit)
+	 */
+	private static byte[] readAll(InputStream in, int maxBytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) != -1) {
+			if (n > maxBytes - out.size()) {
+				return null;
+			}
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,260 @@
+package org.example.bcp.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.example.bcp.metrics.Metrics;
+
+/**
+ * Reads card files into pooled buffers, so that reading a card doesn't allocate a byte
+ * array and a string the size of the card every time.
+ *
+ * A file is read straight into a direct byte buffer, then decoded into a char buffer; the
+ * {@link Card} handed back is a view of that char buffer, and the buffers go back to the
+ * pool when it's closed. Buffers grow as needed and stay grown, but files bigger than the
+ * limit are refused rather than read.
+ *
+ * Cards are decoded with the configured charset, unless they start with a UTF-8 or UTF-16
+ * byte order mark, which wins (and isn't part of the text). Bytes that aren't valid in the
+ * charset are replaced, as new String(bytes) would.
+ * @author astein
+ *
+ */
+public final class CardReader {
+
+	// buffers start out this big, and double from there
+	private static final int MIN_BUFFER_BYTES = 8 * 1024;
+
+	/**
+	 * The text of a card, good until it's closed. Anything kept beyond that (e.g. a field
+	 * that was found in it) must be copied out with toString() first.
+	 */
+	public final class Card implements CharSequence, Closeable {
+		private final Buffers buffers;
+		private final CharBuffer text;
+
+		Card(Buffers buffers) {
+			this.buffers = buffers;
+			this.text = buffers.chars;
+		}
+
+		@Override
+		public int length() {
+			return text.limit();
+		}
+
+		@Override
+		public char charAt(int index) {
+			return text.get(index);
+		}
+
+		/**
+		 * @return a view of part of the card, good until the card is closed
+		 */
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return text.subSequence(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return text.toString();
+		}
+
+		/**
+		 * Hands the card's buffers back for the next card.
+		 */
+		@Override
+		public void close() {
+			pool.offer(buffers);
+		}
+	}
+
+	/**
+	 * A byte buffer and a char buffer, with decoders to go between them; one card's worth.
+	 */
+	private final class Buffers {
+		ByteBuffer bytes = ByteBuffer.allocateDirect(MIN_BUFFER_BYTES);
+		CharBuffer chars = CharBuffer.allocate(MIN_BUFFER_BYTES);
+		final Map<Charset, CharsetDecoder> decoders = new HashMap<Charset, CharsetDecoder>();
+
+		CharsetDecoder decoder(Charset cs) {
+			CharsetDecoder decoder = decoders.get(cs);
+			if (decoder == null) {
+				decoder = cs.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+				decoders.put(cs, decoder);
+			}
+			return decoder.reset();
+		}
+
+		ByteBuffer bytes(int size) {
+			if (bytes.capacity() < size) {
+				bytes = ByteBuffer.allocateDirect(grow(bytes.capacity(), size));
+			}
+			bytes.clear();
+			return bytes;
+		}
+
+		CharBuffer chars(int size) {
+			if (chars.capacity() < size) {
+				chars = CharBuffer.allocate(grow(chars.capacity(), size));
+			}
+			chars.clear();
+			return chars;
+		}
+	}
+
+	private final Charset charset;
+	private final int maxBytes;
+	private final ConcurrentLinkedQueue<Buffers> pool = new ConcurrentLinkedQueue<Buffers>();
+
+	private final LongAdder tooLarge = Metrics.get().counter("input.tooLarge");
+
+	/**
+	 * @param charset what cards are written in, unless they say otherwise with a byte order mark
+	 * @param maxBytes files bigger than this are refused
+	 */
+	public CardReader(Charset charset, int maxBytes) {
+		this.charset = charset;
+		this.maxBytes = maxBytes;
+	}
+
+	public Charset getCharset() {
+		return charset;
+	}
+
+	/**
+	 * @return how big a file can be before it's refused
+	 */
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Refuses a card that's bigger than the limit without reading it, the way
+	 * {@link #read(Path)} and {@link #decode(byte[], String)} would.
+	 * @param name where the card is, for the error message
+	 * @param size how big it is, or -1 if all that's known is that it's over the limit
+	 * @return the error to report
+	 */
+	public IOException tooLarge(String name, long size) {
+		tooLarge.increment();
+		if (size < 0) {
+			return new IOException("'" + name + "' is more than the limit of " + maxBytes + " bytes");
+		}
+		return new IOException("'" + name + "' is " + size + " bytes, more than the limit of " + maxBytes);
+	}
+
+	/**
+	 * Reads a card file. The card must be closed once it's been dealt with.
+	 * @param file
+	 * @return
+	 * @throws IOException if the file can't be read, or is bigger than the limit
+	 */
+	public Card read(Path file) throws IOException {
+		Buffers buffers = acquire();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			checkSize(size, file);
+			ByteBuffer bytes = buffers.bytes((int) size);
+			bytes.limit((int) size);
+			while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+				// keep reading
+			}
+			bytes.flip();
+			return decode(buffers, bytes);
+		} catch (IOException | RuntimeException e) {
+			pool.offer(buffers);
+			throw e;
+		}
+	}
+
+	/**
+	 * Decodes a card that's already been read. The card must be closed once it's been dealt with.
+	 * @param data
+	 * @param name where the data came from, for the error message
+	 * @return
+	 * @throws IOException if it's bigger than the limit
+	 */
+	public Card decode(byte[] data, String name) throws IOException {
+		checkSize(data.length, name);
+		Buffers buffers = acquire();
+		try {
+			return decode(buffers, ByteBuffer.wrap(data));
+		} catch (RuntimeException e) {
+			pool.offer(buffers);
+			throw e;
+		}
+	}
+
+	private void checkSize(long size, Object name) throws IOException {
+		if (size > maxBytes) {
+			throw tooLarge(name.toString(), size);
+		}
+	}
+
+	private Card decode(Buffers buffers, ByteBuffer bytes) {
+		Charset cs = charset;
+		int bomLength = 0;
+		int b0 = bytes.remaining() > 0 ? bytes.get(bytes.position()) & 0xFF : -1;
+		int b1 = bytes.remaining() > 1 ? bytes.get(bytes.position() + 1) & 0xFF : -1;
+		if (b0 == 0xEF && b1 == 0xBB && bytes.remaining() > 2 && (bytes.get(bytes.position() + 2) & 0xFF) == 0xBF) {
+			cs = StandardCharsets.UTF_8;
+			bomLength = 3;
+		} else if (b0 == 0xFE && b1 == 0xFF) {
+			cs = StandardCharsets.UTF_16BE;
+			bomLength = 2;
+		} else if (b0 == 0xFF && b1 == 0xFE) {
+			cs = StandardCharsets.UTF_16LE;
+			bomLength = 2;
+		}
+		bytes.position(bytes.position() + bomLength);
+
+		CharsetDecoder decoder = buffers.decoder(cs);
+		CharBuffer chars = buffers.chars((int) (bytes.remaining() * (double) decoder.maxCharsPerByte()) + 1);
+		int start = bytes.position();
+		while (true) {
+			CoderResult result = decoder.decode(bytes, chars, true);
+			if (!result.isOverflow()) {
+				result = decoder.flush(chars);
+			}
+			if (!result.isOverflow()) {
+				break;
+			}
+			// only if the charset's maxCharsPerByte was wrong; start again with more room
+			bytes.position(start);
+			decoder.reset();
+			chars = buffers.chars(chars.capacity() * 2);
+		}
+		chars.flip();
+		return new Card(buffers);
+	}
+
+	private Buffers acquire() {
+		Buffers buffers = pool.poll();
+		return buffers == null ? new Buffers() : buffers;
+	}
+
+	private static int grow(int capacity, int size) {
+		while (capacity < size && capacity > 0) {
+			capacity <<= 1;
+		}
+		return capacity < size ? size : capacity;
+	}
+}
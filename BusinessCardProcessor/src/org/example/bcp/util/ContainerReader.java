@@ -0,0 +1,361 @@
+package org.example.bcp.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Splits a container file holding many cards into the individual cards. The file is
+ * memory-mapped and cards are located by scanning the mapped bytes, so the container is
+ * never copied as a whole; each card's bytes are decoded on their own when it's handed on.
+ *
+ * Two formats are understood:
+ * <ul>
+ * <li>delimited: plain text cards, separated by lines consisting of just a delimiter string</li>
+ * <li>JSON Lines: one JSON object per line, with the card text in a string field</li>
+ * </ul>
+ * Containers are limited to 2GB, the most that can be mapped in one go. Lines are found
+ * by looking for '\n' bytes, so delimited containers must be in a charset that encodes
+ * ASCII as ASCII (UTF-8, ISO-8859-1, windows-1252...); one in UTF-16, say, is refused.
+ * @author astein
+ *
+ */
+public class ContainerReader {
+
+	/**
+	 * Receives the cards found in a container, in order.
+	 */
+	public interface CardHandler {
+		/**
+		 * @param offset byte offset of the card within the container
+		 * @param length length of the card in bytes
+		 * @param text the card's text
+		 */
+		public void card(long offset, int length, String text);
+
+		/**
+		 * A card that couldn't be extracted from the container (e.g. malformed JSON).
+		 * @param offset byte offset of the card within the container
+		 * @param length length of the card in bytes
+		 * @param reason
+		 */
+		public void badCard(long offset, int length, String reason);
+	}
+
+	private ContainerReader() {
+	}
+
+	/**
+	 * Maps a container file.
+	 * @param file
+	 * @return
+	 * @throws IOException if the file can't be read or is too big to map
+	 */
+	public static MappedByteBuffer map(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("container is larger than 2GB");
+			}
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	/**
+	 * @param charset
+	 * @return whether line breaks, white-space and ASCII delimiters are encoded in it as
+	 * single ASCII bytes, as {@link #readDelimited} needs
+	 */
+	public static boolean isAsciiCompatible(Charset charset) {
+		String probe = " \t\r\n%=#*-~";
+		return charset.canEncode() && Arrays.equals(probe.getBytes(charset), probe.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Splits up a container of delimited cards. Blank cards are skipped. If the charset
+	 * (or the container's byte order mark) isn't {@link #isAsciiCompatible(Charset) ASCII
+	 * compatible}, the whole container is handed back as one bad card.
+	 * @param data the container's bytes
+	 * @param delimiter the text of a delimiter line; surrounding white-space on the line is ignored
+	 * @param charset the cards' charset
+	 * @param handler
+	 */
+	public static void readDelimited(ByteBuffer data, String delimiter, Charset charset, CardHandler handler) {
+		int limit = data.limit();
+		int cardStart = 0;
+		if (limit >= 2 && ((data.get(0) == (byte) 0xFE && data.get(1) == (byte) 0xFF)
+				|| (data.get(0) == (byte) 0xFF && data.get(1) == (byte) 0xFE))) {
+			handler.badCard(0, limit, "container is in UTF-16; containers must be in an ASCII-compatible charset");
+			return;
+		}
+		if (limit >= 3 && data.get(0) == (byte) 0xEF && data.get(1) == (byte) 0xBB && data.get(2) == (byte) 0xBF) {
+			// a UTF-8 byte order mark wins, as for single-card files
+			charset = StandardCharsets.UTF_8;
+			cardStart = 3;
+		} else if (!isAsciiCompatible(charset)) {
+			handler.badCard(0, limit, "containers can't be read in " + charset.name() + "; they must be in an ASCII-compatible charset");
+			return;
+		}
+		byte[] delim = delimiter.trim().getBytes(charset);
+		int lineStart = cardStart;
+		while (lineStart < limit) {
+			int lineEnd = indexOf(data, (byte) '\n', lineStart, limit);
+			int next = lineEnd < 0 ? limit : lineEnd + 1;
+			if (lineEnd < 0) {
+				lineEnd = limit;
+			}
+			if (isDelimiterLine(data, lineStart, lineEnd, delim)) {
+				emitText(data, cardStart, lineStart, charset, handler);
+				cardStart = next;
+			}
+			lineStart = next;
+		}
+		emitText(data, cardStart, limit, charset, handler);
+	}
+
+	/**
+	 * Splits up a JSON Lines container. Blank lines are skipped.
+	 * @param data the container's bytes, UTF-8
+	 * @param field name of the string field holding a card's text
+	 * @param handler
+	 */
+	public static void readJsonLines(ByteBuffer data, String field, CardHandler handler) {
+		int limit = data.limit();
+		int lineStart = 0;
+		while (lineStart < limit) {
+			int lineEnd = indexOf(data, (byte) '\n', lineStart, limit);
+			int next = lineEnd < 0 ? limit : lineEnd + 1;
+			if (lineEnd < 0) {
+				lineEnd = limit;
+			}
+			if (!isBlank(data, lineStart, lineEnd)) {
+				int length = lineEnd - lineStart;
+				try {
+					CharBuffer line = decode(data, lineStart, lineEnd, StandardCharsets.UTF_8);
+					String text = new JsonFieldReader(line).readStringField(field);
+					handler.card(lineStart, length, text);
+				} catch (CharacterCodingException e) {
+					handler.badCard(lineStart, length, "not valid UTF-8");
+				} catch (IllegalArgumentException e) {
+					handler.badCard(lineStart, length, e.getMessage());
+				}
+			}
+			lineStart = next;
+		}
+	}
+
+	private static void emitText(ByteBuffer data, int start, int end, Charset charset, CardHandler handler) {
+		if (isBlank(data, start, end)) {
+			return;
+		}
+		ByteBuffer slice = slice(data, start, end);
+		// lenient decoding, as for single-card files
+		handler.card(start, end - start, charset.decode(slice).toString());
+	}
+
+	private static CharBuffer decode(ByteBuffer data, int start, int end, Charset charset) throws CharacterCodingException {
+		return charset.newDecoder().decode(slice(data, start, end));
+	}
+
+	private static ByteBuffer slice(ByteBuffer data, int start, int end) {
+		ByteBuffer dup = data.duplicate();
+		dup.limit(end);
+		dup.position(start);
+		return dup.slice();
+	}
+
+	private static int indexOf(ByteBuffer data, byte b, int from, int to) {
+		for (int i=from; i<to; i++) {
+			if (data.get(i) == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isBlank(ByteBuffer data, int start, int end) {
+		for (int i=start; i<end; i++) {
+			byte b = data.get(i);
+			if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isDelimiterLine(ByteBuffer data, int start, int end, byte[] delim) {
+		while (start < end && isSpace(data.get(start))) {
+			start++;
+		}
+		while (end > start && isSpace(data.get(end - 1))) {
+			end--;
+		}
+		if (end - start != delim.length) {
+			return false;
+		}
+		for (int i=0; i<delim.length; i++) {
+			if (data.get(start + i) != delim[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r';
+	}
+
+	/**
+	 * Just enough of a JSON parser to pull one string field out of a flat-ish object.
+	 * Other values (including nested objects and arrays) are skipped over.
+	 */
+	static class JsonFieldReader {
+		private final CharSequence s;
+		private int pos;
+
+		JsonFieldReader(CharSequence s) {
+			this.s = s;
+		}
+
+		/**
+		 * @param field
+		 * @return the unescaped value of the field
+		 * @throws IllegalArgumentException if the line isn't a JSON object with that string field
+		 */
+		String readStringField(String field) {
+			skipSpace();
+			expect('{');
+			skipSpace();
+			if (peek() == '}') {
+				throw new IllegalArgumentException("no '" + field + "' field");
+			}
+			while (true) {
+				skipSpace();
+				String key = readString();
+				skipSpace();
+				expect(':');
+				skipSpace();
+				if (key.equals(field)) {
+					if (peek() != '"') {
+						throw new IllegalArgumentException("'" + field + "' field is not a string");
+					}
+					return readString();
+				}
+				skipValue();
+				skipSpace();
+				char c = next();
+				if (c == '}') {
+					throw new IllegalArgumentException("no '" + field + "' field");
+				}
+				if (c != ',') {
+					throw error("expected ',' or '}'");
+				}
+			}
+		}
+
+		private String readString() {
+			expect('"');
+			StringBuilder sb = new StringBuilder();
+			while (true) {
+				char c = next();
+				if (c == '"') {
+					return sb.toString();
+				}
+				if (c != '\\') {
+					sb.append(c);
+					continue;
+				}
+				c = next();
+				switch (c) {
+				case '"': sb.append('"'); break;
+				case '\\': sb.append('\\'); break;
+				case '/': sb.append('/'); break;
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'n': sb.append('\n'); break;
+				case 'r': sb.append('\r'); break;
+				case 't': sb.append('\t'); break;
+				case 'u':
+					if (pos + 4 > s.length()) {
+						throw error("truncated \\u escape");
+					}
+					try {
+						sb.append((char) Integer.parseInt(s.subSequence(pos, pos + 4).toString(), 16));
+					} catch (NumberFormatException e) {
+						throw error("bad \\u escape");
+					}
+					pos += 4;
+					break;
+				default:
+					throw error("bad escape");
+				}
+			}
+		}
+
+		private void skipValue() {
+			char c = peek();
+			if (c == '"') {
+				readString();
+				return;
+			}
+			if (c == '{' || c == '[') {
+				int depth = 0;
+				do {
+					c = peek();
+					if (c == '"') {
+						readString();
+						continue;
+					}
+					next();
+					if (c == '{' || c == '[') {
+						depth++;
+					} else if (c == '}' || c == ']') {
+						depth--;
+					}
+				} while (depth > 0);
+				return;
+			}
+			// number, true, false or null
+			while (pos < s.length() && ",}] \t\r".indexOf(s.charAt(pos)) < 0) {
+				pos++;
+			}
+		}
+
+		private void skipSpace() {
+			while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+				pos++;
+			}
+		}
+
+		private char peek() {
+			if (pos >= s.length()) {
+				throw error("unexpected end of line");
+			}
+			return s.charAt(pos);
+		}
+
+		private char next() {
+			char c = peek();
+			pos++;
+			return c;
+		}
+
+		private void expect(char c) {
+			if (next() != c) {
+				pos--;
+				throw error("expected '" + c + "'");
+			}
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException("malformed JSON at column " + pos + ": " + message);
+		}
+	}
+}
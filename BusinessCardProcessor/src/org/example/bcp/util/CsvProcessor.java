@@ -1,62 +1,485 @@
 package org.example.bcp.util;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- * Processes a CSV file into record objects (String arrays, for our modest purposes).
- * 
+ * Processes CSV data into records, following RFC 4180: fields are separated by commas,
+ * records by LF or CRLF (or a lone CR), and a field wrapped in double quotes may contain
+ * commas, line breaks and doubled-up ("") quotes. Blank lines are skipped.
+ *
+ * The data is streamed through a char buffer. Iterating hands back the same {@link Row}
+ * every time, refilled with the next record, so nothing is allocated per record unless
+ * the caller asks for Strings. Calling hasNext() any number of times before next() is fine.
+ *
+ * For large inputs, {@link #parseParallel(char[], int, int, int, ChunkHandler)} splits the
+ * data into chunks that begin and end on record boundaries and parses them on several
+ * threads at once.
+ *
  * @author astein
  *
  */
-public class CsvProcessor implements Iterable<List<String>>, Iterator<List<String>> {
-	
-	BufferedReader csvReader = null;
-	String currentBuffer;
-	
-	public CsvProcessor(BufferedReader csvReader) {
+public class CsvProcessor implements Iterable<CsvProcessor.Row>, Iterator<CsvProcessor.Row> {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	Reader csvReader = null;
+	private char[] buf;
+	private int pos;
+	private int limit;
+
+	private final Row row = new Row();
+	// whether row holds a record that hasNext() has read but next() hasn't returned yet
+	private boolean rowReady;
+	private boolean eof;
+
+	/**
+	 * Streams CSV data from a reader. The reader isn't closed.
+	 * @param csvReader
+	 */
+	public CsvProcessor(Reader csvReader) {
 		this.csvReader = csvReader;
+		this.buf = new char[BUFFER_SIZE];
 	}
-	
+
 	/**
-	 * Breaks a line of text into its comma-delimited elements.
-	 * At this time, this parser does not account for escaped (i.e. double-quote-wrapped) CSV fields.
+	 * Parses CSV data already in memory, without copying it.
+	 * @param data
+	 * @param start index of the first character to parse
+	 * @param end index after the last character to parse
+	 */
+	public CsvProcessor(char[] data, int start, int end) {
+		this.buf = data;
+		this.pos = start;
+		this.limit = end;
+	}
+
+	/**
+	 * Breaks a line of text into its comma-delimited elements, taking account of quoting.
 	 * @param csvLine
 	 * @return
 	 */
 	public static List<String> parseCsvLine(String csvLine) {
-		return Arrays.asList(csvLine.split(","));
+		CsvProcessor proc = new CsvProcessor(new StringReader(csvLine));
+		if (!proc.hasNext()) {
+			return new ArrayList<String>();
+		}
+		return proc.next().toList();
 	}
 
 	@Override
 	public boolean hasNext() {
-		if (csvReader == null) {
-			throw new NullPointerException("csvReader was null");
-		}
-		
-		try {
-			currentBuffer = csvReader.readLine();
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
-		
-		if (currentBuffer == null) {
-			return false;
-		} else {
-			return true;
+		if (!rowReady && !eof) {
+			try {
+				rowReady = readRow();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			eof = !rowReady;
 		}
+		return rowReady;
 	}
 
+	/**
+	 * @return the next record. This is the same Row instance every time, so copy out
+	 * anything that needs to outlive the next call.
+	 */
 	@Override
-	public List<String> next() {
-		return parseCsvLine(currentBuffer);
+	public Row next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		rowReady = false;
+		return row;
 	}
 
 	@Override
-	public Iterator<List<String>> iterator() {
+	public Iterator<Row> iterator() {
 		return this;
 	}
+
+	/**
+	 * @return index in the in-memory data of the next character to be parsed (only
+	 * meaningful when parsing a char array)
+	 */
+	public int position() {
+		return pos;
+	}
+
+	/**
+	 * Reads one record into row.
+	 * @return false if there are no more records
+	 * @throws IOException
+	 */
+	@SuppressWarnings("fallthrough")
+	private boolean readRow() throws IOException {
+		row.clear();
+		boolean inQuotes = false;
+		// whether anything at all (even an empty quoted field) has been seen for the
+		// current field, and whether it started with a quote
+		boolean fieldStarted = false;
+		boolean quoted = false;
+
+		while (true) {
+			if (pos >= limit && !fill()) {
+				if (fieldStarted || row.size() > 0) {
+					row.endField();
+					return true;
+				}
+				return false;
+			}
+			char c = buf[pos++];
+
+			if (inQuotes) {
+				if (c == '"') {
+					if (peek() == '"') {
+						row.append('"');
+						pos++;
+					} else {
+						inQuotes = false;
+					}
+				} else {
+					row.append(c);
+				}
+				continue;
+			}
+
+			switch (c) {
+			case ',':
+				row.endField();
+				fieldStarted = false;
+				quoted = false;
+				break;
+			case '\r':
+				if (peek() == '\n') {
+					pos++;
+				}
+				// fall through
+			case '\n':
+				if (!fieldStarted && row.size() == 0) {
+					// blank line
+					break;
+				}
+				row.endField();
+				return true;
+			case '"':
+				if (!fieldStarted && !quoted) {
+					inQuotes = true;
+					quoted = true;
+					fieldStarted = true;
+					break;
+				}
+				// a stray quote in the middle of a field is taken literally
+				// fall through
+			default:
+				row.append(c);
+				fieldStarted = true;
+			}
+		}
+	}
+
+	/**
+	 * @return the next character without consuming it, or -1 at the end of the data
+	 * @throws IOException
+	 */
+	private int peek() throws IOException {
+		if (pos >= limit && !fill()) {
+			return -1;
+		}
+		return buf[pos];
+	}
+
+	/**
+	 * Refills the buffer from the reader. Everything already in the buffer has been
+	 * consumed (copied into the row) by the time this is called.
+	 * @return false if there's nothing more to read
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException {
+		if (csvReader == null) {
+			return false;
+		}
+		int n;
+		do {
+			n = csvReader.read(buf, 0, buf.length);
+		} while (n == 0);
+		if (n < 0) {
+			return false;
+		}
+		pos = 0;
+		limit = n;
+		return true;
+	}
+
+	/**
+	 * One CSV record. The characters of all of its (unquoted, unescaped) fields are kept
+	 * end to end in one reusable char array.
+	 */
+	public static final class Row {
+		private char[] chars = new char[256];
+		private CharBuffer view = CharBuffer.wrap(chars);
+		private int length;
+		// start and end of each field in chars
+		private int[] bounds = new int[32];
+		private int fields;
+		private int fieldStart;
+
+		void clear() {
+			length = 0;
+			fields = 0;
+			fieldStart = 0;
+		}
+
+		void append(char c) {
+			if (length == chars.length) {
+				chars = Arrays.copyOf(chars, length * 2);
+				view = CharBuffer.wrap(chars);
+			}
+			chars[length++] = c;
+		}
+
+		void endField() {
+			if (2 * fields + 2 > bounds.length) {
+				bounds = Arrays.copyOf(bounds, bounds.length * 2);
+			}
+			bounds[2 * fields] = fieldStart;
+			bounds[2 * fields + 1] = length;
+			fields++;
+			fieldStart = length;
+		}
+
+		/**
+		 * @return number of fields in the record
+		 */
+		public int size() {
+			return fields;
+		}
+
+		/**
+		 * @return the characters of the record's fields, indexed by {@link #start(int)}
+		 * and {@link #end(int)}. Only valid until the next record is read.
+		 */
+		public CharSequence chars() {
+			return view;
+		}
+
+		/**
+		 * @param i
+		 * @return index in {@link #chars()} of the first character of field i
+		 */
+		public int start(int i) {
+			checkIndex(i);
+			return bounds[2 * i];
+		}
+
+		/**
+		 * @param i
+		 * @return index in {@link #chars()} after the last character of field i
+		 */
+		public int end(int i) {
+			checkIndex(i);
+			return bounds[2 * i + 1];
+		}
+
+		/**
+		 * @param i
+		 * @return field i, as a new String
+		 */
+		public String get(int i) {
+			return new String(chars, start(i), end(i) - start(i));
+		}
+
+		/**
+		 * Parses field i as a decimal integer, without making a String of it.
+		 * @param i
+		 * @return
+		 * @throws NumberFormatException
+		 */
+		public int getInt(int i) {
+			int s = start(i);
+			int e = end(i);
+			boolean negative = s < e && chars[s] == '-';
+			if (negative || (s < e && chars[s] == '+')) {
+				s++;
+			}
+			if (s == e || e - s > 10) {
+				throw new NumberFormatException("not an int: '" + get(i) + "'");
+			}
+			long value = 0;
+			for (int k=s; k<e; k++) {
+				char c = chars[k];
+				if (c < '0' || c > '9') {
+					throw new NumberFormatException("not an int: '" + get(i) + "'");
+				}
+				value = value * 10 + (c - '0');
+			}
+			value = negative ? -value : value;
+			if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+				throw new NumberFormatException("not an int: '" + get(i) + "'");
+			}
+			return (int) value;
+		}
+
+		/**
+		 * @param value
+		 * @return index of the first field equal to value, or -1
+		 */
+		public int indexOf(String value) {
+			for (int i=0; i<fields; i++) {
+				int s = bounds[2 * i];
+				int e = bounds[2 * i + 1];
+				if (e - s != value.length()) {
+					continue;
+				}
+				int k = 0;
+				while (k < e - s && chars[s + k] == value.charAt(k)) {
+					k++;
+				}
+				if (k == e - s) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * @return the fields as a new list of Strings
+		 */
+		public List<String> toList() {
+			List<String> list = new ArrayList<String>(fields);
+			for (int i=0; i<fields; i++) {
+				list.add(get(i));
+			}
+			return list;
+		}
+
+		@Override
+		public String toString() {
+			return toList().toString();
+		}
+
+		private void checkIndex(int i) {
+			if (i < 0 || i >= fields) {
+				throw new IndexOutOfBoundsException("field " + i + " of " + fields);
+			}
+		}
+	}
+
+	/**
+	 * Processes one chunk of a CSV file in a parallel parse.
+	 * @param <T> whatever the handler makes of its chunk
+	 */
+	public interface ChunkHandler<T> {
+		/**
+		 * @param chunk a processor over just the records of this chunk
+		 * @return
+		 * @throws Exception
+		 */
+		public T handle(CsvProcessor chunk) throws Exception;
+	}
+
+	/**
+	 * Splits in-memory CSV data into roughly equal chunks, each starting and ending on a
+	 * record boundary, and hands each chunk to the handler on its own thread.
+	 * @param data
+	 * @param start index of the first character to parse (e.g. after a header record)
+	 * @param end index after the last character to parse
+	 * @param chunks how many chunks to split the data into (i.e. how many threads)
+	 * @param handler
+	 * @return what the handler returned for each chunk, in the order the chunks appear in the data
+	 * @throws IOException if a handler failed
+	 */
+	public static <T> List<T> parseParallel(final char[] data, int start, int end, int chunks,
+			final ChunkHandler<T> handler) throws IOException {
+		final int[] boundaries = recordBoundaries(data, start, end, Math.max(1, chunks));
+		int count = boundaries.length - 1;
+
+		ExecutorService executor = Executors.newFixedThreadPool(count);
+		try {
+			List<Future<T>> futures = new ArrayList<Future<T>>(count);
+			for (int i=0; i<count; i++) {
+				final int chunkStart = boundaries[i];
+				final int chunkEnd = boundaries[i + 1];
+				futures.add(executor.submit(() -> handler.handle(new CsvProcessor(data, chunkStart, chunkEnd))));
+			}
+
+			List<T> results = new ArrayList<T>(count);
+			for (Future<T> future : futures) {
+				results.add(future.get());
+			}
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while parsing CSV", e);
+		} catch (ExecutionException e) {
+			throw new IOException("unable to parse CSV chunk", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Finds chunk boundaries: the first line break (outside of quotes) at or after each
+	 * evenly-spaced target position. Quoting state is tracked in a single sequential pass,
+	 * which only looks at each character once and is far cheaper than parsing. It follows
+	 * the same rules as {@link #readRow()}: only a quote at the start of a field starts a
+	 * quoted field, and a stray quote anywhere else is just a character.
+	 * @return start of each chunk, followed by end
+	 */
+	static int[] recordBoundaries(char[] data, int start, int end, int chunks) {
+		int[] boundaries = new int[chunks + 1];
+		int count = 0;
+		boundaries[count++] = start;
+
+		long chunkSize = Math.max(1, (end - start) / chunks);
+		long target = start + chunkSize;
+		boolean inQuotes = false;
+		boolean fieldStarted = false;
+		boolean quoted = false;
+		for (int i=start; i<end && count < chunks; i++) {
+			char c = data[i];
+			if (inQuotes) {
+				if (c == '"') {
+					if (i + 1 < end && data[i + 1] == '"') {
+						i++;
+					} else {
+						inQuotes = false;
+					}
+				}
+				continue;
+			}
+			if (c == ',' || c == '\r' || c == '\n') {
+				fieldStarted = false;
+				quoted = false;
+				if (c == '\n' && i + 1 >= target) {
+					boundaries[count++] = i + 1;
+					target = i + 1 + chunkSize;
+				}
+			} else if (c == '"' && !fieldStarted && !quoted) {
+				inQuotes = true;
+				quoted = true;
+				fieldStarted = true;
+			} else {
+				fieldStarted = true;
+			}
+		}
+
+		if (boundaries[count - 1] < end) {
+			boundaries[count++] = end;
+		} else if (count == 1) {
+			boundaries[count++] = end;
+		}
+		return Arrays.copyOf(boundaries, count);
+	}
 }
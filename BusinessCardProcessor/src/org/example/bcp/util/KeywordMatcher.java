@@ -0,0 +1,326 @@
+package org.example.bcp.util;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import org.example.bcp.PropertiesLoader;
+
+/**
+ * Finds any of a set of keywords in a line of text, ignoring case, in one pass over the
+ * line and without allocating anything (an Aho-Corasick automaton). However many keywords
+ * there are, each character of the line costs about the same.
+ *
+ * Keywords come in kinds (e.g. 'company' for legal-entity suffixes, 'fax' for words that
+ * mark a fax number). Each kind is a bit; queries say which kinds they're interested in.
+ *
+ * Keywords are loaded from a dictionary file on the classpath, or in the resources
+ * directory (see {@link #FILE_PROPERTY_KEY}), made up of sections:
+ * <pre>
+ * # comment
+ * [company]
+ * LLC
+ * INC.
+ * [fax]
+ * FAX
+ * </pre>
+ * Case is ignored character by character (as Character.toUpperCase does it), so it
+ * doesn't depend on the default locale.
+ * @author astein
+ *
+ */
+public final class KeywordMatcher {
+
+	public static final String FILE_PROPERTY_KEY = "bcp.keywords.file";
+	public static final String DEFAULT_FILE = "keywords.txt";
+
+	// at most this many kinds, one bit each
+	private static final int MAX_KINDS = 32;
+
+	private final Map<String, Integer> kinds;
+
+	// state 0 is the root. children of state s are edgeChars/edgeTargets[firstEdge[s]..firstEdge[s+1]),
+	// sorted by char
+	private final int[] firstEdge;
+	private final char[] edgeChars;
+	private final int[] edgeTargets;
+	// where to carry on from when no child matches
+	private final int[] fail;
+	// kinds of the keywords that end at each state (including those reached by following fail links)
+	private final int[] out;
+	// the root's children, for the common case of an ASCII character (0 if there isn't one)
+	private final int[] rootAscii = new int[128];
+
+	// CRC-32 of the dictionary file, if it was loaded from one
+	private long checksum = -1;
+
+	/**
+	 * @param keywords keywords by kind name
+	 * @throws IllegalArgumentException if there are too many kinds
+	 */
+	public KeywordMatcher(Map<String, ? extends Iterable<String>> keywords) {
+		if (keywords.size() > MAX_KINDS) {
+			throw new IllegalArgumentException("at most " + MAX_KINDS + " kinds of keyword, not " + keywords.size());
+		}
+
+		// build the trie
+		List<TreeMap<Character, Integer>> children = new ArrayList<TreeMap<Character, Integer>>();
+		List<Integer> outs = new ArrayList<Integer>();
+		children.add(new TreeMap<Character, Integer>());
+		outs.add(0);
+		kinds = new LinkedHashMap<String, Integer>();
+		for (Map.Entry<String, ? extends Iterable<String>> entry : keywords.entrySet()) {
+			int kind = 1 << kinds.size();
+			kinds.put(entry.getKey(), kind);
+			for (String keyword : entry.getValue()) {
+				if (keyword.isEmpty()) {
+					continue;
+				}
+				int state = 0;
+				for (int i=0; i<keyword.length(); i++) {
+					Character c = fold(keyword.charAt(i));
+					Integer next = children.get(state).get(c);
+					if (next == null) {
+						next = children.size();
+						children.add(new TreeMap<Character, Integer>());
+						outs.add(0);
+						children.get(state).put(c, next);
+					}
+					state = next;
+				}
+				outs.set(state, outs.get(state) | kind);
+			}
+		}
+
+		// flatten it
+		int states = children.size();
+		firstEdge = new int[states + 1];
+		int edges = 0;
+		for (int s=0; s<states; s++) {
+			firstEdge[s] = edges;
+			edges += children.get(s).size();
+		}
+		firstEdge[states] = edges;
+		edgeChars = new char[edges];
+		edgeTargets = new int[edges];
+		for (int s=0; s<states; s++) {
+			int e = firstEdge[s];
+			for (Map.Entry<Character, Integer> child : children.get(s).entrySet()) {
+				edgeChars[e] = child.getKey();
+				edgeTargets[e] = child.getValue();
+				e++;
+			}
+		}
+		out = new int[states];
+		for (int s=0; s<states; s++) {
+			out[s] = outs.get(s);
+		}
+		for (int e=firstEdge[0]; e<firstEdge[1]; e++) {
+			if (edgeChars[e] < 128) {
+				rootAscii[edgeChars[e]] = edgeTargets[e];
+			}
+		}
+
+		// fail links, breadth first so that a state's fail target is always done before it
+		fail = new int[states];
+		Deque<Integer> queue = new ArrayDeque<Integer>();
+		for (int e=firstEdge[0]; e<firstEdge[1]; e++) {
+			queue.add(edgeTargets[e]);
+		}
+		while (!queue.isEmpty()) {
+			int s = queue.poll();
+			for (int e=firstEdge[s]; e<firstEdge[s + 1]; e++) {
+				int child = edgeTargets[e];
+				int f = fail[s];
+				int target;
+				while ((target = child(f, edgeChars[e])) < 0 && f != 0) {
+					f = fail[f];
+				}
+				fail[child] = target < 0 ? 0 : target;
+				out[child] |= out[fail[child]];
+				queue.add(child);
+			}
+		}
+	}
+
+	/**
+	 * Loads the dictionary named by {@link #FILE_PROPERTY_KEY} (default {@link #DEFAULT_FILE}),
+	 * from the resources directory if it's there (see {@link PropertiesLoader#RESOURCES_DIR_KEY}).
+	 * @param props the main properties
+	 * @return
+	 * @throws FileNotFoundException if the dictionary can't be found
+	 * @throws IOException
+	 */
+	public static KeywordMatcher load(Properties props) throws FileNotFoundException, IOException {
+		return load(PropertiesLoader.getResourcesDir(props), props.getProperty(FILE_PROPERTY_KEY, DEFAULT_FILE));
+	}
+
+	/**
+	 * Loads a dictionary from the classpath.
+	 * @param dictionaryFile
+	 * @return
+	 * @throws FileNotFoundException if the dictionary isn't on the classpath
+	 * @throws IOException if it's malformed
+	 */
+	public static KeywordMatcher load(String dictionaryFile) throws FileNotFoundException, IOException {
+		return load(null, dictionaryFile);
+	}
+
+	/**
+	 * Loads a dictionary from a directory, or if it isn't there, the classpath.
+	 * @param dir may be null
+	 * @param dictionaryFile
+	 * @return
+	 * @throws FileNotFoundException if the dictionary can't be found
+	 * @throws IOException if it's malformed
+	 */
+	public static KeywordMatcher load(Path dir, String dictionaryFile) throws FileNotFoundException, IOException {
+		InputStream is = PropertiesLoader.openResource(dir, dictionaryFile);
+		if (is == null) {
+			throw new FileNotFoundException("keyword dictionary '" + dictionaryFile + "' not found");
+		}
+		Map<String, List<String>> keywords = new LinkedHashMap<String, List<String>>();
+		CRC32 crc = new CRC32();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new CheckedInputStream(is, crc), StandardCharsets.UTF_8))) {
+			List<String> section = null;
+			int lineNumber = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				if (line.startsWith("[") && line.endsWith("]")) {
+					String kind = line.substring(1, line.length() - 1).trim();
+					section = keywords.get(kind);
+					if (section == null) {
+						section = new ArrayList<String>();
+						keywords.put(kind, section);
+					}
+				} else if (section == null) {
+					throw new IOException("keyword dictionary '" + dictionaryFile + "' line " + lineNumber + ": keyword before any [kind]");
+				} else {
+					section.add(line);
+				}
+			}
+		}
+		KeywordMatcher matcher;
+		try {
+			matcher = new KeywordMatcher(keywords);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("keyword dictionary '" + dictionaryFile + "': " + e.getMessage());
+		}
+		matcher.checksum = crc.getValue();
+		return matcher;
+	}
+
+	/**
+	 * @return CRC-32 of the dictionary file the keywords were loaded from, or -1 if they
+	 * weren't loaded from one
+	 */
+	public long getChecksum() {
+		return checksum;
+	}
+
+	/**
+	 * @param name
+	 * @return the bit for a kind of keyword, or 0 if there are no keywords of that kind
+	 */
+	public int kind(String name) {
+		Integer kind = kinds.get(name);
+		return kind == null ? 0 : kind;
+	}
+
+	/**
+	 * @param s
+	 * @param start
+	 * @param end
+	 * @param kinds
+	 * @return true if s[start, end) ends with a keyword of one of the kinds
+	 */
+	public boolean endsWith(CharSequence s, int start, int end, int kinds) {
+		int state = 0;
+		for (int i=start; i<end; i++) {
+			state = step(state, s.charAt(i));
+		}
+		return (out[state] & kinds) != 0;
+	}
+
+	/**
+	 * @param s
+	 * @param start
+	 * @param end
+	 * @param kinds
+	 * @return true if a keyword of one of the kinds lies wholly within s[start, end)
+	 */
+	public boolean contains(CharSequence s, int start, int end, int kinds) {
+		int state = 0;
+		for (int i=start; i<end; i++) {
+			state = step(state, s.charAt(i));
+			if ((out[state] & kinds) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int step(int state, char c) {
+		c = fold(c);
+		while (true) {
+			if (state == 0) {
+				if (c < 128) {
+					return rootAscii[c];
+				}
+				int next = child(0, c);
+				return next < 0 ? 0 : next;
+			}
+			int next = child(state, c);
+			if (next >= 0) {
+				return next;
+			}
+			state = fail[state];
+		}
+	}
+
+	/**
+	 * @return the child of a state for a (folded) character, or -1 if there isn't one
+	 */
+	private int child(int state, char c) {
+		int lo = firstEdge[state];
+		int hi = firstEdge[state + 1] - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			char m = edgeChars[mid];
+			if (m < c) {
+				lo = mid + 1;
+			} else if (m > c) {
+				hi = mid - 1;
+			} else {
+				return edgeTargets[mid];
+			}
+		}
+		return -1;
+	}
+
+	private static char fold(char c) {
+		if (c < 128) {
+			return c >= 'a' && c <= 'z' ? (char) (c - ('a' - 'A')) : c;
+		}
+		return Character.toUpperCase(c);
+	}
+}